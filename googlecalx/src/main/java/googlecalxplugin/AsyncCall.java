@@ -0,0 +1,119 @@
+package googlecalxplugin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Future of a request running on an executor. Unlike a plain
+ * {@link CompletableFuture}, completing the future early, i.e. cancelling
+ * it or a timeout of {@link CompletableFuture#orTimeout(long, java.util.concurrent.TimeUnit)},
+ * interrupts the thread running the request: a request still waiting for
+ * the {@link RequestScheduler} gives up its place at once, a request in
+ * flight ends within the read timeout of the client.
+ * @param <T> the result type
+ */
+final class AsyncCall<T> extends CompletableFuture<T> {
+
+	private Thread runner;
+
+	private AsyncCall() {
+		super();
+	}
+
+	/**
+	 * Runs the request on the given executor.
+	 * @param <T> the result type
+	 * @param executor the executor to run the request on, must not be <code>null</code>.
+	 * @param call the request, must not be <code>null</code>.
+	 * @return the future of the request, never <code>null</code>.
+	 */
+	static <T> CompletableFuture<T> start(final Executor executor, final RequestScheduler.Call<T> call) {
+		final AsyncCall<T> result = new AsyncCall<T>();
+		// the request is recorded with the context of the caller
+		executor.execute(ExportEvents.inContext(() -> result.run(call)));
+		return result;
+	}
+
+	/**
+	 * Returns the executor used unless configured otherwise: virtual threads
+	 * if the Java runtime has them, otherwise a cached pool of daemon threads.
+	 * The executor is shared by all accessors.
+	 * @return the executor, never <code>null</code>.
+	 */
+	static Executor sharedExecutor() {
+		return DefaultExecutor.INSTANCE;
+	}
+
+	private void run(final RequestScheduler.Call<T> call) {
+		synchronized (this) {
+			if (isDone()) {
+				// cancelled before it started
+				return;
+			}
+			runner = Thread.currentThread();
+		}
+		try {
+			complete(call.call());
+		} catch (Throwable t) {
+			completeExceptionally(t);
+		} finally {
+			synchronized (this) {
+				runner = null;
+			}
+			// the thread may be reused; an interrupt meant for this request must not leak
+			Thread.interrupted();
+		}
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		final boolean result = super.cancel(mayInterruptIfRunning);
+		if (result) {
+			interruptRunner();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean completeExceptionally(final Throwable ex) {
+		final boolean result = super.completeExceptionally(ex);
+		if (result) {
+			interruptRunner();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean complete(final T value) {
+		final boolean result = super.complete(value);
+		if (result) {
+			interruptRunner();
+		}
+		return result;
+	}
+
+	private synchronized void interruptRunner() {
+		if (runner != null && runner != Thread.currentThread()) {
+			runner.interrupt();
+		}
+	}
+
+	/**
+	 * Creates the default executor on first use.
+	 */
+	private static final class DefaultExecutor {
+
+		static final Executor INSTANCE = create();
+
+		private static Executor create() {
+			try {
+				// virtual threads exist from Java 21 on, the plugin is built for Java 17
+				return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				return Executors.newCachedThreadPool(BulkExporter.daemon("async"));
+			}
+		}
+	}
+
+}
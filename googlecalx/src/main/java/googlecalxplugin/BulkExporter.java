@@ -0,0 +1,375 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Exports many programs in a pipeline: templates are resolved and events
+ * are created in parallel by a few producers taking the programs one by one,
+ * and handed through a bounded queue to a number of senders. A full queue
+ * blocks the producers, so at most a few events are held in memory
+ * regardless of the number of programs. There is a
+ * sender for each request the scheduler may let in flight at most; the
+ * adaptive limit of the scheduler decides how many of them send at a time,
+ * see {@link RequestScheduler#getConcurrencyLimit()}. The events are
+ * {@link StreamedEvent streamed} into the requests, which are sent in the
+ * bulk lane of the {@link RequestScheduler}, each to the calendar its
+ * program is routed to with the accessor of the account the calendar
+ * belongs to, see {@link CalendarAccess#getTarget(Program)}.
+ * All stages are recorded as {@link ExportEvents} with the batch ID of the exporter.
+ */
+public class BulkExporter {
+
+	/** Receives the progress of an export. */
+	public interface Listener {
+
+		/**
+		 * Invoked after a program was processed. May be invoked from any thread.
+		 * @param program the program that was processed, never <code>null</code>.
+		 * @param done the number of programs processed so far
+		 * @param total the total number of programs to process
+		 * @param exported <code>true</code> if the program was exported successfully
+		 */
+		void processed(Program program, int done, int total, boolean exported);
+
+	}
+
+	private static final Item END = new Item(null, null, null, null, null);
+
+	private final CalendarAccess access;
+	private final Function<String, CalendarAccess> accounts;
+	private final int senders;
+	private final int capacity;
+	private final AtomicBoolean cancelled;
+	private final String calendarId;
+	private final long batchId;
+	private ConflictPolicy conflictPolicy;
+
+	/**
+	 * Creates the exporter.
+	 * @param anAccess the calendar accessor, must not be <code>null</code>.
+	 */
+	public BulkExporter(final CalendarAccess anAccess) {
+		this(anAccess, account -> anAccess);
+	}
+
+	/**
+	 * Creates the exporter exporting to the calendars of several accounts.
+	 * @param anAccess the calendar accessor of the account of the export target, must not be <code>null</code>.
+	 * @param someAccounts the accessor of each account, e.g. {@link CalendarAccounts#get(String)}; must not be <code>null</code>.
+	 */
+	public BulkExporter(final CalendarAccess anAccess, final Function<String, CalendarAccess> someAccounts) {
+		access = anAccess;
+		accounts = someAccounts;
+		senders = anAccess.getScheduler().getMaxConcurrency();
+		capacity = 4 * senders;
+		cancelled = new AtomicBoolean();
+		calendarId = anAccess.getTargetCalendarId();
+		batchId = ExportEvents.nextBatchId();
+		conflictPolicy = ConflictPolicy.export;
+	}
+
+	/**
+	 * Returns the ID identifying the events of this export.
+	 * @return the batch ID, see {@link ExportEvents}.
+	 */
+	public long getBatchId() {
+		return batchId;
+	}
+
+	/**
+	 * Sets how to handle programs colliding with existing appointments.
+	 * Unless the policy is {@link ConflictPolicy#export}, the exporter first
+	 * queries the free/busy times of the target calendar for the time span
+	 * of all programs.
+	 * @param policy the conflict policy, must not be <code>null</code>.
+	 */
+	public void setConflictPolicy(final ConflictPolicy policy) {
+		conflictPolicy = policy;
+	}
+
+	/**
+	 * Cancels a running export. Programs not sent yet are skipped; programs
+	 * the producers did not take yet are not reported to the listener.
+	 */
+	public void cancel() {
+		cancelled.set(true);
+	}
+
+	/**
+	 * Indicates whether the export was cancelled.
+	 * @return <code>true</code> if the export was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * Exports the given programs. Identical programs are exported once.
+	 * Blocks until all programs are processed or the export is cancelled.
+	 * @param programs the programs to export, must not be <code>null</code>.
+	 * @param listener the progress listener, must not be <code>null</code>.
+	 * @return the result of the export, never <code>null</code>.
+	 * @throws IOException if the calendar cannot be accessed at all
+	 */
+	public Result export(final Program[] programs, final Listener listener) throws IOException {
+		final Collection<Program> unique = deduplicate(programs);
+		final Result result = new Result(unique.size(), programs.length - unique.size());
+		if (unique.isEmpty()) {
+			return result;
+		}
+		// authorize each account once before fanning out
+		final Map<String, List<Program>> byAccount = new LinkedHashMap<String, List<Program>>();
+		for (Program program : unique) {
+			byAccount.computeIfAbsent(access.getTarget(program).getAccount(), account -> new ArrayList<Program>()).add(program);
+		}
+		ExportEvents.run(null, calendarId, batchId, () -> {
+			for (Map.Entry<String, List<Program>> entry : byAccount.entrySet()) {
+				final CalendarAccess owner = accounts.apply(entry.getKey());
+				owner.getCalendar();
+				if (conflictPolicy != ConflictPolicy.export) {
+					result.conflicts.addAll(owner.findConflicts(entry.getValue(), Lane.BULK));
+				}
+			}
+		});
+		if (conflictPolicy == ConflictPolicy.skip) {
+			unique.removeAll(result.conflicts);
+			if (unique.isEmpty()) {
+				return result;
+			}
+		}
+		final int total = unique.size();
+		final BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(capacity);
+		final int resolvers = Math.min(total, Runtime.getRuntime().availableProcessors());
+		final ExecutorService producers = Executors.newFixedThreadPool(resolvers, daemon("resolve"));
+		final ExecutorService consumers = Executors.newFixedThreadPool(senders, daemon("send"));
+		final AtomicInteger done = new AtomicInteger();
+		final Iterator<Program> pending = unique.iterator();
+		final AtomicInteger taken = new AtomicInteger();
+		try {
+			for (int i = 0; i < senders; i++) {
+				consumers.execute(ExportEvents.inContext(() -> send(queue, result, done, total, listener)));
+			}
+			for (int i = 0; i < resolvers; i++) {
+				producers.execute(ExportEvents.inContext(() -> produce(pending, taken, queue)));
+			}
+			producers.shutdown();
+			producers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			// the programs left when the export was cancelled
+			result.skipped.addAndGet(total - taken.get());
+			for (int i = 0; i < senders; i++) {
+				queue.put(END);
+			}
+			consumers.shutdown();
+			consumers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			cancel();
+			producers.shutdownNow();
+			consumers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		return result;
+	}
+
+	/**
+	 * Takes programs until none are left or the export is cancelled, and
+	 * queues their events.
+	 */
+	private void produce(final Iterator<Program> pending, final AtomicInteger taken, final BlockingQueue<Item> queue) {
+		try {
+			while (!cancelled.get()) {
+				final Program program;
+				synchronized (pending) {
+					if (!pending.hasNext()) {
+						return;
+					}
+					program = pending.next();
+					taken.incrementAndGet();
+				}
+				queue.put(create(program));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Item create(final Program program) {
+		if (cancelled.get()) {
+			return new Item(program, null, null, null, null);
+		}
+		final CalendarTarget target = access.getTarget(program);
+		final CalendarAccess owner = accounts.apply(target.getAccount());
+		try {
+			return new Item(program, owner, target.getId(), ExportEvents.call(program.getUniqueID(), target.getId(), batchId, () -> owner.createStreamedEvent(program)), null);
+		} catch (RuntimeException e) {
+			return new Item(program, owner, target.getId(), null, e);
+		}
+	}
+
+	private void send(final BlockingQueue<Item> queue, final Result result, final AtomicInteger done, final int total, final Listener listener) {
+		try {
+			for (Item item = queue.take(); item != END; item = queue.take()) {
+				boolean exported = false;
+				if (item.failure != null) {
+					result.addFailure(item.program, item.failure);
+				} else if (item.event == null || cancelled.get()) {
+					result.skipped.incrementAndGet();
+				} else {
+					try {
+						final Item sent = item;
+						ExportEvents.call(sent.program.getUniqueID(), sent.calendarId, batchId, () -> sent.access.addEvent(sent.calendarId, sent.event, Lane.BULK));
+						result.exported.incrementAndGet();
+						exported = true;
+					} catch (IOException | RuntimeException e) {
+						result.addFailure(item.program, e);
+					}
+				}
+				listener.processed(item.program, done.incrementAndGet(), total, exported);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Collection<Program> deduplicate(final Program[] programs) {
+		final Map<Object, Program> result = new LinkedHashMap<Object, Program>();
+		for (Program program : programs) {
+			final String id = program.getUniqueID();
+			result.putIfAbsent(id != null ? id : program, program);
+		}
+		return new ArrayList<Program>(result.values());
+	}
+
+	/**
+	 * Returns a factory of daemon threads named after the plugin.
+	 * @param name the name of the threads
+	 * @return the thread factory, never <code>null</code>.
+	 */
+	static ThreadFactory daemon(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread(runnable, GoogleCalXPlugin.PLUGIN_ID + '-' + name + '-' + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * An event ready to be sent, together with its program, calendar and
+	 * the accessor of the account of the calendar.
+	 */
+	private static class Item {
+
+		protected final Program program;
+		protected final CalendarAccess access;
+		protected final String calendarId;
+		protected final StreamedEvent event;
+		protected final Exception failure;
+
+		protected Item(final Program aProgram, final CalendarAccess anAccess, final String aCalendarId, final StreamedEvent anEvent, final Exception aFailure) {
+			program = aProgram;
+			access = anAccess;
+			calendarId = aCalendarId;
+			event = anEvent;
+			failure = aFailure;
+		}
+	}
+
+	/**
+	 * The result of a bulk export.
+	 */
+	public static class Result {
+
+		private final int total;
+		private final int duplicates;
+		private final AtomicInteger exported;
+		private final AtomicInteger skipped;
+		private final Map<Program, Exception> failures;
+		private final Set<Program> conflicts;
+
+		protected Result(final int aTotal, final int someDuplicates) {
+			total = aTotal;
+			duplicates = someDuplicates;
+			exported = new AtomicInteger();
+			skipped = new AtomicInteger();
+			failures = Collections.synchronizedMap(new LinkedHashMap<Program, Exception>());
+			conflicts = new LinkedHashSet<Program>();
+		}
+
+		protected void addFailure(final Program program, final Exception failure) {
+			failures.put(program, failure);
+		}
+
+		/**
+		 * Returns the number of distinct programs to export.
+		 * @return the number of distinct programs to export.
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Returns the number of programs dropped because they were given more than once.
+		 * @return the number of duplicate programs.
+		 */
+		public int getDuplicates() {
+			return duplicates;
+		}
+
+		/**
+		 * Returns the number of successfully exported programs.
+		 * @return the number of successfully exported programs.
+		 */
+		public int getExported() {
+			return exported.get();
+		}
+
+		/**
+		 * Returns the programs colliding with existing appointments. These were
+		 * not exported if the conflict policy is {@link ConflictPolicy#skip}.
+		 * @return the colliding programs, never <code>null</code>.
+		 */
+		public Set<Program> getConflicts() {
+			return Collections.unmodifiableSet(conflicts);
+		}
+
+		/**
+		 * Returns the number of programs skipped due to cancellation.
+		 * @return the number of skipped programs.
+		 */
+		public int getSkipped() {
+			return skipped.get();
+		}
+
+		/**
+		 * Returns the programs that could not be exported with the reason of failure.
+		 * @return the failed programs in order of failure, never <code>null</code>.
+		 */
+		public Map<Program, Exception> getFailures() {
+			synchronized (failures) {
+				return new LinkedHashMap<Program, Exception>(failures);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+
+/**
+ * Data store factory which keeps all values in memory and writes
+ * changes to disk in the background. Bursts of changes (e.g. the
+ * several updates of a token refresh) are coalesced into a single
+ * write per data store. Files are written to a temporary file which
+ * is readable by the owner only and then atomically renamed.
+ * The file format is the one of the <code>FileDataStoreFactory</code>,
+ * so existing credentials remain readable.
+ * <p>
+ * Several processes may share the directory, see {@link StateFiles}: a
+ * write merges the keys changed in this process into the current file
+ * under a file lock, so changes of other processes are kept. Reads stay
+ * in memory; at most once per second, a read checks whether the file was
+ * replaced and then takes over the keys other processes changed.
+ * <p>
+ * Pending changes are written on exit of the VM at the latest; a factory
+ * which is no longer used should be closed, which writes them at once.
+ */
+public class CachedDataStoreFactory extends AbstractDataStoreFactory implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(CachedDataStoreFactory.class.getName());
+
+	private static final long DEFAULT_DELAY = 500L;
+	/** time to wait before writing again after a failed background write, in milliseconds */
+	private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(5L);
+	/** minimum time between two checks whether a file was changed by another process */
+	private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1L);
+
+	private final File dataDirectory;
+	private final long delay;
+	private final ScheduledExecutorService writer;
+	private final AtomicBoolean scheduled;
+	private final Set<CachedDataStore<?>> pending;
+	private final Object fileLock;
+	private final Thread shutdownHook;
+	private volatile boolean closed;
+
+	/**
+	 * Creates the factory with the default write delay.
+	 * @param directory the directory to persist the data stores in, must not be <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	public CachedDataStoreFactory(final File directory) throws IOException {
+		this(directory, DEFAULT_DELAY);
+	}
+
+	/**
+	 * Creates the factory.
+	 * @param directory the directory to persist the data stores in, must not be <code>null</code>.
+	 * @param delayMillis the time in milliseconds to wait for further changes before writing to disk
+	 * @throws IOException in case of error
+	 */
+	public CachedDataStoreFactory(final File directory, final long delayMillis) throws IOException {
+		dataDirectory = directory.getCanonicalFile();
+		if (!dataDirectory.exists() && !dataDirectory.mkdirs()) {
+			throw new IOException("unable to create directory: " + dataDirectory);
+		}
+		StateFiles.setOwnerOnly(dataDirectory);
+		delay = delayMillis;
+		scheduled = new AtomicBoolean();
+		pending = new LinkedHashSet<CachedDataStore<?>>();
+		fileLock = new Object();
+		writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, GoogleCalXPlugin.PLUGIN_ID + "-store");
+			thread.setDaemon(true);
+			return thread;
+		});
+		shutdownHook = new Thread(this::flushQuietly);
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Returns the directory the data stores are persisted in.
+	 * @return the directory the data stores are persisted in, never <code>null</code>.
+	 */
+	public File getDataDirectory() {
+		return dataDirectory;
+	}
+
+	/**
+	 * Writes all pending changes to disk immediately. Data stores which
+	 * could not be written stay pending and are written again by the next
+	 * flush.
+	 * @throws IOException in case of error
+	 */
+	public void flush() throws IOException {
+		synchronized (fileLock) {
+			scheduled.set(false);
+			IOException failure = null;
+			for (Iterator<CachedDataStore<?>> i = pending.iterator(); i.hasNext(); ) {
+				try {
+					i.next().write();
+					i.remove();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending changes to disk and stops the background writer.
+	 * Changes made afterwards, e.g. by a token refresh of a request still
+	 * in progress, are written at once on the calling thread.
+	 * @throws IOException in case of error; the changes stay pending
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			writer.shutdownNow();
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				// the VM is shutting down, the hook writes the changes
+				return;
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected <V extends Serializable> DataStore<V> createDataStore(final String id) throws IOException {
+		return new CachedDataStore<V>(this, id);
+	}
+
+	/**
+	 * Remembers a changed data store and schedules a write if none is
+	 * scheduled yet.
+	 * @param store the changed data store, must not be <code>null</code>.
+	 */
+	protected void schedule(final CachedDataStore<?> store) {
+		synchronized (fileLock) {
+			pending.add(store);
+		}
+		if (closed) {
+			flushQuietly();
+		} else if (scheduled.compareAndSet(false, true)) {
+			try {
+				writer.schedule(this::flushQuietly, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile
+				flushQuietly();
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (IOException e) {
+			// e.g. a credential which is lost on exit unless a later write succeeds
+			LOGGER.log(Level.WARNING, "cannot write data store to " + dataDirectory + ", retrying", e);
+			if (!closed && scheduled.compareAndSet(false, true)) {
+				writer.schedule(this::flushQuietly, RETRY_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Data store held in memory; changes are handed to the factory for writing.
+	 * @param <V> the type of the stored values
+	 */
+	private static class CachedDataStore<V extends Serializable> extends AbstractDataStore<V> {
+
+		private final Path file;
+		private final HashMap<String, byte[]> values;
+		/** the content of the file as last read or written */
+		private HashMap<String, byte[]> base;
+		private Object stamp;
+		private long checked;
+
+		protected CachedDataStore(final CachedDataStoreFactory factory, final String id) throws IOException {
+			super(factory, id);
+			file = new File(factory.getDataDirectory(), id).toPath();
+			stamp = StateFiles.stamp(file);
+			checked = System.nanoTime();
+			base = deserialize(StateFiles.read(file));
+			values = new HashMap<String, byte[]>(base);
+		}
+
+		@Override
+		public synchronized Set<String> keySet() throws IOException {
+			refresh();
+			return Collections.unmodifiableSet(new HashSet<String>(values.keySet()));
+		}
+
+		@Override
+		public synchronized Collection<V> values() throws IOException {
+			refresh();
+			final List<V> result = new ArrayList<V>(values.size());
+			for (byte[] value : values.values()) {
+				result.add(IOUtils.<V>deserialize(value));
+			}
+			return Collections.unmodifiableList(result);
+		}
+
+		@Override
+		public synchronized V get(final String key) throws IOException {
+			if (key == null) {
+				return null;
+			}
+			refresh();
+			return IOUtils.<V>deserialize(values.get(key));
+		}
+
+		@Override
+		public DataStore<V> set(final String key, final V value) throws IOException {
+			final byte[] serialized = IOUtils.serialize(Objects.requireNonNull(value));
+			synchronized (this) {
+				values.put(Objects.requireNonNull(key), serialized);
+			}
+			save();
+			return this;
+		}
+
+		@Override
+		public DataStore<V> delete(final String key) throws IOException {
+			final boolean removed;
+			synchronized (this) {
+				removed = key != null && values.remove(key) != null;
+			}
+			if (removed) {
+				save();
+			}
+			return this;
+		}
+
+		@Override
+		public DataStore<V> clear() throws IOException {
+			synchronized (this) {
+				values.clear();
+			}
+			save();
+			return this;
+		}
+
+		/**
+		 * Hands the data store to the factory for writing. Invoked without
+		 * holding the lock of the data store, the factory holds its own lock
+		 * while writing.
+		 */
+		private void save() {
+			((CachedDataStoreFactory) getDataStoreFactory()).schedule(this);
+		}
+
+		/**
+		 * Writes the keys changed in this process into the file, keeping the
+		 * changes of other processes. Invoked on the thread of the factory.
+		 * @throws IOException in case of error
+		 */
+		protected void write() throws IOException {
+			final HashMap<String, byte[]> snapshot;
+			final HashMap<String, byte[]> since;
+			synchronized (this) {
+				snapshot = new HashMap<String, byte[]>(values);
+				since = base;
+			}
+			final AtomicReference<HashMap<String, byte[]>> written = new AtomicReference<HashMap<String, byte[]>>();
+			final Object writtenStamp = StateFiles.update(file, current -> {
+				final HashMap<String, byte[]> content = deserialize(current);
+				apply(since, snapshot, content);
+				written.set(content);
+				return IOUtils.serialize(content);
+			});
+			synchronized (this) {
+				merge(written.get());
+				stamp = writtenStamp;
+			}
+		}
+
+		/**
+		 * Takes over the changes of other processes if the file was replaced.
+		 * Invoked while holding the lock of the data store.
+		 */
+		private void refresh() throws IOException {
+			final long now = System.nanoTime();
+			if (now - checked < CHECK_INTERVAL) {
+				return;
+			}
+			checked = now;
+			final Object current = StateFiles.stamp(file);
+			if (!Objects.equals(current, stamp)) {
+				// a stamp older than the content only causes another read later
+				stamp = current;
+				merge(deserialize(StateFiles.read(file)));
+			}
+		}
+
+		/**
+		 * Takes over the keys changed in the file since it was last read or
+		 * written, unless they were changed in this process too.
+		 */
+		private void merge(final HashMap<String, byte[]> content) {
+			final Set<String> keys = new HashSet<String>(content.keySet());
+			keys.addAll(base.keySet());
+			for (String key : keys) {
+				final byte[] value = content.get(key);
+				final byte[] known = base.get(key);
+				if (!Arrays.equals(value, known) && Arrays.equals(values.get(key), known)) {
+					if (value != null) {
+						values.put(key, value);
+					} else {
+						values.remove(key);
+					}
+				}
+			}
+			base = content;
+		}
+
+		/**
+		 * Applies the changes from one content to another to a third content.
+		 */
+		private static void apply(final Map<String, byte[]> from, final Map<String, byte[]> to, final Map<String, byte[]> content) {
+			final Set<String> keys = new HashSet<String>(from.keySet());
+			keys.addAll(to.keySet());
+			for (String key : keys) {
+				final byte[] value = to.get(key);
+				if (!Arrays.equals(value, from.get(key))) {
+					if (value != null) {
+						content.put(key, value);
+					} else {
+						content.remove(key);
+					}
+				}
+			}
+		}
+
+		private static HashMap<String, byte[]> deserialize(final byte[] content) throws IOException {
+			return content != null ? IOUtils.<HashMap<String, byte[]>>deserialize(content) : new HashMap<String, byte[]>();
+		}
+	}
+
+}
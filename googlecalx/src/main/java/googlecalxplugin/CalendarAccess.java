@@ -3,18 +3,32 @@ package googlecalxplugin;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipInputStream;
@@ -22,16 +36,31 @@ import java.util.zip.ZipInputStream;
 import org.apache.commons.beanutils.BeanUtils;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.UriTemplate;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.DateTime;
-import com.google.api.client.util.store.FileDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
 import com.google.api.services.calendar.Calendar;
 import com.google.api.services.calendar.CalendarScopes;
 import com.google.api.services.calendar.model.CalendarList;
@@ -42,40 +71,72 @@ import com.google.api.services.calendar.model.Event;
 import com.google.api.services.calendar.model.Event.Reminders;
 import com.google.api.services.calendar.model.EventDateTime;
 import com.google.api.services.calendar.model.EventReminder;
+import com.google.api.services.calendar.model.Events;
+import com.google.api.services.calendar.model.FreeBusyCalendar;
+import com.google.api.services.calendar.model.FreeBusyRequest;
+import com.google.api.services.calendar.model.FreeBusyRequestItem;
+import com.google.api.services.calendar.model.FreeBusyResponse;
+import com.google.api.services.calendar.model.TimePeriod;
 
 import devplugin.Program;
 import devplugin.ProgramFieldType;
+import googlecalxplugin.RequestScheduler.Lane;
 
 /**
  * Google Calendar access.
+ * <p>
+ * The accessor is safe for concurrent use; exports, the preferences and
+ * background jobs share one instance and thereby one client and one
+ * request budget. The client is created on first use: concurrent callers
+ * wait for the same authorization instead of starting several ones. If
+ * the authorization fails, all waiting callers receive the failure and
+ * the next call starts a new one. {@link #deleteCredentials()} replaces
+ * the client atomically; requests already running complete with the
+ * previous client, later requests authorize again.
+ * <p>
+ * The methods ending in <code>Async</code> run the request on an executor,
+ * by default on virtual threads where available, and return a
+ * {@link CompletableFuture}. Cancelling the future, or letting it time out
+ * with {@link CompletableFuture#orTimeout(long, TimeUnit)}, abandons the
+ * request, so callers such as the event dispatch thread never block.
  */
 public class CalendarAccess {
 
 	private static final String STR_ENTER = "Enter";
-	private static final Map<String, ProgramFieldType> STR2PFT;
+	private static final String FIELDS_INSERT = "id,etag";
+	private static final String FIELDS_CALENDAR_LIST = "items(id,summary),nextPageToken";
+	private static final String FIELDS_COLORS = "event";
+	private static final String FIELDS_FREEBUSY = "calendars";
+	private static final String FIELDS_EVENTS = "items(summary,start,end,transparency),nextPageToken";
+	private static final String FIELDS_EXPORTED = "items/extendedProperties/private,nextPageToken";
+	private static final String FIELDS_EXPORTED_TIMES = "items(id,end),nextPageToken";
+	/** private extended property tagging the events exported by the plugin */
+	static final String PROPERTY_TAG = "googlecalx";
+	static final String TAG_EXPORTED = "exported";
+	/** private extended property of exported events holding the unique ID of the program */
+	public static final String PROPERTY_PROGRAM = "googlecalx.program";
+	/** private extended property holding the hash of the rendered content of an exported event */
+	public static final String PROPERTY_HASH = "googlecalx.hash";
+	private static final int PAGE_SIZE = 250;
+	private static final int EVENTS_PAGE_SIZE = 2500;
+	private static final int MAX_BATCH = 50;
+	private static final int STATUS_GONE = 410;
+	private static final char[] BASE32HEX = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+	private static final long MAX_FREEBUSY_SPAN = TimeUnit.DAYS.toMillis(60L);
+	private static final int MAX_FREEBUSY_CALENDARS = 50;
 	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([A-Za-z_.]+?)\\}");
 	
-	private Calendar client;
+	private final AtomicReference<CompletableFuture<Calendar>> client;
+	private volatile RequestScheduler scheduler;
 	private final GoogleCalXSettings settings;
+	private final String account;
 	private final HttpTransport httpTransport;
+	private final HttpMeter httpMeter;
 	private final JsonFactory jsonFactory;
-	private final FileDataStoreFactory fileDataStoreFactory;
-
-	static {
-		final Map<String, ProgramFieldType> result = new HashMap<String, ProgramFieldType>();
-		for (Field field : ProgramFieldType.class.getFields()) {
-			try {
-				final Object value = field.get(null);
-				if (value  instanceof ProgramFieldType) {
-					result.put(field.getName(), (ProgramFieldType) value);
-				}
-			} catch (IllegalAccessException e) {
-				// ignore field
-			}
-		}
-		STR2PFT = Collections.unmodifiableMap(result);
-	}
-
+	private final CachedDataStoreFactory dataStoreFactory;
+	private final HttpRequestInitializer requestInitializer;
+	private volatile Executor executor;
+	private volatile StreamedEvent.Template eventTemplate;
 
 	/**
 	 * Creates the accessor.
@@ -96,59 +157,546 @@ public class CalendarAccess {
 	 * @throws GeneralSecurityException in case of error
 	 */
 	public CalendarAccess(final GoogleCalXSettings settings, final String directory, final JsonFactory factory) throws IOException, GeneralSecurityException {
+		this(settings, directory, factory, GoogleNetHttpTransport.newTrustedTransport(), null);
+	}
+
+	/**
+	 * Creates the accessor using the given transport. If a request initializer
+	 * is given, it replaces the OAuth authorization; this allows to run against
+	 * a local stand-in of the Calendar API.
+	 * @param settings the settings to use, must not be <code>null</code>.
+	 * @param directory directory for subfolder <code>.store</code> which will hold the authentication token, must not be <code>null</code>
+	 * @param factory a JSON factory, may be <code>null</code>
+	 * @param transport the HTTP transport to use, must not be <code>null</code>
+	 * @param initializer the request initializer to use instead of OAuth, may be <code>null</code>
+	 * @throws IOException in case of error
+	 */
+	CalendarAccess(final GoogleCalXSettings settings, final String directory, final JsonFactory factory, final HttpTransport transport, final HttpRequestInitializer initializer) throws IOException {
+		this(
+			settings,
+			CalendarAccounts.DEFAULT_ACCOUNT,
+			new CachedDataStoreFactory(new File(directory, ".store/"+GoogleCalXPlugin.PLUGIN_ID)),
+			transport,
+			new HttpMeter(),
+			(factory != null) ? factory : JacksonFactory.getDefaultInstance(),
+			initializer);
+	}
+
+	/**
+	 * Creates the accessor of an account, sharing data store, transport
+	 * and meter with the other accounts, see {@link CalendarAccounts}.
+	 * @param settings the settings to use, must not be <code>null</code>.
+	 * @param anAccount the name of the account, used as key of its credential, must not be <code>null</code>
+	 * @param factory the data store factory holding the credentials, must not be <code>null</code>
+	 * @param transport the HTTP transport to use, must not be <code>null</code>
+	 * @param meter the meter counting the requests, must not be <code>null</code>
+	 * @param aJsonFactory the JSON factory to use, must not be <code>null</code>
+	 * @param initializer the request initializer to use instead of OAuth, may be <code>null</code>
+	 */
+	CalendarAccess(final GoogleCalXSettings settings, final String anAccount, final CachedDataStoreFactory factory, final HttpTransport transport, final HttpMeter meter, final JsonFactory aJsonFactory, final HttpRequestInitializer initializer) {
 		this.settings = settings;
-		final File dataStoreDirectory = new File(directory, ".store/"+GoogleCalXPlugin.PLUGIN_ID);
-		fileDataStoreFactory = new FileDataStoreFactory(dataStoreDirectory);
-		jsonFactory = (factory != null) ? factory : JacksonFactory.getDefaultInstance();
-		httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+		account = anAccount;
+		dataStoreFactory = factory;
+		jsonFactory = aJsonFactory;
+		httpTransport = transport;
+		httpMeter = meter;
+		requestInitializer = initializer;
+		client = new AtomicReference<CompletableFuture<Calendar>>();
+		scheduler = new RequestScheduler(settings.getMaxConcurrency(), RequestScheduler.DEFAULT_RATE);
 	}
-	
+
 	/**
-	 * Deletes all files from the data store directory.
+	 * Returns the name of the account of this accessor.
+	 * @return the name of the account, never <code>null</code>.
 	 */
-	public void deleteCredentials() {
-		final File directory = fileDataStoreFactory.getDataDirectory();
-		boolean deleted = false;
-		if (directory != null) {
-			for (File file : directory.listFiles()) {
-				if (file.isFile()) {
-					deleted |= file.delete();
-				}
-			}
-		}
-		if (deleted) {
-			client = null;
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * Checks whether requests can be sent without asking the user to authorize,
+	 * so background tasks do not open the authorization page.
+	 * @return <code>true</code> if a credential is stored or not needed, <code>false</code> otherwise.
+	 * @throws IOException in case of error
+	 */
+	public boolean isAuthorized() throws IOException {
+		return requestInitializer != null
+			|| client.get() != null
+			|| StoredCredential.getDefaultDataStore(dataStoreFactory).containsKey(account);
+	}
+
+	/**
+	 * Deletes the stored credential of the account, so the next request
+	 * asks the user to authorize again. Other accounts are not affected.
+	 * The credential is removed from disk at once, not by the write-behind.
+	 * @throws IOException in case of error
+	 */
+	public void deleteCredentials() throws IOException {
+		final DataStore<StoredCredential> credentials = StoredCredential.getDefaultDataStore(dataStoreFactory);
+		// the client may hold the credential even if the store does not, e.g. after another process deleted it
+		client.set(null);
+		if (credentials.containsKey(account)) {
+			credentials.delete(account);
+			dataStoreFactory.flush();
 		}
 	}
 
 	/**
-	 * Lists the calendars that can be used to add events to.
+	 * Lists the calendars of the account that can be used to add events to.
 	 * @return a list with possible calendar export targets, never <code>null</code>
 	 * @throws IOException in case of error
 	 */
 	public List<CalendarTarget> getCalendarTargets() throws IOException {
 		final List<CalendarTarget> result = new ArrayList<CalendarTarget>();
-		String pageToken = null;
-		do {
-			final CalendarList calendarList = getCalendar().calendarList().list().setPageToken(pageToken).execute();
-			final List<CalendarListEntry> items = calendarList.getItems();
+		getCalendarTargets(result::addAll);
+		return result;
+	}
+
+	/**
+	 * Lists the calendars of the account page by page, so a caller can show
+	 * the first calendars while the others are still loading.
+	 * @param pages receives the calendars of each page as soon as it arrives, must not be <code>null</code>
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void getCalendarTargets(final Consumer<List<CalendarTarget>> pages) throws IOException {
+		try (PagedIterator<CalendarTarget> targets = iterateCalendarTargets()) {
+			targets.forEachPage(pages);
+		}
+	}
+
+	/**
+	 * Iterates over the calendars of the account; the first page is
+	 * requested at once, each further page while the previous one is
+	 * consumed. The iterator should be closed if not used up.
+	 * @return the iterator of the calendars, never <code>null</code>.
+	 */
+	public PagedIterator<CalendarTarget> iterateCalendarTargets() {
+		return paged(pageToken -> {
+			final Calendar.CalendarList.List request = getCalendar().calendarList().list()
+				.setPageToken(pageToken)
+				.setMaxResults(Integer.valueOf(PAGE_SIZE))
+				.setFields(FIELDS_CALENDAR_LIST);
+			final CalendarList calendarList = scheduler.execute(Lane.INTERACTIVE, request::execute);
+			final List<CalendarListEntry> items = calendarList.getItems() != null ? calendarList.getItems() : Collections.<CalendarListEntry>emptyList();
+			final List<CalendarTarget> page = new ArrayList<CalendarTarget>(items.size());
 			for (CalendarListEntry calendarListEntry : items) {
-				result.add(new CalendarTarget(calendarListEntry.getId(), calendarListEntry.getSummary()));
+				page.add(new CalendarTarget(calendarListEntry.getId(), calendarListEntry.getSummary(), account));
 			}
-			pageToken = calendarList.getNextPageToken();
-		} while (pageToken != null);
-		return result;
+			return new PagedIterator.Page<CalendarTarget>(page, calendarList.getNextPageToken());
+		});
+	}
+
+	/**
+	 * Creates an iterator over the pages of the given source. The pages are
+	 * requested on the shared executor, see {@link AsyncCall#sharedExecutor()},
+	 * not on the configurable one: an executor with few threads running the
+	 * caller could otherwise wait for itself.
+	 */
+	private static <T> PagedIterator<T> paged(final PagedIterator.Source<T> source) {
+		return new PagedIterator<T>(source, AsyncCall.sharedExecutor());
 	}
 	
 	/**
-	 * Inserts the given event into the calendar. The calendar ID supplied by
-	 * {@link GoogleCalXSettings#getCalendarTarget()} is used if set, otherwise
-	 * {@link GoogleCalXSettings#getCalendarId()} is used.
+	 * Inserts the given event into the calendar as an interactive request.
+	 * The calendar ID supplied by {@link GoogleCalXSettings#getCalendarTarget()}
+	 * is used if set, otherwise {@link GoogleCalXSettings#getCalendarId()} is used.
+	 * If an event with the ID of the given event exists already, it is updated.
 	 * @param event the event to insert into the calendar, must not be <code>null</code>
-	 * @return the inserted event
+	 * @return the inserted event; only ID and ETag are set
 	 * @throws IOException in case of error
 	 */
 	public Event addEvent(final Event event) throws IOException {
+		return addEvent(event, Lane.INTERACTIVE);
+	}
+
+	/**
+	 * Inserts the given event into the calendar without blocking, see {@link #addEvent(Event)}.
+	 * @param event the event to insert into the calendar, must not be <code>null</code>
+	 * @return the future of the inserted event; only ID and ETag are set
+	 */
+	public CompletableFuture<Event> addEventAsync(final Event event) {
+		return addEventAsync(getTargetCalendarId(), event, Lane.INTERACTIVE);
+	}
+
+	/**
+	 * Inserts the given event into the given calendar without blocking, see {@link #addEvent(Event)}.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param event the event to insert into the calendar, must not be <code>null</code>
+	 * @param lane the scheduler lane of the request, must not be <code>null</code>
+	 * @return the future of the inserted event; only ID and ETag are set
+	 */
+	public CompletableFuture<Event> addEventAsync(final String calendarId, final Event event, final Lane lane) {
+		return AsyncCall.start(getExecutor(), () -> addEvent(calendarId, event, lane));
+	}
+
+	/**
+	 * Inserts the given events into the given calendar in batches without blocking,
+	 * see {@link #addEvents(String, List, Lane)}.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param events the events to insert, must not be <code>null</code>
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the future of the events which could not be inserted, with the error
+	 */
+	public CompletableFuture<Map<Event, IOException>> addEventsAsync(final String calendarId, final List<Event> events, final Lane lane) {
+		return AsyncCall.start(getExecutor(), () -> addEvents(calendarId, events, lane));
+	}
+
+	/**
+	 * Lists the calendars of the account without blocking, see {@link #getCalendarTargets()}.
+	 * @return the future of the list with possible calendar export targets
+	 */
+	public CompletableFuture<List<CalendarTarget>> getCalendarTargetsAsync() {
+		return AsyncCall.start(getExecutor(), this::getCalendarTargets);
+	}
+
+	/**
+	 * Lists the calendars of the account page by page without blocking,
+	 * see {@link #getCalendarTargets(Consumer)}.
+	 * @param pages receives the calendars of each page on the thread running the request, must not be <code>null</code>
+	 * @return the future completing after the last page was received
+	 */
+	public CompletableFuture<Void> getCalendarTargetsAsync(final Consumer<List<CalendarTarget>> pages) {
+		return AsyncCall.start(getExecutor(), () -> {
+			getCalendarTargets(pages);
+			return null;
+		});
+	}
+
+	/**
+	 * Returns the color definitions of the calendar without blocking, see {@link #getCalendarColors()}.
+	 * @return the future of the set with the color definitions
+	 */
+	public CompletableFuture<Set<Map.Entry<String, ColorDefinition>>> getCalendarColorsAsync() {
+		return AsyncCall.start(getExecutor(), this::getCalendarColors);
+	}
+
+	/**
+	 * Returns the executor running the asynchronous requests.
+	 * @return the executor, never <code>null</code>.
+	 */
+	public Executor getExecutor() {
+		final Executor result = executor;
+		return result != null ? result : AsyncCall.sharedExecutor();
+	}
+
+	/**
+	 * Sets the executor running the asynchronous requests.
+	 * @param anExecutor the executor, <code>null</code> for the default executor.
+	 */
+	public void setExecutor(final Executor anExecutor) {
+		executor = anExecutor;
+	}
+
+	/**
+	 * Inserts the given event into the calendar, see {@link #addEvent(Event)}.
+	 * @param event the event to insert into the calendar, must not be <code>null</code>
+	 * @param lane the scheduler lane of the request, must not be <code>null</code>
+	 * @return the inserted event; only ID and ETag are set
+	 * @throws IOException in case of error
+	 */
+	public Event addEvent(final Event event, final Lane lane) throws IOException {
+		return addEvent(getTargetCalendarId(), event, lane);
+	}
+
+	/**
+	 * Inserts the given event into the given calendar, see {@link #addEvent(Event)}.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param event the event to insert into the calendar, must not be <code>null</code>
+	 * @param lane the scheduler lane of the request, must not be <code>null</code>
+	 * @return the inserted event; only ID and ETag are set
+	 * @throws IOException in case of error
+	 */
+	public Event addEvent(final String calendarId, final Event event, final Lane lane) throws IOException {
+		try {
+			return scheduler.execute(lane, getCalendar().events().insert(calendarId, event).setFields(FIELDS_INSERT)::execute);
+		} catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_CONFLICT || event.getId() == null) {
+				throw e;
+			}
+			// the program was exported before; the event may also be a deleted one, which is restored
+			event.setStatus("confirmed");
+			return scheduler.execute(lane, getCalendar().events().update(calendarId, event.getId(), event).setFields(FIELDS_INSERT)::execute);
+		}
+	}
+
+	/**
+	 * Inserts the given streamed event into the given calendar. Like
+	 * {@link #addEvent(String, Event, Lane)}, the event is updated if it
+	 * exists already, but it is written straight into the request body.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param event the event to insert into the calendar, see {@link #createStreamedEvent(Program)}; must not be <code>null</code>
+	 * @param lane the scheduler lane of the request, must not be <code>null</code>
+	 * @return the inserted event; only ID and ETag are set
+	 * @throws IOException in case of error
+	 */
+	public Event addEvent(final String calendarId, final StreamedEvent event, final Lane lane) throws IOException {
+		final Calendar calendar = getCalendar();
+		final Map<String, Object> parameters = new HashMap<String, Object>(4);
+		parameters.put("calendarId", calendarId);
+		try {
+			return scheduler.execute(lane, () -> send(calendar, "POST", "calendars/{calendarId}/events", parameters, event));
+		} catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() != HttpStatusCodes.STATUS_CODE_CONFLICT || event.getId() == null) {
+				throw e;
+			}
+			// the program was exported before; the event may also be a deleted one, which is restored
+			parameters.put("eventId", event.getId());
+			return scheduler.execute(lane, () -> send(calendar, "PUT", "calendars/{calendarId}/events/{eventId}", parameters, event));
+		}
+	}
+
+	private Event send(final Calendar calendar, final String method, final String path, final Map<String, Object> parameters, final HttpContent content) throws IOException {
+		final GenericUrl url = new GenericUrl(UriTemplate.expand(calendar.getBaseUrl(), path, parameters, true));
+		url.set("fields", FIELDS_INSERT);
+		final HttpRequest request = calendar.getRequestFactory().buildRequest(method, url, content);
+		// as done by the client for its own requests: gzipped body, and gzipped response due to the user agent
+		request.getHeaders().setUserAgent(calendar.getApplicationName() + " " + AbstractGoogleClientRequest.USER_AGENT_SUFFIX);
+		request.setEncoding(new GZipEncoding());
+		request.setParser(calendar.getObjectParser());
+		request.setThrowExceptionOnExecuteError(false);
+		final HttpResponse response = request.execute();
+		if (!response.isSuccessStatusCode()) {
+			throw GoogleJsonResponseException.from(jsonFactory, response);
+		}
+		return response.parseAs(Event.class);
+	}
+
+	/**
+	 * Deletes the events of the given programs from the calendar. The events
+	 * are identified by their ID derived from the program, see {@link #getEventId(Program)},
+	 * and deleted in batches of up to 50 requests, from the calendar the
+	 * program is routed to, see {@link #getTargetCalendarId(Program)}. Events which do not exist
+	 * (anymore) are considered deleted.
+	 * @param programs the programs to delete the events of, must not be <code>null</code>
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the programs whose events could not be deleted, with the error; never <code>null</code>.
+	 * @throws IOException in case a batch request fails as a whole
+	 */
+	public Map<Program, IOException> deleteEvents(final Collection<Program> programs, final Lane lane) throws IOException {
+		final RoutingRules rules = settings.getRoutingRules();
+		final String defaultId = getTargetCalendarId();
+		final Calendar calendar = getCalendar();
+		final Map<Program, IOException> failures = new LinkedHashMap<Program, IOException>();
+		final List<Program> list = new ArrayList<Program>(programs);
+		for (int i = 0; i < list.size(); i += MAX_BATCH) {
+			final BatchRequest batch = calendar.batch();
+			for (final Program program : list.subList(i, Math.min(list.size(), i + MAX_BATCH))) {
+				final String eventId = getEventId(program);
+				if (eventId == null) {
+					failures.put(program, new IOException("no event ID for " + program.getTitle()));
+					continue;
+				}
+				final RoutingRules.Route route = rules.route(program);
+				final String calendarId = route != null && route.getCalendarId() != null ? route.getCalendarId() : defaultId;
+				calendar.events().delete(calendarId, eventId).queue(batch, new JsonBatchCallback<Void>() {
+					@Override
+					public void onSuccess(final Void result, final HttpHeaders headers) {
+						// deleted
+					}
+
+					@Override
+					public void onFailure(final GoogleJsonError error, final HttpHeaders headers) {
+						if (error.getCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND && error.getCode() != STATUS_GONE) {
+							failures.put(program, new IOException(error.getCode() + " " + error.getMessage()));
+						}
+					}
+				});
+			}
+			executeBatch(batch, lane);
+		}
+		return failures;
+	}
+
+	/**
+	 * Deletes the events with the given IDs from a calendar in batches of up
+	 * to 50 requests. Events which do not exist (anymore) are considered deleted.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param eventIds the IDs of the events to delete, must not be <code>null</code>
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the IDs of the events which could not be deleted, with the error; never <code>null</code>.
+	 * @throws IOException in case a batch request fails as a whole
+	 */
+	public Map<String, IOException> deleteEvents(final String calendarId, final List<String> eventIds, final Lane lane) throws IOException {
+		final Calendar calendar = getCalendar();
+		final Map<String, IOException> failures = new LinkedHashMap<String, IOException>();
+		for (int i = 0; i < eventIds.size(); i += MAX_BATCH) {
+			final BatchRequest batch = calendar.batch();
+			for (final String eventId : eventIds.subList(i, Math.min(eventIds.size(), i + MAX_BATCH))) {
+				calendar.events().delete(calendarId, eventId).queue(batch, new JsonBatchCallback<Void>() {
+					@Override
+					public void onSuccess(final Void result, final HttpHeaders headers) {
+						// deleted
+					}
+
+					@Override
+					public void onFailure(final GoogleJsonError error, final HttpHeaders headers) {
+						if (error.getCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND && error.getCode() != STATUS_GONE) {
+							failures.put(eventId, new IOException(error.getCode() + " " + error.getMessage()));
+						}
+					}
+				});
+			}
+			executeBatch(batch, lane);
+		}
+		return failures;
+	}
+
+	/**
+	 * Inserts the given events into the given calendar in batches of up to
+	 * 50 requests. Events with an ID that exists already are updated, as
+	 * by {@link #addEvent(Event)}, with one batch of updates per batch of
+	 * inserts.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param events the events to insert, must not be <code>null</code>
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the events which could not be inserted, with the error; never <code>null</code>.
+	 * @throws IOException in case a batch request fails as a whole
+	 */
+	public Map<Event, IOException> addEvents(final String calendarId, final List<Event> events, final Lane lane) throws IOException {
+		final Calendar calendar = getCalendar();
+		final Map<Event, IOException> failures = new LinkedHashMap<Event, IOException>();
+		for (int i = 0; i < events.size(); i += MAX_BATCH) {
+			final List<Event> existing = new ArrayList<Event>();
+			final BatchRequest inserts = calendar.batch();
+			for (final Event event : events.subList(i, Math.min(events.size(), i + MAX_BATCH))) {
+				calendar.events().insert(calendarId, event).setFields(FIELDS_INSERT).queue(inserts, new JsonBatchCallback<Event>() {
+					@Override
+					public void onSuccess(final Event result, final HttpHeaders headers) {
+						// inserted
+					}
+
+					@Override
+					public void onFailure(final GoogleJsonError error, final HttpHeaders headers) {
+						if (error.getCode() == HttpStatusCodes.STATUS_CODE_CONFLICT && event.getId() != null) {
+							existing.add(event);
+						} else {
+							failures.put(event, new IOException(error.getCode() + " " + error.getMessage()));
+						}
+					}
+				});
+			}
+			executeBatch(inserts, lane);
+			if (!existing.isEmpty()) {
+				final BatchRequest updates = calendar.batch();
+				for (final Event event : existing) {
+					// the program was exported before; the event may also be a deleted one, which is restored
+					event.setStatus("confirmed");
+					calendar.events().update(calendarId, event.getId(), event).setFields(FIELDS_INSERT).queue(updates, new JsonBatchCallback<Event>() {
+						@Override
+						public void onSuccess(final Event result, final HttpHeaders headers) {
+							// updated
+						}
+
+						@Override
+						public void onFailure(final GoogleJsonError error, final HttpHeaders headers) {
+							failures.put(event, new IOException(error.getCode() + " " + error.getMessage()));
+						}
+					});
+				}
+				executeBatch(updates, lane);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * Patches the given events of a calendar in batches of up to 50 requests,
+	 * replacing summary, description, reminders, color and extended properties;
+	 * start and end are left as they are. Events which do not exist (anymore)
+	 * are skipped, they are not restored.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>
+	 * @param events the events as created by {@link #createEvent(Program)}, must not be <code>null</code>
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the events which could not be patched, with the error; never <code>null</code>.
+	 * @throws IOException in case a batch request fails as a whole
+	 */
+	public Map<Event, IOException> patchEvents(final String calendarId, final List<Event> events, final Lane lane) throws IOException {
+		final Calendar calendar = getCalendar();
+		final Map<Event, IOException> failures = new LinkedHashMap<Event, IOException>();
+		for (int i = 0; i < events.size(); i += MAX_BATCH) {
+			final BatchRequest batch = calendar.batch();
+			for (final Event event : events.subList(i, Math.min(events.size(), i + MAX_BATCH))) {
+				if (event.getId() == null) {
+					failures.put(event, new IOException("no event ID for " + event.getSummary()));
+					continue;
+				}
+				final Event patch = new Event()
+					.setSummary(event.getSummary())
+					.setDescription(event.getDescription())
+					.setReminders(event.getReminders())
+					.setColorId(event.getColorId())
+					.setExtendedProperties(event.getExtendedProperties());
+				calendar.events().patch(calendarId, event.getId(), patch).setFields(FIELDS_INSERT).queue(batch, new JsonBatchCallback<Event>() {
+					@Override
+					public void onSuccess(final Event result, final HttpHeaders headers) {
+						// patched
+					}
+
+					@Override
+					public void onFailure(final GoogleJsonError error, final HttpHeaders headers) {
+						if (error.getCode() != HttpStatusCodes.STATUS_CODE_NOT_FOUND && error.getCode() != STATUS_GONE) {
+							failures.put(event, new IOException(error.getCode() + " " + error.getMessage()));
+						}
+					}
+				});
+			}
+			executeBatch(batch, lane);
+		}
+		return failures;
+	}
+
+	private void executeBatch(final BatchRequest batch, final Lane lane) throws IOException {
+		if (batch.size() > 0) {
+			scheduler.execute(lane, () -> {
+				batch.execute();
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Returns the ID of the calendar event of the given program. The ID is
+	 * derived from the unique ID of the program, so the event can be found
+	 * again without searching the calendar. It is the base32hex encoded SHA-1
+	 * hash of the unique ID, as the Calendar API only accepts the characters
+	 * <code>a-v</code> and <code>0-9</code> in event IDs.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the event ID, or <code>null</code> if the program has no unique ID.
+	 */
+	public static String getEventId(final Program program) {
+		final String uniqueId = program.getUniqueID();
+		if (uniqueId == null) {
+			return null;
+		}
+		final byte[] hash;
+		try {
+			hash = MessageDigest.getInstance("SHA-1").digest(uniqueId.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		// 160 bits are exactly 32 characters of 5 bits
+		final char[] result = new char[hash.length * 8 / 5];
+		int buffer = 0;
+		int bits = 0;
+		int pos = 0;
+		for (byte b : hash) {
+			buffer = (buffer << 8) | (b & 0xff);
+			bits += 8;
+			while (bits >= 5) {
+				bits -= 5;
+				result[pos++] = BASE32HEX[(buffer >>> bits) & 0x1f];
+			}
+		}
+		return new String(result);
+	}
+
+	/**
+	 * Returns the ID of the calendar to export to. The calendar ID supplied by
+	 * {@link GoogleCalXSettings#getCalendarTarget()} is used if set, otherwise
+	 * {@link GoogleCalXSettings#getCalendarId()} is used.
+	 * @return the ID of the calendar to export to.
+	 */
+	public String getTargetCalendarId() {
 		final CalendarTarget target = settings.getCalendarTarget();
 		String id = null;
 		if (target != null) {
@@ -157,7 +705,65 @@ public class CalendarAccess {
 		if (id == null || id.length() == 0) {
 			id = settings.getCalendarId();
 		}
-		return getCalendar().events().insert(id, event).execute();
+		return id;
+	}
+
+	/**
+	 * Returns the account of the export target, see {@link GoogleCalXSettings#getCalendarTarget()}.
+	 * @return the name of the account, never <code>null</code>.
+	 */
+	public String getTargetAccount() {
+		final CalendarTarget target = settings.getCalendarTarget();
+		return target != null && target.getAccount() != null ? target.getAccount() : settings.getAccount();
+	}
+
+	/**
+	 * Returns the IDs of all calendars of this account programs are exported
+	 * to: the export target, see {@link #getTargetCalendarId()}, if it belongs
+	 * to this account, followed by the calendars of this account named by the
+	 * routing rules, see {@link RoutingRules#getCalendarTargets(String)}.
+	 * @return the calendar IDs, without duplicates; never <code>null</code>.
+	 */
+	public Set<String> getTargetCalendarIds() {
+		final String targetAccount = getTargetAccount();
+		final Set<String> result = new LinkedHashSet<String>();
+		if (account.equals(targetAccount)) {
+			result.add(getTargetCalendarId());
+		}
+		for (CalendarTarget target : settings.getRoutingRules().getCalendarTargets(targetAccount)) {
+			if (account.equals(target.getAccount())) {
+				result.add(target.getId());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the calendar to export the given program to, together with its
+	 * account: the calendar of the first matching {@link GoogleCalXSettings#getRoutingRules() routing rule}
+	 * naming one, otherwise the export target.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the calendar to export the program to, never <code>null</code>.
+	 */
+	public CalendarTarget getTarget(final Program program) {
+		final RoutingRules.Route route = settings.getRoutingRules().route(program);
+		if (route != null && route.getCalendarId() != null) {
+			return new CalendarTarget(route.getCalendarId(), route.getCalendarId(), route.getAccount() != null ? route.getAccount() : getTargetAccount());
+		}
+		final String id = getTargetCalendarId();
+		return new CalendarTarget(id, id, getTargetAccount());
+	}
+
+	/**
+	 * Returns the ID of the calendar to export the given program to: the
+	 * calendar of the first matching {@link GoogleCalXSettings#getRoutingRules() routing rule}
+	 * naming one, otherwise {@link #getTargetCalendarId()}.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the ID of the calendar to export the program to.
+	 */
+	public String getTargetCalendarId(final Program program) {
+		final RoutingRules.Route route = settings.getRoutingRules().route(program);
+		return route != null && route.getCalendarId() != null ? route.getCalendarId() : getTargetCalendarId();
 	}
 
 	/**
@@ -166,22 +772,72 @@ public class CalendarAccess {
 	 * @throws IOException in case of error
 	 */
 	public Set<Map.Entry<String, ColorDefinition>> getCalendarColors() throws IOException {
-		final Colors colors = getCalendar().colors().get().execute();
+		final Colors colors = scheduler.execute(Lane.INTERACTIVE, getCalendar().colors().get().setFields(FIELDS_COLORS)::execute);
 		return colors.getEvent().entrySet();
 	}
 
+	/**
+	 * Returns the directory the credentials and other state files of the
+	 * accessor are kept in.
+	 * @return the directory, never <code>null</code>.
+	 */
+	File getDataDirectory() {
+		return dataStoreFactory.getDataDirectory();
+	}
+
+	/**
+	 * Returns the scheduler all requests pass. It holds the request budget
+	 * shared by all callers.
+	 * @return the scheduler, never <code>null</code>.
+	 */
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Replaces the scheduler, e.g. to use a different request budget.
+	 * @param aScheduler the scheduler to use, must not be <code>null</code>.
+	 */
+	void setScheduler(final RequestScheduler aScheduler) {
+		scheduler = aScheduler;
+	}
+
+	/**
+	 * Returns the meter of all calendar requests. Can be used to
+	 * read the number of requests and bytes transferred.
+	 * @return the meter, never <code>null</code>.
+	 */
+	public HttpMeter getMeter() {
+		return httpMeter;
+	}
+
 	/**
 	 * Creates an event out of the given program. The settings are used
 	 * for the calendar ID and to determine wether to use the calendar
-	 * defaults or the ones configured in the settings.
+	 * defaults or the ones configured in the settings; a matching routing
+	 * rule overrides reminder and color, see {@link GoogleCalXSettings#getRoutingRules()}. The event is tagged
+	 * with the unique ID of the program and the hash of its content, see
+	 * {@link #getContentHash(Program)}, in private extended properties; see {@link #getExportedPrograms(String, long, long, Lane, Consumer)}.
 	 * @param program the program supplying the event information.
 	 * @return an event that can be inserted via {@link #addEvent(Event)}
 	 */
 	public Event createEvent(final Program program) {
+		final ExportEvents.EventConstruction trace = new ExportEvents.EventConstruction();
+		trace.begin();
+		final StreamedEvent.Template template = getEventTemplate();
+		final RoutingRules.Route route = template.getRules().route(program);
 		final Event event = new Event();
+		event.setId(getEventId(program));
 		event.setSummary(resolve(program, settings.getNotificationTitle()));
 		event.setDescription(resolve(program, settings.getNotificationBody()));
-		final NotificationTypes notificationType = settings.getNotificationType();
+		if (program.getUniqueID() != null) {
+			final Map<String, String> properties = new HashMap<String, String>(4);
+			properties.put(PROPERTY_TAG, TAG_EXPORTED);
+			properties.put(PROPERTY_PROGRAM, program.getUniqueID());
+			properties.put(PROPERTY_HASH, StreamedEvent.hash(event.getSummary(), event.getDescription(), template.getSkeleton(route).getValue()));
+			event.setExtendedProperties(new Event.ExtendedProperties().setPrivate(properties));
+		}
+		final NotificationTypes notificationType = route != null && route.getNotificationType() != null ? route.getNotificationType() : settings.getNotificationType();
 		final Reminders reminders = new Reminders();
 		if (!NotificationTypes.none.equals(notificationType)) {
 			if (NotificationTypes.defaults.equals(notificationType)) {
@@ -189,8 +845,8 @@ public class CalendarAccess {
 			} else {
 				reminders.setUseDefault(Boolean.FALSE);
 				final EventReminder r = new EventReminder();
-				r.setMinutes(Integer.valueOf(settings.getNotificationTime()));
-				r.setMethod(settings.getNotificationType().name());
+				r.setMinutes(Integer.valueOf(route != null && route.getNotificationTime() != null ? route.getNotificationTime() : settings.getNotificationTime()));
+				r.setMethod(notificationType.name());
 				reminders.setOverrides(Collections.singletonList(r));
 				event.setColorId(settings.getNotificationColor().getId());
 			}
@@ -198,63 +854,461 @@ public class CalendarAccess {
 			// no reminders at all
 			reminders.setUseDefault(Boolean.FALSE);
 		}
+		if (route != null && route.getColorId() != null) {
+			event.setColorId(route.getColorId());
+		}
 		event.setReminders(reminders);
 		// seems there's a time offset problem for me for UK data (GMT+1 vs. UTC?) - should I use local time zone always?
 		//final TimeZone timeZone = program.getChannel().getTimeZone();
 		final TimeZone timeZone = TimeZone.getDefault();
+		final long startTime = getStartTime(program);
+		final DateTime start = new DateTime(new Date(startTime), timeZone);
+		event.setStart(new EventDateTime().setDateTime(start));
+		final DateTime end = new DateTime(new Date(getEndTime(program, startTime)), timeZone);
+		event.setEnd(new EventDateTime().setDateTime(end));
+		trace.commitInContext();
+		return event;
+	}
+
+	/**
+	 * Creates the event of the given program like {@link #createEvent(Program)},
+	 * but ready to be written straight into the body of an insert request,
+	 * see {@link #addEvent(String, StreamedEvent, Lane)}. Reminders and color
+	 * are serialized once per settings and routing rule, not per program.
+	 * @param program the program supplying the event information.
+	 * @return the event, never <code>null</code>.
+	 */
+	public StreamedEvent createStreamedEvent(final Program program) {
+		final ExportEvents.EventConstruction trace = new ExportEvents.EventConstruction();
+		trace.begin();
+		final StreamedEvent.Template template = getEventTemplate();
+		// seems there's a time offset problem for me for UK data, see createEvent
+		final TimeZone timeZone = TimeZone.getDefault();
+		final long startTime = getStartTime(program);
+		final StreamedEvent event = new StreamedEvent(
+			getEventId(program),
+			program.getUniqueID(),
+			resolve(program, settings.getNotificationTitle()),
+			resolve(program, settings.getNotificationBody()),
+			new DateTime(new Date(startTime), timeZone).toStringRfc3339(),
+			new DateTime(new Date(getEndTime(program, startTime)), timeZone).toStringRfc3339(),
+			template.getSkeleton(template.getRules().route(program)));
+		trace.commitInContext();
+		return event;
+	}
+
+	/**
+	 * Returns the hash of the content of the event of the given program as
+	 * {@link #createEvent(Program)} would render it with the current
+	 * settings: summary, description, reminders and color. Exported events
+	 * carry this hash in the private extended property {@link #PROPERTY_HASH}.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the hash, never <code>null</code>.
+	 */
+	public String getContentHash(final Program program) {
+		final StreamedEvent.Template template = getEventTemplate();
+		return StreamedEvent.hash(
+			resolve(program, settings.getNotificationTitle()),
+			resolve(program, settings.getNotificationBody()),
+			template.getSkeleton(template.getRules().route(program)).getValue());
+	}
+
+	/**
+	 * Returns a hash of the settings the content of events is rendered from:
+	 * title and body templates, reminders, color and routing rules. It changes
+	 * whenever exported events may need to be rendered again.
+	 * @return the hash, never <code>null</code>.
+	 */
+	public String getRenderFingerprint() {
+		return StreamedEvent.hash(
+			settings.getNotificationTitle(),
+			settings.getNotificationBody(),
+			settings.getNotificationType().name(),
+			settings.getNotificationTime(),
+			settings.getNotificationColor().getId(),
+			settings.getRoutingRules().getSource());
+	}
+
+	private StreamedEvent.Template getEventTemplate() {
+		StreamedEvent.Template template = eventTemplate;
+		if (template == null || !template.isFor(settings)) {
+			template = new StreamedEvent.Template(settings);
+			eventTemplate = template;
+		}
+		return template;
+	}
+
+	/**
+	 * Returns the start time of the program in the local time zone.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the start time of the program in milliseconds since the epoch.
+	 */
+	public long getStartTime(final Program program) {
 		final devplugin.Date programDate = program.getDate();
-		final java.util.Calendar jcal = java.util.Calendar.getInstance(timeZone);
+		final java.util.Calendar jcal = java.util.Calendar.getInstance(TimeZone.getDefault());
 		jcal.setTimeInMillis(0);
 		jcal.set(java.util.Calendar.YEAR, programDate.getYear());
 		jcal.set(java.util.Calendar.MONTH, programDate.getMonth()-1);
 		jcal.set(java.util.Calendar.DAY_OF_MONTH, programDate.getDayOfMonth());
 		jcal.set(java.util.Calendar.HOUR_OF_DAY, program.getHours());
 		jcal.set(java.util.Calendar.MINUTE, program.getMinutes());
-		final Date startDate = jcal.getTime();
+		return jcal.getTimeInMillis();
+	}
+
+	/**
+	 * Returns the end time of the program; programs last at least one minute.
+	 * @param program the program, must not be <code>null</code>.
+	 * @param startTime the start time as returned by {@link #getStartTime(Program)}
+	 * @return the end time of the program in milliseconds since the epoch.
+	 */
+	public long getEndTime(final Program program, final long startTime) {
 		final long minutes = Math.max(1L, program.getLength());
-		final Date endDate = new Date(startDate.getTime() + minutes*60L*1000L);
-		final DateTime start = new DateTime(startDate, timeZone);
-		event.setStart(new EventDateTime().setDateTime(start));
-		final DateTime end = new DateTime(endDate, timeZone);
-		event.setEnd(new EventDateTime().setDateTime(end));
-		return event;
+		return startTime + minutes*60L*1000L;
+	}
+
+	/**
+	 * Determines which of the given programs collide with existing appointments
+	 * of the calendar each of them is routed to, see {@link #getTargetCalendarId(Program)}.
+	 * Costs one free/busy query for up to 60 days between the earliest and
+	 * the latest program, covering all calendars programs are exported to.
+	 * @param programs the programs to check, must not be <code>null</code>.
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the colliding programs in the order given, never <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	public Set<Program> findConflicts(final Collection<Program> programs, final Lane lane) throws IOException {
+		if (programs.isEmpty()) {
+			return Collections.emptySet();
+		}
+		final long[] starts = new long[programs.size()];
+		long from = Long.MAX_VALUE;
+		long to = Long.MIN_VALUE;
+		int i = 0;
+		for (Program program : programs) {
+			starts[i] = getStartTime(program);
+			from = Math.min(from, starts[i]);
+			to = Math.max(to, getEndTime(program, starts[i]));
+			i++;
+		}
+		final Map<String, IntervalIndex<Void>> busy = getBusyTimes(getTargetCalendarIds(), from, to, lane);
+		final Set<Program> result = new LinkedHashSet<Program>();
+		i = 0;
+		for (Program program : programs) {
+			final IntervalIndex<Void> times = busy.get(getTargetCalendarId(program));
+			if (times != null && times.overlaps(starts[i], getEndTime(program, starts[i]))) {
+				result.add(program);
+			}
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the busy times of the given calendars in the given time span,
+	 * using as few free/busy queries as the API allows: one query covers
+	 * up to 60 days of up to 50 calendars.
+	 * @param calendarIds the IDs of the calendars, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return an index of the busy times per calendar ID, never <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	public Map<String, IntervalIndex<Void>> getBusyTimes(final Collection<String> calendarIds, final long from, final long to, final Lane lane) throws IOException {
+		final Map<String, IntervalIndex.Builder<Void>> builders = new LinkedHashMap<String, IntervalIndex.Builder<Void>>();
+		for (String calendarId : calendarIds) {
+			builders.put(calendarId, new IntervalIndex.Builder<Void>());
+		}
+		final List<String> ids = new ArrayList<String>(builders.keySet());
+		for (int i = 0; i < ids.size(); i += MAX_FREEBUSY_CALENDARS) {
+			final List<FreeBusyRequestItem> items = new ArrayList<FreeBusyRequestItem>();
+			for (String calendarId : ids.subList(i, Math.min(ids.size(), i + MAX_FREEBUSY_CALENDARS))) {
+				items.add(new FreeBusyRequestItem().setId(calendarId));
+			}
+			for (long start = from; start < to; start += MAX_FREEBUSY_SPAN) {
+				final FreeBusyRequest query = new FreeBusyRequest()
+					.setTimeMin(new DateTime(start))
+					.setTimeMax(new DateTime(Math.min(to, start + MAX_FREEBUSY_SPAN)))
+					.setItems(items);
+				final FreeBusyResponse response = scheduler.execute(lane, getCalendar().freebusy().query(query).setFields(FIELDS_FREEBUSY)::execute);
+				for (FreeBusyRequestItem item : items) {
+					final String calendarId = item.getId();
+					final FreeBusyCalendar busy = response.getCalendars() != null ? response.getCalendars().get(calendarId) : null;
+					if (busy == null) {
+						throw new IOException("no free/busy information for " + calendarId);
+					}
+					if (busy.getErrors() != null && !busy.getErrors().isEmpty()) {
+						throw new IOException("free/busy query failed for " + calendarId + ": " + busy.getErrors().get(0).getReason());
+					}
+					if (busy.getBusy() != null) {
+						for (TimePeriod period : busy.getBusy()) {
+							builders.get(calendarId).add(period.getStart().getValue(), period.getEnd().getValue(), null);
+						}
+					}
+				}
+			}
+		}
+		final Map<String, IntervalIndex<Void>> result = new LinkedHashMap<String, IntervalIndex<Void>>();
+		for (Map.Entry<String, IntervalIndex.Builder<Void>> entry : builders.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().build());
+		}
+		return result;
 	}
 
 	/**
-	 * Returns the calendar client.
+	 * Lists the events of a calendar overlapping the given time span page by
+	 * page. Recurring events are expanded into their instances; only summary,
+	 * start, end and transparency of the events are requested.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @param pages receives the events of each page as soon as it arrives, must not be <code>null</code>
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void getEvents(final String calendarId, final long from, final long to, final Lane lane, final Consumer<List<Event>> pages) throws IOException {
+		listEvents(calendarId, from, to, lane, null, FIELDS_EVENTS, pages);
+	}
+
+	/**
+	 * Lists the unique IDs of the programs exported to a calendar whose
+	 * events overlap the given time span, page by page. Only events tagged
+	 * by {@link #createEvent(Program)} are listed, with one ranged query.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @param pages receives the program IDs of each page as soon as it arrives, must not be <code>null</code>
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void getExportedPrograms(final String calendarId, final long from, final long to, final Lane lane, final Consumer<List<String>> pages) throws IOException {
+		listEvents(calendarId, from, to, lane, PROPERTY_TAG + '=' + TAG_EXPORTED, FIELDS_EXPORTED, events -> {
+			final List<String> page = new ArrayList<String>(events.size());
+			for (Event event : events) {
+				final Event.ExtendedProperties properties = event.getExtendedProperties();
+				final String programId = properties != null && properties.getPrivate() != null ? properties.getPrivate().get(PROPERTY_PROGRAM) : null;
+				if (programId != null) {
+					page.add(programId);
+				}
+			}
+			pages.accept(page);
+		});
+	}
+
+	/**
+	 * Lists the programs exported to a calendar whose events overlap the
+	 * given time span like {@link #getExportedPrograms(String, long, long, Lane, Consumer)},
+	 * together with the content hash stored in the events.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @param pages receives the program IDs of each page mapped to the content hash, see
+	 * {@link #getContentHash(Program)}, as soon as it arrives; the hash is empty for events
+	 * exported without one. Must not be <code>null</code>
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void getExportedHashes(final String calendarId, final long from, final long to, final Lane lane, final Consumer<Map<String, String>> pages) throws IOException {
+		listEvents(calendarId, from, to, lane, PROPERTY_TAG + '=' + TAG_EXPORTED, FIELDS_EXPORTED, events -> {
+			final Map<String, String> page = new LinkedHashMap<String, String>(2 * events.size());
+			for (Event event : events) {
+				final Event.ExtendedProperties properties = event.getExtendedProperties();
+				final Map<String, String> values = properties != null ? properties.getPrivate() : null;
+				if (values != null && values.get(PROPERTY_PROGRAM) != null) {
+					final String hash = values.get(PROPERTY_HASH);
+					page.put(values.get(PROPERTY_PROGRAM), hash != null ? hash : "");
+				}
+			}
+			pages.accept(page);
+		});
+	}
+
+	/**
+	 * Lists the events exported to a calendar which overlap the given time
+	 * span, page by page. Only ID and end of the events are requested.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @param pages receives the events of each page as soon as it arrives, must not be <code>null</code>
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void getExportedEvents(final String calendarId, final long from, final long to, final Lane lane, final Consumer<List<Event>> pages) throws IOException {
+		listEvents(calendarId, from, to, lane, PROPERTY_TAG + '=' + TAG_EXPORTED, FIELDS_EXPORTED_TIMES, pages);
+	}
+
+	/**
+	 * Iterates over the events of a calendar overlapping the given time span
+	 * like {@link #getEvents(String, long, long, Lane, Consumer)}; the first
+	 * page is requested at once, each further page while the previous one is
+	 * consumed. The iterator should be closed if not used up.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param from the start of the time span, in milliseconds since the epoch
+	 * @param to the end of the time span, in milliseconds since the epoch
+	 * @param lane the scheduler lane of the requests, must not be <code>null</code>
+	 * @return the iterator of the events, never <code>null</code>.
+	 */
+	public PagedIterator<Event> iterateEvents(final String calendarId, final long from, final long to, final Lane lane) {
+		return iterateEvents(calendarId, from, to, lane, null, FIELDS_EVENTS);
+	}
+
+	private void listEvents(final String calendarId, final long from, final long to, final Lane lane, final String privateProperty, final String fields, final Consumer<List<Event>> pages) throws IOException {
+		try (PagedIterator<Event> events = iterateEvents(calendarId, from, to, lane, privateProperty, fields)) {
+			events.forEachPage(pages);
+		}
+	}
+
+	private PagedIterator<Event> iterateEvents(final String calendarId, final long from, final long to, final Lane lane, final String privateProperty, final String fields) {
+		return paged(pageToken -> {
+			final Calendar.Events.List request = getCalendar().events().list(calendarId)
+				.setTimeMin(new DateTime(from))
+				.setTimeMax(new DateTime(to))
+				.setSingleEvents(Boolean.TRUE)
+				.setPageToken(pageToken)
+				.setMaxResults(Integer.valueOf(EVENTS_PAGE_SIZE))
+				.setFields(fields);
+			if (privateProperty != null) {
+				request.setPrivateExtendedProperty(Collections.singletonList(privateProperty));
+			}
+			final Events events = scheduler.execute(lane, request::execute);
+			return new PagedIterator.Page<Event>(events.getItems(), events.getNextPageToken());
+		});
+	}
+
+	/**
+	 * Returns the calendar client, creating it on first use. Only one
+	 * caller creates the client; concurrent callers wait for it.
 	 * @return the calendar client.
 	 * @throws IOException in case of error
 	 */
 	protected Calendar getCalendar() throws IOException {
-		if (client == null) {
-			final ZipInputStream zis = new ZipInputStream(CalendarAccess.class.getResourceAsStream("/googlecalxplugin/json"));
-			if (0xb0b61cc5L != zis.getNextEntry().getCrc()) {
-				throw new IllegalStateException();
+		while (true) {
+			final CompletableFuture<Calendar> current = client.get();
+			if (current != null) {
+				return await(current);
 			}
-			final GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(
-				jsonFactory, 
-				new InputStreamReader(zis));
-			if (clientSecrets.getDetails().getClientId().startsWith(STR_ENTER)
-					|| clientSecrets.getDetails().getClientSecret().startsWith(STR_ENTER)) {
-				throw new IllegalStateException("Client secrets unavailable or invalid");
+			final CompletableFuture<Calendar> created = new CompletableFuture<Calendar>();
+			if (client.compareAndSet(null, created)) {
+				try {
+					final Calendar result = createCalendar();
+					created.complete(result);
+					return result;
+				} catch (final Throwable t) {
+					// let the next call try again
+					client.compareAndSet(created, null);
+					created.completeExceptionally(t);
+					throw t;
+				}
 			}
-			
-			final GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-				httpTransport,
-				jsonFactory,
-				clientSecrets,
-				Arrays.asList(CalendarScopes.CALENDAR_EVENTS, CalendarScopes.CALENDAR_READONLY)
-				).setDataStoreFactory(fileDataStoreFactory).build();
-			final Credential credential = new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
-			client = new Calendar.Builder(
-				httpTransport, 
-				jsonFactory, 
-				credential).setApplicationName(GoogleCalXPlugin.GOOGLE_APPLICATION_ID).build();
-			if (client == null) {
-				throw new IllegalStateException("Cannot build client");
+		}
+	}
+
+	/**
+	 * Creates the calendar client, authorizing if needed.
+	 * @return the calendar client.
+	 * @throws IOException in case of error
+	 */
+	private Calendar createCalendar() throws IOException {
+		final Calendar result = new Calendar.Builder(
+			httpTransport, 
+			jsonFactory, 
+			httpMeter.metered(withTimeouts(requestInitializer != null ? requestInitializer : traceRefresh(authorize()))))
+			// request bodies are gzipped by the client, "gzip" in the user agent enables gzipped responses
+			.setApplicationName(GoogleCalXPlugin.GOOGLE_APPLICATION_ID + " (gzip)")
+			.build();
+		if (result == null) {
+			throw new IllegalStateException("Cannot build client");
+		}
+		return result;
+	}
+
+	/**
+	 * Waits for the client created by another caller.
+	 */
+	private static Calendar await(final CompletableFuture<Calendar> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for authorization");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw new IOException(cause.getMessage(), cause);
+			} else if (cause instanceof RuntimeException) {
+				throw new IllegalStateException(cause.getMessage(), cause);
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
 			}
+			throw new IllegalStateException(cause);
 		}
-		return client;
+	}
+
+	/**
+	 * Obtains the OAuth credential, from the data store or by letting the user authorize access.
+	 * @return the credential, never <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	private Credential authorize() throws IOException {
+		final ZipInputStream zis = new ZipInputStream(CalendarAccess.class.getResourceAsStream("/googlecalxplugin/json"));
+		if (0xb0b61cc5L != zis.getNextEntry().getCrc()) {
+			throw new IllegalStateException();
+		}
+		final GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(
+			jsonFactory, 
+			new InputStreamReader(zis));
+		if (clientSecrets.getDetails().getClientId().startsWith(STR_ENTER)
+				|| clientSecrets.getDetails().getClientSecret().startsWith(STR_ENTER)) {
+			throw new IllegalStateException("Client secrets unavailable or invalid");
+		}
+		
+		final GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+			httpTransport,
+			jsonFactory,
+			clientSecrets,
+			Arrays.asList(CalendarScopes.CALENDAR_EVENTS, CalendarScopes.CALENDAR_READONLY)
+			).setDataStoreFactory(dataStoreFactory).build();
+		final ExportEvents.TokenAcquisition trace = new ExportEvents.TokenAcquisition();
+		trace.begin();
+		final Credential result = new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize(account);
+		trace.commitInContext();
+		return result;
+	}
+
+	/**
+	 * Bounds the time of each request by the timeouts of the settings,
+	 * so a hanging connection does not block an export slot. The settings
+	 * are read per request, so changed timeouts apply at once.
+	 * @param initializer the initializer to delegate to, must not be <code>null</code>.
+	 * @return the initializer setting the timeouts.
+	 */
+	private HttpRequestInitializer withTimeouts(final HttpRequestInitializer initializer) {
+		return request -> {
+			initializer.initialize(request);
+			request.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(settings.getConnectTimeout()));
+			request.setReadTimeout((int) TimeUnit.SECONDS.toMillis(settings.getReadTimeout()));
+		};
+	}
+
+	/**
+	 * Returns a request initializer using the given credential, which records
+	 * a token acquisition event whenever the credential refreshes its token
+	 * before a request.
+	 */
+	private static HttpRequestInitializer traceRefresh(final Credential credential) {
+		return request -> {
+			credential.initialize(request);
+			request.setInterceptor(intercepted -> {
+				final ExportEvents.TokenAcquisition trace = new ExportEvents.TokenAcquisition();
+				trace.begin();
+				final String token = credential.getAccessToken();
+				credential.intercept(intercepted);
+				if (!Objects.equals(token, credential.getAccessToken())) {
+					trace.setRefresh(true);
+					trace.commitInContext();
+				}
+			});
+		};
 	}
 
 	/**
@@ -267,6 +1321,8 @@ public class CalendarAccess {
 		if (template.indexOf('{') < 0) {
 			return template;
 		}
+		final ExportEvents.TemplateResolution trace = new ExportEvents.TemplateResolution();
+		trace.begin();
 		final StringBuilder sb = new StringBuilder(128);
 		final Matcher matchPattern = PLACEHOLDER.matcher(template);
 
@@ -278,7 +1334,7 @@ public class CalendarAccess {
 			}
 			final String key = matchPattern.group(1);
 			if (key.endsWith("_TYPE")) {
-				final ProgramFieldType type = STR2PFT.get(key);
+				final ProgramFieldType type = FieldTypes.STR2PFT.get(key);
 				if (type != null) {
 					if (type.isRightFormat(ProgramFieldType.FORMAT_TEXT)) {
 						final String str = program.getTextField(type);
@@ -315,7 +1371,34 @@ public class CalendarAccess {
 		if (last < template.length()) {
 			sb.append(template.substring(last));
 		}
+		trace.commitInContext();
 		return sb.toString();
 	}
 
+	/**
+	 * Holder for the program field types by name. The reflective lookup
+	 * runs on first template resolution, not when the class is loaded.
+	 * Also used by the {@link RoutingRules}.
+	 */
+	static class FieldTypes {
+
+		static final Map<String, ProgramFieldType> STR2PFT;
+
+		static {
+			final Map<String, ProgramFieldType> result = new HashMap<String, ProgramFieldType>();
+			for (Field field : ProgramFieldType.class.getFields()) {
+				try {
+					final Object value = field.get(null);
+					if (value  instanceof ProgramFieldType) {
+						result.put(field.getName(), (ProgramFieldType) value);
+					}
+				} catch (IllegalAccessException e) {
+					// ignore field
+				}
+			}
+			STR2PFT = Collections.unmodifiableMap(result);
+		}
+
+	}
+
 }
@@ -0,0 +1,140 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+/**
+ * The Google accounts programs can be exported to. Each account has its
+ * own credential entry in the shared data store, its own lazily built
+ * client and its own request budget, so exports to different accounts run
+ * in parallel. The accessors share the HTTP transport, its meter and the
+ * data store.
+ * <p>
+ * The registry is safe for concurrent use; the accessor of an account is
+ * created once on first use. A registry which is no longer used, e.g.
+ * after the settings were loaded again, must be closed.
+ */
+public class CalendarAccounts implements Closeable {
+
+	/** the account used when no account is configured; this is the credential key used before accounts existed */
+	public static final String DEFAULT_ACCOUNT = "user";
+
+	private final GoogleCalXSettings settings;
+	private final CachedDataStoreFactory dataStoreFactory;
+	private final HttpTransport httpTransport;
+	private final HttpMeter httpMeter;
+	private final JsonFactory jsonFactory;
+	private final HttpRequestInitializer requestInitializer;
+	private final ConcurrentMap<String, CalendarAccess> accesses;
+
+	/**
+	 * Creates the accounts.
+	 * @param settings the settings to use, must not be <code>null</code>.
+	 * @param directory directory for subfolder <code>.store</code> which will hold the authentication tokens, must not be <code>null</code>
+	 * @throws IOException in case of error
+	 * @throws GeneralSecurityException in case of error
+	 */
+	public CalendarAccounts(final GoogleCalXSettings settings, final String directory) throws IOException, GeneralSecurityException {
+		this(settings, directory, null, GoogleNetHttpTransport.newTrustedTransport(), null);
+	}
+
+	/**
+	 * Creates the accounts using the given transport. If a request initializer
+	 * is given, it replaces the OAuth authorization of all accounts.
+	 * @param aSettings the settings to use, must not be <code>null</code>.
+	 * @param directory directory for subfolder <code>.store</code> which will hold the authentication tokens, must not be <code>null</code>
+	 * @param factory a JSON factory, may be <code>null</code>
+	 * @param transport the HTTP transport to use, must not be <code>null</code>
+	 * @param initializer the request initializer to use instead of OAuth, may be <code>null</code>
+	 * @throws IOException in case of error
+	 */
+	CalendarAccounts(final GoogleCalXSettings aSettings, final String directory, final JsonFactory factory, final HttpTransport transport, final HttpRequestInitializer initializer) throws IOException {
+		settings = aSettings;
+		dataStoreFactory = new CachedDataStoreFactory(new File(directory, ".store/"+GoogleCalXPlugin.PLUGIN_ID));
+		jsonFactory = (factory != null) ? factory : JacksonFactory.getDefaultInstance();
+		httpTransport = transport;
+		httpMeter = new HttpMeter();
+		requestInitializer = initializer;
+		accesses = new ConcurrentHashMap<String, CalendarAccess>();
+	}
+
+	/**
+	 * Returns the accessor of the given account.
+	 * @param account the name of the account, <code>null</code> for the default account.
+	 * @return the accessor of the account, never <code>null</code>.
+	 */
+	public CalendarAccess get(final String account) {
+		return accesses.computeIfAbsent(
+			account != null && !account.isEmpty() ? account : DEFAULT_ACCOUNT,
+			name -> new CalendarAccess(settings, name, dataStoreFactory, httpTransport, httpMeter, jsonFactory, requestInitializer));
+	}
+
+	/**
+	 * Returns the accessor of the account the given target belongs to.
+	 * @param target the calendar target, may be <code>null</code> for the default account.
+	 * @return the accessor of the account, never <code>null</code>.
+	 */
+	public CalendarAccess get(final CalendarTarget target) {
+		return get(target != null ? target.getAccount() : null);
+	}
+
+	/**
+	 * Returns the accessor of the account of the export target, see {@link GoogleCalXSettings#getCalendarTarget()}.
+	 * @return the accessor of the account, never <code>null</code>.
+	 */
+	public CalendarAccess getTarget() {
+		final CalendarTarget target = settings.getCalendarTarget();
+		return get(target != null && target.getAccount() != null ? target.getAccount() : settings.getAccount());
+	}
+
+	/**
+	 * Returns the accessors of all accounts programs are exported to: the
+	 * account of the export target followed by the accounts named by the
+	 * routing rules, see {@link RoutingRules#getCalendarTargets(String)}.
+	 * @return the accessors, without duplicates; never <code>null</code>.
+	 */
+	public Collection<CalendarAccess> getTargets() {
+		final CalendarAccess target = getTarget();
+		final Map<String, CalendarAccess> result = new LinkedHashMap<String, CalendarAccess>();
+		result.put(target.getAccount(), target);
+		for (CalendarTarget routed : settings.getRoutingRules().getCalendarTargets(target.getAccount())) {
+			final CalendarAccess access = get(routed);
+			result.putIfAbsent(access.getAccount(), access);
+		}
+		return result.values();
+	}
+
+	/**
+	 * Returns the meter of the requests of all accounts.
+	 * @return the meter, never <code>null</code>.
+	 */
+	public HttpMeter getMeter() {
+		return httpMeter;
+	}
+
+	/**
+	 * Writes the pending changes of the data store, e.g. refreshed tokens,
+	 * and stops its background writer. Accessors still in use keep working;
+	 * their changes are written at once.
+	 * @throws IOException in case of error
+	 */
+	@Override
+	public void close() throws IOException {
+		accesses.clear();
+		dataStoreFactory.close();
+	}
+
+}
@@ -0,0 +1,279 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.calendar.model.Event;
+import com.google.api.services.calendar.model.EventDateTime;
+
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Local mirror of the events of the calendars programs are exported to,
+ * see {@link CalendarAccess#getTargetCalendarIds()}, in the time span of
+ * the program guide, kept in an {@link IntervalIndex} per calendar. Whether
+ * a program collides with an appointment in the calendar it is routed to
+ * is then answered in memory with a binary search, e.g. for the context
+ * menu, without calling the API.
+ * <p>
+ * The mirror is reloaded in the background lane at a fixed interval and
+ * on request; events exported meanwhile are added at once. A reload is
+ * skipped while the account is not authorized, so the authorization page
+ * is never opened by the mirror.
+ */
+public class CalendarMirror implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(CalendarMirror.class.getName());
+
+	/** default interval of reloads, in milliseconds */
+	public static final long DEFAULT_INTERVAL = TimeUnit.MINUTES.toMillis(10L);
+	/** mirrored time before now, in milliseconds */
+	static final long PAST = TimeUnit.DAYS.toMillis(1L);
+	/** mirrored time after now, in milliseconds; the program guide spans up to four weeks */
+	static final long FUTURE = TimeUnit.DAYS.toMillis(28L);
+	/** events added locally are kept across a reload for this long, in case the reload missed them */
+	private static final long ADDED_GRACE = TimeUnit.MINUTES.toNanos(1L);
+
+	private final Supplier<CalendarAccess> accessSupplier;
+	private final long interval;
+	private final AtomicBoolean loading;
+	private final List<Added> added;
+	private volatile Snapshot snapshot;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates the mirror; it is empty until {@link #start()} or {@link #load()}.
+	 * @param supplier returns the calendar accessor of the export account, must not be <code>null</code>.
+	 * Called on the background thread, so the calendar client is not created by the caller.
+	 * @param intervalMillis the interval of reloads, in milliseconds
+	 */
+	public CalendarMirror(final Supplier<CalendarAccess> supplier, final long intervalMillis) {
+		accessSupplier = supplier;
+		interval = Math.max(1L, intervalMillis);
+		loading = new AtomicBoolean();
+		added = new ArrayList<Added>();
+	}
+
+	/**
+	 * Starts reloading the mirror in the background, the first time at once.
+	 */
+	public synchronized void start() {
+		if (executor == null) {
+			final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, BulkExporter.daemon("mirror"));
+			result.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			result.scheduleWithFixedDelay(this::reload, 0L, interval, TimeUnit.MILLISECONDS);
+			executor = result;
+		}
+	}
+
+	/**
+	 * Reloads the mirror in the background soon, e.g. after the export
+	 * target, the routing rules or the calendar changed. Does nothing unless started.
+	 */
+	public synchronized void refresh() {
+		if (executor != null) {
+			executor.execute(this::reload);
+		}
+	}
+
+	/**
+	 * Stops reloading the mirror.
+	 */
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Reloads the mirror on the calling thread.
+	 * @return <code>true</code> if the mirror was reloaded, <code>false</code> if
+	 * the account is not authorized or a reload is running already.
+	 * @throws IOException in case of error; the previous events stay mirrored
+	 */
+	public boolean load() throws IOException {
+		if (!loading.compareAndSet(false, true)) {
+			return false;
+		}
+		try {
+			final CalendarAccess access = accessSupplier.get();
+			if (!access.isAuthorized()) {
+				return false;
+			}
+			final long started = System.nanoTime();
+			final long now = System.currentTimeMillis();
+			final Map<String, IntervalIndex.Builder<String>> builders = new HashMap<String, IntervalIndex.Builder<String>>();
+			for (String calendarId : access.getTargetCalendarIds()) {
+				final IntervalIndex.Builder<String> builder = new IntervalIndex.Builder<String>();
+				access.getEvents(calendarId, now - PAST, now + FUTURE, Lane.BACKGROUND, page -> {
+					for (Event event : page) {
+						if (!"transparent".equals(event.getTransparency())) {
+							builder.add(toMillis(event.getStart()), toMillis(event.getEnd()), event.getSummary());
+						}
+					}
+				});
+				builders.put(calendarId, builder);
+			}
+			synchronized (added) {
+				// events added while loading may be missing in the pages
+				for (Iterator<Added> i = added.iterator(); i.hasNext(); ) {
+					final Added event = i.next();
+					if (started - event.time > ADDED_GRACE) {
+						i.remove();
+					} else if (builders.containsKey(event.calendarId)) {
+						builders.get(event.calendarId).add(event.start, event.end, event.summary);
+					}
+				}
+				final Map<String, IntervalIndex<String>> events = new HashMap<String, IntervalIndex<String>>();
+				for (Map.Entry<String, IntervalIndex.Builder<String>> entry : builders.entrySet()) {
+					events.put(entry.getKey(), entry.getValue().build());
+				}
+				snapshot = new Snapshot(access, events);
+			}
+			return true;
+		} finally {
+			loading.set(false);
+		}
+	}
+
+	/**
+	 * Adds an event which was just inserted into a calendar.
+	 * @param calendarId the ID of the calendar, must not be <code>null</code>.
+	 * @param event the event, must not be <code>null</code>.
+	 */
+	public void add(final String calendarId, final Event event) {
+		final Added entry = new Added(calendarId, toMillis(event.getStart()), toMillis(event.getEnd()), event.getSummary());
+		synchronized (added) {
+			added.add(entry);
+			final Snapshot current = snapshot;
+			if (current != null && current.events.containsKey(calendarId)) {
+				final Map<String, IntervalIndex<String>> events = new HashMap<String, IntervalIndex<String>>(current.events);
+				events.put(calendarId, new IntervalIndex.Builder<String>()
+					.addAll(current.events.get(calendarId))
+					.add(entry.start, entry.end, entry.summary)
+					.build());
+				snapshot = new Snapshot(current.access, events);
+			}
+		}
+	}
+
+	/**
+	 * Adds the events of a batch of single exports. Batches sent to the
+	 * calendars of another account are not mirrored.
+	 * @param result the outcome of the batch, must not be <code>null</code>.
+	 */
+	public void add(final ExportBuffer.Result result) {
+		if (!accessSupplier.get().getAccount().equals(result.getAccount())) {
+			return;
+		}
+		for (Event event : result.getExported().values()) {
+			add(result.getCalendarId(), event);
+		}
+	}
+
+	/**
+	 * Returns the number of mirrored events.
+	 * @return the number of mirrored events, zero if not loaded.
+	 */
+	public int size() {
+		final Snapshot current = snapshot;
+		int result = 0;
+		if (current != null) {
+			for (IntervalIndex<String> events : current.events.values()) {
+				result += events.size();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the summaries of the mirrored events colliding with the given
+	 * program in the calendar it is routed to, see {@link CalendarAccess#getTargetCalendarId(Program)}.
+	 * Does not call the API.
+	 * @param program the program to check, must not be <code>null</code>.
+	 * @return the summaries ordered by start, empty if there are no collisions
+	 * or the calendar is not mirrored (yet); never <code>null</code>.
+	 */
+	public List<String> getConflicts(final Program program) {
+		final Snapshot current = snapshot;
+		final IntervalIndex<String> events = current != null ? current.events.get(current.access.getTargetCalendarId(program)) : null;
+		if (events == null) {
+			return Collections.emptyList();
+		}
+		final long start = current.access.getStartTime(program);
+		return events.find(start, current.access.getEndTime(program, start));
+	}
+
+	/**
+	 * Reloads the mirror, logging errors; runs on the background thread.
+	 */
+	private void reload() {
+		try {
+			load();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "cannot mirror calendar", e);
+		}
+	}
+
+	/**
+	 * Returns the start or end of an event, also of an all-day event.
+	 * @param time the start or end, must not be <code>null</code>.
+	 * @return the time in milliseconds since the epoch.
+	 */
+	static long toMillis(final EventDateTime time) {
+		final DateTime value = time.getDateTime() != null ? time.getDateTime() : time.getDate();
+		return value.getValue();
+	}
+
+	/**
+	 * Mirrored events per calendar ID.
+	 */
+	private static class Snapshot {
+
+		protected final CalendarAccess access;
+		protected final Map<String, IntervalIndex<String>> events;
+
+		protected Snapshot(final CalendarAccess anAccess, final Map<String, IntervalIndex<String>> someEvents) {
+			access = anAccess;
+			events = someEvents;
+		}
+	}
+
+	/**
+	 * Event added locally.
+	 */
+	private static class Added {
+
+		protected final String calendarId;
+		protected final long start;
+		protected final long end;
+		protected final String summary;
+		protected final long time;
+
+		protected Added(final String aCalendarId, final long aStart, final long anEnd, final String aSummary) {
+			calendarId = aCalendarId;
+			start = aStart;
+			end = anEnd;
+			summary = aSummary;
+			time = System.nanoTime();
+		}
+	}
+
+}
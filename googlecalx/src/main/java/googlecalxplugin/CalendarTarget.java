@@ -1,8 +1,12 @@
 package googlecalxplugin;
 
+import java.util.Objects;
+
 /**
  * Represents a calendar that a program can be exported to.
- * This is a pair of calendar ID and label.
+ * This is a pair of calendar ID and label, bound to a Google account.
+ * Account names must not contain <code>|</code>, it separates the parts
+ * of the String version.
  *
  */
 public class CalendarTarget {
@@ -11,10 +15,22 @@ public class CalendarTarget {
 	
 	private final String id;
 	private final String label;
+	private final String account;
 	
 	public CalendarTarget(final String anID, final String aLabel) {
+		this(anID, aLabel, null);
+	}
+	
+	/**
+	 * Creates the target.
+	 * @param anID the calendar ID
+	 * @param aLabel the label of the calendar
+	 * @param anAccount the account the calendar belongs to, <code>null</code> for the default account.
+	 */
+	public CalendarTarget(final String anID, final String aLabel, final String anAccount) {
 		id = anID;
 		label = aLabel;
+		account = anAccount;
 	}
 	
 	public String getId() {
@@ -25,6 +41,14 @@ public class CalendarTarget {
 		return label;
 	}
 
+	/**
+	 * Returns the account the calendar belongs to.
+	 * @return the name of the account, <code>null</code> for the default account.
+	 */
+	public String getAccount() {
+		return account;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -33,20 +57,70 @@ public class CalendarTarget {
 	}
 
 	/**
-	 * Returns a String version of the target.
+	 * Two targets are equal if they name the same calendar of the same account.
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CalendarTarget)) {
+			return false;
+		}
+		final CalendarTarget other = (CalendarTarget) obj;
+		return Objects.equals(id, other.id) && Objects.equals(account, other.account);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return Objects.hash(id, account);
+	}
+
+	/**
+	 * Returns a String version of the target: account, calendar ID and label.
 	 * @return a String version of the target, never <code>null</code>.
 	 */
 	public String toStringRep() {
-		return id+SEP+label;
+		return (account != null ? account : "")+SEP+id+SEP+label;
 	}
 
+	/**
+	 * Parses a String version of a target, see {@link #toStringRep()}.
+	 * @param str the String version, may be <code>null</code>.
+	 * @return the target, <code>null</code> if the String is empty.
+	 * @throws IllegalStateException if the String cannot be parsed
+	 */
 	public static CalendarTarget parse(final String str) {
+		if (str != null && str.length() > 0) {
+			final int cut = str.indexOf(SEP);
+			final int cut2 = cut >= 0 ? str.indexOf(SEP, cut+1) : -1;
+			if (cut2 <= cut+1) {
+				throw new IllegalStateException("cannot parse "+str);
+			}
+			return new CalendarTarget(str.substring(cut+1, cut2), str.substring(cut2+1), cut > 0 ? str.substring(0, cut) : null);
+		}
+		return null;
+	}
+
+	/**
+	 * Parses a String version of a target written before targets were bound
+	 * to an account, i.e. calendar ID and label.
+	 * @param str the String version, may be <code>null</code>.
+	 * @param anAccount the account the calendar belongs to, <code>null</code> for the default account.
+	 * @return the target, <code>null</code> if the String is empty.
+	 * @throws IllegalStateException if the String cannot be parsed
+	 */
+	public static CalendarTarget parseLegacy(final String str, final String anAccount) {
 		if (str != null && str.length() > 0) {
 			final int cut = str.indexOf(SEP);
 			if (cut <= 0) {
 				throw new IllegalStateException("cannot parse "+str);
 			}
-			return new CalendarTarget(str.substring(0, cut), str.substring(cut+1));
+			return new CalendarTarget(str.substring(0, cut), str.substring(cut+1), anAccount);
 		}
 		return null;
 	}
@@ -12,12 +12,17 @@ public class CalendarTargetField extends JTextField {
 	private CalendarTarget target;
 
 	public CalendarTargetField(final CalendarTarget aTarget) {
-		super(aTarget.getLabel(), 24);
+		super(24);
 		setEnabled(false);
+		setCalendarTarget(aTarget);
 	}
 	
+	/**
+	 * Sets the calendar target, shown with the account it belongs to.
+	 * @param aTarget the calendar target, must not be <code>null</code>.
+	 */
 	public void setCalendarTarget(final CalendarTarget aTarget) {
-		setText(aTarget.getLabel());
+		setText(aTarget.getAccount() != null && aTarget.getLabel().length() > 0 ? aTarget.getLabel() + " (" + aTarget.getAccount() + ')' : aTarget.getLabel());
 		target = aTarget;
 	}
 
@@ -0,0 +1,146 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the Calendar API. After a number of consecutive
+ * failures, i.e. connection errors, timeouts and server errors, the
+ * circuit opens and requests fail at once instead of waiting for their
+ * timeout. After a pause, the circuit is half-open: a single request is
+ * let through as probe. If it succeeds, the circuit closes; if it fails,
+ * the circuit opens again for another pause.
+ * <p>
+ * The breaker is safe for concurrent use.
+ */
+public class CircuitBreaker {
+
+	/** The states of the breaker. */
+	public enum State {
+		/** requests pass */
+		CLOSED,
+		/** requests fail at once */
+		OPEN,
+		/** one request probes whether the service is back */
+		HALF_OPEN;
+	}
+
+	/**
+	 * Signals that a request was not sent because the circuit is open.
+	 */
+	public static class OpenException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates the exception.
+		 * @param message the message
+		 */
+		public OpenException(final String message) {
+			super(message);
+		}
+	}
+
+	/** default number of consecutive failures opening the circuit */
+	public static final int DEFAULT_THRESHOLD = 5;
+	/** default pause before probing, in milliseconds */
+	public static final long DEFAULT_PAUSE = TimeUnit.SECONDS.toMillis(30L);
+
+	private final int threshold;
+	private final long pauseNanos;
+	private State state;
+	private int failures;
+	private long openedAt;
+	private boolean probing;
+
+	/**
+	 * Creates the breaker with the default threshold and pause.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_THRESHOLD, DEFAULT_PAUSE);
+	}
+
+	/**
+	 * Creates the breaker.
+	 * @param aThreshold the number of consecutive failures opening the circuit, at least one.
+	 * @param pauseMillis the pause before probing, in milliseconds
+	 */
+	public CircuitBreaker(final int aThreshold, final long pauseMillis) {
+		threshold = Math.max(1, aThreshold);
+		pauseNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, pauseMillis));
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Returns the state of the breaker.
+	 * @return the state, never <code>null</code>.
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Checks whether a request may be sent. Each permitted request must be
+	 * followed by {@link #onSuccess(boolean)}, {@link #onFailure(boolean)} or
+	 * {@link #onAbandon(boolean)}, given whether the request is the probe.
+	 * @return <code>true</code> if the request is the probe of the half-open circuit
+	 * @throws OpenException if the circuit is open, or half-open with a probe running
+	 */
+	public synchronized boolean acquire() throws OpenException {
+		if (state == State.OPEN) {
+			final long waited = System.nanoTime() - openedAt;
+			if (waited < pauseNanos) {
+				throw new OpenException("Google Calendar is not reachable, next attempt in "
+					+ TimeUnit.NANOSECONDS.toSeconds(pauseNanos - waited + TimeUnit.SECONDS.toNanos(1L) - 1L) + " s");
+			}
+			state = State.HALF_OPEN;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probing) {
+				throw new OpenException("Google Calendar is not reachable, checking again");
+			}
+			probing = true;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a request which reached the service.
+	 * @param probe whether the request is the probe, see {@link #acquire()}
+	 */
+	public synchronized void onSuccess(final boolean probe) {
+		failures = 0;
+		probing = false;
+		state = State.CLOSED;
+	}
+
+	/**
+	 * Records a request which failed because of the service or the connection.
+	 * While half-open, only the failure of the probe opens the circuit again;
+	 * requests sent before the circuit opened may still end meanwhile.
+	 * @param probe whether the request is the probe, see {@link #acquire()}
+	 */
+	public synchronized void onFailure(final boolean probe) {
+		failures++;
+		if (probe || state != State.HALF_OPEN && failures >= threshold) {
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+		}
+		if (probe) {
+			probing = false;
+		}
+	}
+
+	/**
+	 * Records a request which ended without telling about the service,
+	 * e.g. because it was interrupted. Only the probe lets the next one through.
+	 * @param probe whether the request is the probe, see {@link #acquire()}
+	 */
+	public synchronized void onAbandon(final boolean probe) {
+		if (probe) {
+			probing = false;
+		}
+	}
+
+}
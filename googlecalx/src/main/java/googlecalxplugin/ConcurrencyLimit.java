@@ -0,0 +1,121 @@
+package googlecalxplugin;
+
+/**
+ * Adaptive limit of the requests in flight, following additive increase
+ * and multiplicative decrease (AIMD). Each completed request raises the
+ * limit by one request per limit's worth of requests, as long as requests
+ * are waiting for it. A rate limit response halves the limit; a latency
+ * well above the latency without load lowers it slightly, as the server
+ * is queueing. Decreases happen at most once per round trip, since the
+ * requests already in flight still see the old load.
+ * <p>
+ * Rate limited requests fail, so the limit which was rate limited last is
+ * remembered: the limit climbs back quickly to just below it, and probes
+ * it ten times slower. Once the limit exceeds it, the server sustains more
+ * again and the limit climbs quickly.
+ * <p>
+ * The limit is not thread-safe; the {@link RequestScheduler} calls it
+ * while holding its lock.
+ */
+public class ConcurrencyLimit {
+
+	private static final double RATE_LIMIT_BACKOFF = 0.5d;
+	private static final double LATENCY_BACKOFF = 0.9d;
+	/** smoothed latency above this multiple of the latency without load means queueing */
+	private static final double LATENCY_TOLERANCE = 2d;
+	private static final double SMOOTHING = 0.1d;
+	private static final double PROBE_SLOWDOWN = 10d;
+	/** the latency without load is the minimum of this many samples */
+	private static final int BASELINE_WINDOW = 250;
+
+	private final int min;
+	private final int max;
+	private double limit;
+	private double ceiling;
+	private double smoothed;
+	private long baseline;
+	private long windowMin;
+	private int windowSamples;
+	private long lastDecrease;
+
+	/**
+	 * Creates the limit.
+	 * @param aMin the minimum limit, at least one.
+	 * @param initial the limit to start at, clamped to minimum and maximum.
+	 * @param aMax the maximum limit, at least the minimum.
+	 */
+	public ConcurrencyLimit(final int aMin, final int initial, final int aMax) {
+		min = Math.max(1, aMin);
+		max = Math.max(min, aMax);
+		limit = Math.max(min, Math.min(max, initial));
+		ceiling = Double.MAX_VALUE;
+		windowMin = Long.MAX_VALUE;
+		lastDecrease = System.nanoTime() - Long.MAX_VALUE / 2;
+	}
+
+	/**
+	 * Returns the current limit.
+	 * @return the number of requests allowed in flight, between minimum and maximum.
+	 */
+	public int get() {
+		return (int) limit;
+	}
+
+	/**
+	 * Returns the maximum limit.
+	 * @return the maximum number of requests in flight.
+	 */
+	public int getMax() {
+		return max;
+	}
+
+	/**
+	 * Records a request which received a response other than a rate limit.
+	 * @param latency the duration of the request in nanoseconds
+	 * @param saturated <code>true</code> if requests were waiting for the limit or the limit was reached
+	 * @param now the current time in nanoseconds, see {@link System#nanoTime()}
+	 */
+	public void onResponse(final long latency, final boolean saturated, final long now) {
+		windowMin = Math.min(windowMin, latency);
+		if (++windowSamples >= BASELINE_WINDOW || baseline == 0L) {
+			// follow lasting changes of the latency without load, e.g. another network
+			baseline = windowMin;
+			windowMin = Long.MAX_VALUE;
+			windowSamples = 0;
+		}
+		smoothed = smoothed == 0d ? latency : smoothed + SMOOTHING * (latency - smoothed);
+		if (smoothed > LATENCY_TOLERANCE * baseline) {
+			decrease(LATENCY_BACKOFF, now);
+		} else if (saturated) {
+			if (limit + 1d < ceiling) {
+				limit = Math.min(max, limit + 1d / limit);
+			} else {
+				limit = Math.min(max, limit + 1d / (PROBE_SLOWDOWN * limit));
+				if (limit >= ceiling + 1d) {
+					ceiling = Double.MAX_VALUE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a request answered with a rate limit.
+	 * @param now the current time in nanoseconds, see {@link System#nanoTime()}
+	 */
+	public void onRateLimited(final long now) {
+		final double before = limit;
+		if (decrease(RATE_LIMIT_BACKOFF, now)) {
+			ceiling = Math.floor(before);
+		}
+	}
+
+	private boolean decrease(final double factor, final long now) {
+		if (now - lastDecrease >= (long) smoothed) {
+			limit = Math.max(min, limit * factor);
+			lastDecrease = now;
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,16 @@
+package googlecalxplugin;
+
+/**
+ * How to handle programs colliding with existing appointments
+ * when exporting multiple programs.
+ */
+public enum ConflictPolicy {
+
+	/** export without checking */
+	export,
+	/** export, but report the colliding programs */
+	flag,
+	/** do not export colliding programs */
+	skip;
+
+}
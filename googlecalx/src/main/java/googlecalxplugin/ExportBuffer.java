@@ -0,0 +1,278 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Write-behind buffer of single exports. Programs submitted within the
+ * coalescing window of each other are exported together with one batch
+ * request in the interactive lane, once the window passed without another
+ * submission or the batch is full. A steady stream of submissions does not
+ * hold them back: the first program waits at most {@value #MAX_WAIT_WINDOWS}
+ * windows. The listener is told once per batch, so a burst of exports
+ * costs one round trip and one notification.
+ * Programs routed to different calendars, see {@link CalendarAccess#getTarget(Program)},
+ * are sent in one batch per calendar, each with the accessor of the account
+ * the calendar belongs to and with its own notification.
+ * <p>
+ * Batches are sent one after another on a daemon thread.
+ */
+public class ExportBuffer implements Closeable {
+
+	/** Receives the outcome of each batch. */
+	public interface Listener {
+
+		/**
+		 * Invoked after a batch was sent, on the thread of the buffer.
+		 * @param result the outcome of the batch, never <code>null</code>.
+		 */
+		void flushed(Result result);
+
+	}
+
+	/** the most programs sent in one batch request */
+	public static final int MAX_BATCH = 50;
+	/** the most windows the first pending program waits for more submissions */
+	public static final int MAX_WAIT_WINDOWS = 5;
+
+	private final CalendarAccess access;
+	private final Function<String, CalendarAccess> accounts;
+	private final Listener listener;
+	private final long window;
+	private final ScheduledExecutorService executor;
+	private final Map<Program, CalendarTarget> pending;
+	private ScheduledFuture<?> flush;
+	private long firstPending;
+
+	/**
+	 * Creates the buffer.
+	 * @param anAccess the calendar accessor, must not be <code>null</code>.
+	 * @param aListener the listener told about each batch, must not be <code>null</code>.
+	 * @param windowMillis the coalescing window in milliseconds; zero sends each program at once
+	 */
+	public ExportBuffer(final CalendarAccess anAccess, final Listener aListener, final long windowMillis) {
+		this(anAccess, account -> anAccess, aListener, windowMillis);
+	}
+
+	/**
+	 * Creates the buffer exporting to the calendars of several accounts.
+	 * @param anAccess the calendar accessor of the account of the export target, must not be <code>null</code>.
+	 * @param someAccounts the accessor of each account, e.g. {@link CalendarAccounts#get(String)}; must not be <code>null</code>.
+	 * @param aListener the listener told about each batch, must not be <code>null</code>.
+	 * @param windowMillis the coalescing window in milliseconds; zero sends each program at once
+	 */
+	public ExportBuffer(final CalendarAccess anAccess, final Function<String, CalendarAccess> someAccounts, final Listener aListener, final long windowMillis) {
+		access = anAccess;
+		accounts = someAccounts;
+		listener = aListener;
+		window = Math.max(0L, windowMillis);
+		final ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, BulkExporter.daemon("buffer"));
+		pool.setRemoveOnCancelPolicy(true);
+		executor = pool;
+		pending = new LinkedHashMap<Program, CalendarTarget>();
+	}
+
+	/**
+	 * Adds a program to the next batch for the calendar it is routed to.
+	 * @param program the program to export, must not be <code>null</code>.
+	 */
+	public synchronized void submit(final Program program) {
+		final long now = System.nanoTime();
+		if (pending.isEmpty()) {
+			firstPending = now;
+		}
+		pending.put(program, access.getTarget(program));
+		if (flush != null) {
+			flush.cancel(false);
+			flush = null;
+		}
+		if (pending.size() >= MAX_BATCH || window == 0L) {
+			flushNow();
+		} else {
+			final long delay = TimeUnit.MILLISECONDS.toNanos(window);
+			final long deadline = firstPending + MAX_WAIT_WINDOWS * delay;
+			flush = executor.schedule(ExportEvents.inContext(this::flushScheduled), Math.max(0L, Math.min(delay, deadline - now)), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Returns the number of programs waiting for the window to pass.
+	 * @return the number of pending programs.
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Sends the pending programs and stops the buffer once they are sent.
+	 */
+	@Override
+	public synchronized void close() {
+		if (flush != null) {
+			flush.cancel(false);
+			flush = null;
+		}
+		if (!pending.isEmpty()) {
+			flushNow();
+		}
+		executor.shutdown();
+	}
+
+	private void flushScheduled() {
+		final Map<CalendarTarget, List<Program>> batches;
+		synchronized (this) {
+			flush = null;
+			batches = takePending();
+		}
+		// submissions need not wait for the batch requests
+		send(batches);
+	}
+
+	/**
+	 * Hands the pending programs to the thread of the buffer.
+	 */
+	private void flushNow() {
+		final Map<CalendarTarget, List<Program>> batches = takePending();
+		executor.execute(ExportEvents.inContext(() -> send(batches)));
+	}
+
+	/**
+	 * Removes the pending programs, grouped by calendar.
+	 * @return the programs per calendar in order of submission, never <code>null</code>.
+	 */
+	private Map<CalendarTarget, List<Program>> takePending() {
+		final Map<CalendarTarget, List<Program>> result = new LinkedHashMap<CalendarTarget, List<Program>>();
+		for (Map.Entry<Program, CalendarTarget> entry : pending.entrySet()) {
+			result.computeIfAbsent(entry.getValue(), target -> new ArrayList<Program>()).add(entry.getKey());
+		}
+		pending.clear();
+		return result;
+	}
+
+	private void send(final Map<CalendarTarget, List<Program>> batches) {
+		for (Map.Entry<CalendarTarget, List<Program>> batch : batches.entrySet()) {
+			send(batch.getKey(), batch.getValue());
+		}
+	}
+
+	private void send(final CalendarTarget target, final List<Program> programs) {
+		final CalendarAccess owner = accounts.apply(target.getAccount());
+		final String calendarId = target.getId();
+		final long batchId = ExportEvents.nextBatchId();
+		final Map<Program, Event> events = new LinkedHashMap<Program, Event>();
+		final Map<Program, Exception> failures = new LinkedHashMap<Program, Exception>();
+		try {
+			ExportEvents.run(null, calendarId, batchId, () -> createAndAdd(owner, calendarId, batchId, programs, events, failures));
+		} catch (IOException | RuntimeException e) {
+			// the batch failed as a whole
+			for (Program program : events.keySet()) {
+				failures.put(program, e);
+			}
+			events.clear();
+		}
+		listener.flushed(new Result(owner.getAccount(), calendarId, batchId, events, failures));
+	}
+
+	/**
+	 * Creates the events of the programs and adds them with one batch request.
+	 */
+	private static void createAndAdd(final CalendarAccess owner, final String calendarId, final long batchId, final List<Program> programs, final Map<Program, Event> events, final Map<Program, Exception> failures) throws IOException {
+		for (Program program : programs) {
+			try {
+				events.put(program, ExportEvents.call(program.getUniqueID(), calendarId, batchId, () -> owner.createEvent(program)));
+			} catch (RuntimeException e) {
+				failures.put(program, e);
+			}
+		}
+		final Map<Event, IOException> failed = owner.addEvents(calendarId, new ArrayList<Event>(events.values()), Lane.INTERACTIVE);
+		if (!failed.isEmpty()) {
+			// events are compared by content and changed by sending, their IDs are derived from the programs
+			final Map<String, Program> programOf = new HashMap<String, Program>();
+			for (Map.Entry<Program, Event> entry : events.entrySet()) {
+				programOf.put(entry.getValue().getId(), entry.getKey());
+			}
+			for (Map.Entry<Event, IOException> entry : failed.entrySet()) {
+				final Program program = programOf.get(entry.getKey().getId());
+				failures.put(program, entry.getValue());
+				events.remove(program);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of a batch.
+	 */
+	public static class Result {
+
+		private final String account;
+		private final String calendarId;
+		private final long batchId;
+		private final Map<Program, Event> exported;
+		private final Map<Program, Exception> failures;
+
+		protected Result(final String anAccount, final String aCalendarId, final long aBatchId, final Map<Program, Event> someExported, final Map<Program, Exception> someFailures) {
+			account = anAccount;
+			calendarId = aCalendarId;
+			batchId = aBatchId;
+			exported = someExported;
+			failures = someFailures;
+		}
+
+		/**
+		 * Returns the account of the calendar the programs were exported to.
+		 * @return the name of the account, never <code>null</code>.
+		 */
+		public String getAccount() {
+			return account;
+		}
+
+		/**
+		 * Returns the ID of the calendar the programs were exported to.
+		 * @return the calendar ID, never <code>null</code>.
+		 */
+		public String getCalendarId() {
+			return calendarId;
+		}
+
+		/**
+		 * Returns the batch ID the export was recorded with, see {@link ExportEvents}.
+		 * @return the batch ID.
+		 */
+		public long getBatchId() {
+			return batchId;
+		}
+
+		/**
+		 * Returns the exported programs with their events.
+		 * @return the exported programs in order of submission, never <code>null</code>.
+		 */
+		public Map<Program, Event> getExported() {
+			return Collections.unmodifiableMap(exported);
+		}
+
+		/**
+		 * Returns the programs that could not be exported with the reason of failure.
+		 * @return the failed programs, never <code>null</code>.
+		 */
+		public Map<Program, Exception> getFailures() {
+			return Collections.unmodifiableMap(failures);
+		}
+	}
+
+}
@@ -0,0 +1,307 @@
+package googlecalxplugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the export stages. Start a recording with
+ * <code>jcmd &lt;pid&gt; JFR.start</code> to see where the time of each
+ * export goes. All events carry the program ID, the calendar ID and the ID
+ * of the batch, i.e. of the single or bulk export, taken from the context
+ * of the current thread (see {@link #enter(String, String, long)} and
+ * {@link #call(String, String, long, Step)}). Tasks handed to other threads
+ * take the context along, see {@link #inContext(Runnable)}.
+ * <p>
+ * Without a recording the events are disabled and cost next to nothing;
+ * the context fields are only filled when an event is committed.
+ */
+public final class ExportEvents {
+
+	private static final AtomicLong BATCHES = new AtomicLong();
+	private static final ThreadLocal<Scope> CONTEXT = new ThreadLocal<Scope>();
+
+	private ExportEvents() {
+		// utility class
+	}
+
+	/**
+	 * Returns a new batch ID.
+	 * @return a batch ID unique within this process.
+	 */
+	public static long nextBatchId() {
+		return BATCHES.incrementAndGet();
+	}
+
+	/**
+	 * Sets the context of the events of the current thread until the
+	 * returned scope is closed.
+	 * @param programId the unique ID of the program, may be <code>null</code>.
+	 * @param calendarId the ID of the calendar, may be <code>null</code>.
+	 * @param batchId the ID of the batch
+	 * @return the scope to close, restoring the previous context.
+	 */
+	public static Scope enter(final String programId, final String calendarId, final long batchId) {
+		final Scope scope = new Scope(CONTEXT.get(), programId, calendarId, batchId);
+		CONTEXT.set(scope);
+		return scope;
+	}
+
+	/**
+	 * Runs a step in the given context of the events of the current thread,
+	 * restoring the previous context afterwards.
+	 * @param <T> the result type
+	 * @param <E> the exception the step may throw
+	 * @param programId the unique ID of the program, may be <code>null</code>.
+	 * @param calendarId the ID of the calendar, may be <code>null</code>.
+	 * @param batchId the ID of the batch
+	 * @param step the step to run, must not be <code>null</code>.
+	 * @return the result of the step
+	 * @throws E if the step fails
+	 */
+	public static <T, E extends Exception> T call(final String programId, final String calendarId, final long batchId, final Step<T, E> step) throws E {
+		final Scope scope = enter(programId, calendarId, batchId);
+		try {
+			return step.call();
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Runs a step without result in the given context, see {@link #call(String, String, long, Step)}.
+	 * @param <E> the exception the step may throw
+	 * @param programId the unique ID of the program, may be <code>null</code>.
+	 * @param calendarId the ID of the calendar, may be <code>null</code>.
+	 * @param batchId the ID of the batch
+	 * @param step the step to run, must not be <code>null</code>.
+	 * @throws E if the step fails
+	 */
+	public static <E extends Exception> void run(final String programId, final String calendarId, final long batchId, final Action<E> step) throws E {
+		final Scope scope = enter(programId, calendarId, batchId);
+		try {
+			step.run();
+		} finally {
+			scope.close();
+		}
+	}
+
+	/**
+	 * Wraps a task handed to another thread, so it runs in the context the
+	 * current thread has now.
+	 * @param task the task, must not be <code>null</code>.
+	 * @return the task running in the current context, never <code>null</code>.
+	 */
+	public static Runnable inContext(final Runnable task) {
+		final Scope context = CONTEXT.get();
+		if (context == null) {
+			return task;
+		}
+		return () -> {
+			final Scope previous = CONTEXT.get();
+			CONTEXT.set(context);
+			try {
+				task.run();
+			} finally {
+				if (previous != null) {
+					CONTEXT.set(previous);
+				} else {
+					CONTEXT.remove();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A step of an export with a result.
+	 * @param <T> the result type
+	 * @param <E> the exception the step may throw
+	 */
+	public interface Step<T, E extends Exception> {
+
+		/**
+		 * Runs the step.
+		 * @return the result of the step
+		 * @throws E if the step fails
+		 */
+		T call() throws E;
+
+	}
+
+	/**
+	 * A step of an export without result.
+	 * @param <E> the exception the step may throw
+	 */
+	public interface Action<E extends Exception> {
+
+		/**
+		 * Runs the step.
+		 * @throws E if the step fails
+		 */
+		void run() throws E;
+
+	}
+
+	/**
+	 * The context of the events of a thread.
+	 */
+	public static final class Scope implements AutoCloseable {
+
+		private final Scope previous;
+		private final String programId;
+		private final String calendarId;
+		private final long batchId;
+
+		private Scope(final Scope aPrevious, final String aProgramId, final String aCalendarId, final long aBatchId) {
+			previous = aPrevious;
+			programId = aProgramId;
+			calendarId = aCalendarId;
+			batchId = aBatchId;
+		}
+
+		@Override
+		public void close() {
+			if (previous != null) {
+				CONTEXT.set(previous);
+			} else {
+				CONTEXT.remove();
+			}
+		}
+	}
+
+	/**
+	 * Base of all export events.
+	 */
+	@Category({ "TV-Browser", "Google Calendar export" })
+	@StackTrace(false)
+	public abstract static class ExportEvent extends Event {
+
+		@Label("Program ID")
+		protected String programId;
+
+		@Label("Calendar ID")
+		protected String calendarId;
+
+		@Label("Batch ID")
+		@Description("Identifies the single or bulk export")
+		protected long batchId;
+
+		/**
+		 * Ends the event and commits it with the context of the current
+		 * thread, if it is enabled and exceeds the threshold.
+		 */
+		public void commitInContext() {
+			end();
+			if (shouldCommit()) {
+				final Scope scope = CONTEXT.get();
+				if (scope != null) {
+					programId = scope.programId;
+					calendarId = scope.calendarId;
+					batchId = scope.batchId;
+				}
+				commit();
+			}
+		}
+	}
+
+	/**
+	 * Resolution of a title or body template.
+	 */
+	@Name("googlecalx.TemplateResolution")
+	@Label("Template Resolution")
+	public static final class TemplateResolution extends ExportEvent {
+		// context fields only
+	}
+
+	/**
+	 * Creation of a calendar event out of a program.
+	 */
+	@Name("googlecalx.EventConstruction")
+	@Label("Event Construction")
+	public static final class EventConstruction extends ExportEvent {
+		// context fields only
+	}
+
+	/**
+	 * Acquisition of an OAuth access token.
+	 */
+	@Name("googlecalx.TokenAcquisition")
+	@Label("OAuth Token Acquisition")
+	public static final class TokenAcquisition extends ExportEvent {
+
+		@Label("Refresh")
+		@Description("The token was refreshed rather than authorized by the user")
+		protected boolean refresh;
+
+		/**
+		 * Sets whether the token was refreshed.
+		 * @param flag <code>true</code> if the token was refreshed.
+		 */
+		public void setRefresh(final boolean flag) {
+			refresh = flag;
+		}
+	}
+
+	/**
+	 * Execution of an HTTP request, until the response is consumed.
+	 */
+	@Name("googlecalx.HttpExecute")
+	@Label("HTTP Execute")
+	public static final class HttpExecute extends ExportEvent {
+
+		@Label("Method")
+		protected String method;
+
+		@Label("URL")
+		protected String url;
+
+		@Label("Status")
+		protected int status;
+
+		@Label("Bytes Sent")
+		@DataAmount
+		protected long bytesSent;
+
+		@Label("Bytes Received")
+		@DataAmount
+		protected long bytesReceived;
+
+		/**
+		 * Sets the request.
+		 * @param aMethod the HTTP method
+		 * @param anUrl the URL of the request
+		 */
+		public void setRequest(final String aMethod, final String anUrl) {
+			method = aMethod;
+			url = anUrl;
+		}
+
+		/**
+		 * Sets the response.
+		 * @param aStatus the HTTP status code, zero if there was no response
+		 * @param sent the number of request body bytes sent
+		 * @param received the number of response body bytes received
+		 */
+		public void setResponse(final int aStatus, final long sent, final long received) {
+			status = aStatus;
+			bytesSent = sent;
+			bytesReceived = received;
+		}
+	}
+
+	/**
+	 * Marking of an exported program.
+	 */
+	@Name("googlecalx.Marking")
+	@Label("Marking")
+	public static final class Marking extends ExportEvent {
+		// context fields only
+	}
+
+}
@@ -2,17 +2,28 @@ package googlecalxplugin;
 
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ImageIcon;
 import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import util.exc.ErrorHandler;
 import util.ui.Localizer;
@@ -25,6 +36,7 @@ import devplugin.ProgramReceiveTarget;
 import devplugin.SettingsTab;
 import devplugin.ThemeIcon;
 import devplugin.Version;
+import googlecalxplugin.RequestScheduler.Lane;
 
 /**
  * TV-Browser plugin for exporting programs to Google Calendar.
@@ -33,6 +45,10 @@ public class GoogleCalXPlugin extends Plugin {
 
 	private static Version VERSION;
 
+	private static final int MAX_LISTED = 10;
+	/** the number of programs marked at a time when restoring marks */
+	private static final int RESTORE_CHUNK = 50;
+
 	protected static final String MSG_PLUGIN_NAME = "pluginName";
 	protected static final String MSG_PLUGIN_DESCRIPTION = "description";
 	protected static final String MSG_EXPORT_TEXT = "exportText";
@@ -60,17 +76,48 @@ public class GoogleCalXPlugin extends Plugin {
 	protected static final String MSG_CLEAR_CREDENTIALS = "clearCreds";
 	protected static final String MSG_CREDENTIALS = "creds";
 	protected static final String MSG_R_U_SURE = "sure";
+	protected static final String MSG_EXPORT_THREADS = "exportThreads";
+	protected static final String MSG_CONNECT_TIMEOUT = "connectTimeout";
+	protected static final String MSG_READ_TIMEOUT = "readTimeout";
+	protected static final String MSG_EXPORTING = "exporting";
+	protected static final String MSG_EXPORT_FAILED = "exportFailed";
+	protected static final String MSG_CONFLICT_POLICY = "conflictPolicy";
+	protected static final String MSG_CONFLICTS_FLAGGED = "conflictsFlagged";
+	protected static final String MSG_CONFLICTS_SKIPPED = "conflictsSkipped";
+	protected static final String MSG_CONFLICTS = "conflicts";
+	protected static final String MSG_DELETE_ON_UNMARK = "deleteOnUnmark";
+	protected static final String MSG_DELETE_FAILED = "deleteFailed";
+	protected static final String MSG_ACCOUNT = "account";
+	protected static final String MSG_LOADING = "loading";
+	protected static final String MSG_FILTER = "filter";
+	protected static final String MSG_CONFLICTS_WITH = "conflictsWith";
+	protected static final String MSG_EXPORTS_OK = "exportsComplete";
+	protected static final String MSG_EXPORT_DELAY = "exportDelay";
+	protected static final String MSG_ROUTING = "routingRules";
+	protected static final String MSG_ROUTING_INVALID = "routingInvalid";
+	protected static final String MSG_ROUTING_EXAMPLE = "routingExample";
+	protected static final String MSG_RETENTION = "retentionDays";
+	protected static final String MSG_COUNT = "count";
+	protected static final String MSG_PURGE_COUNT = "purgeCount";
 
+	private static final Logger LOGGER = Logger.getLogger(GoogleCalXPlugin.class.getName());
 	private static final Localizer localizer = Localizer.getLocalizerFor(GoogleCalXPlugin.class);
 	private static PluginInfo pluginInfo;
 	protected static final String PLUGIN_ID = "googlecalx";
 	protected static final String GOOGLE_APPLICATION_ID = "gcalx";
 
 	private final Map<Program, ExportAction> actionsCache;
-	private final ImageIcon exportIcon;
+	private ImageIcon exportIcon;
 	private final ProgramReceiveTarget exportReceiveTarget;
+	private final ProgramReceiveTarget unmarkReceiveTarget;
 	protected GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
-	protected CalendarAccess calendarAccess;
+	private volatile CalendarAccounts calendarAccounts;
+	private volatile CalendarMirror calendarMirror;
+	private volatile RerenderJob rerenderJob;
+	private volatile PurgeJob purgeJob;
+	private volatile boolean startFinished;
+	private boolean marksRestored;
+	private ExportBuffer exportBuffer;
 
 	/**
 	 * Returns the version of the plugin. Read by TV-Browser with some reflection magic.
@@ -111,8 +158,8 @@ public class GoogleCalXPlugin extends Plugin {
 	public GoogleCalXPlugin() {
 		super();
 		actionsCache = new WeakHashMap<Program, ExportAction>();
-		exportIcon = createImageIcon("apps", "office-calendar");
 		exportReceiveTarget = new ProgramReceiveTarget(this, localizer.msg(MSG_PLUGIN_NAME, "Google calendar export"), "googleCalX");
+		unmarkReceiveTarget = new ProgramReceiveTarget(this, localizer.msg(MSG_UNMARK, "Unmark Google Calendar export"), "googleCalXUnmark");
 	}
 
 	/**
@@ -146,12 +193,11 @@ public class GoogleCalXPlugin extends Plugin {
 	@Override
 	public ActionMenu getContextMenuActions(final Program program) {
 		if (isMarkedByPlugin(program)) {
-			final GoogleCalXPlugin plugin = this;
-			return new ActionMenu(new AbstractAction(localizer.msg(MSG_UNMARK, "Unmark Google Calendar export"), exportIcon) {
+			return new ActionMenu(new AbstractAction(localizer.msg(MSG_UNMARK, "Unmark Google Calendar export"), getExportIcon()) {
 				private static final long serialVersionUID = 1L;
 				@Override
 				public void actionPerformed(final ActionEvent e) {
-					program.unmark(plugin);
+					unmark(new Program[] { program });
 				}
 			});
 		} else if (program.getUniqueID() != null) { // circumvent issue in 3.4.2 - see http://hilfe.tvbrowser.org/viewtopic.php?f=42&t=17003&p=113370
@@ -160,7 +206,7 @@ public class GoogleCalXPlugin extends Plugin {
 				final String calendarId = settings.getCalendarId();
 				if (calendarId != null && calendarId.indexOf('@') > 0) {
 					final ExportAction export = new ExportAction(program, this);
-					export.putValue(Action.SMALL_ICON, exportIcon);
+					export.putValue(Action.SMALL_ICON, getExportIcon());
 					actionsCache.put(program, export);
 					action = export;
 				} else {
@@ -173,18 +219,250 @@ public class GoogleCalXPlugin extends Plugin {
 					};
 				}
 			}
+			final CalendarMirror mirror = calendarMirror;
+			if (mirror != null && action instanceof ExportAction) {
+				((ExportAction) action).annotate(mirror.getConflicts(program));
+			}
 			return new ActionMenu(action);
 		} else {
 			return null;
 		}
 	}
 
+	/**
+	 * Returns the icon of the export actions. It is loaded from the icon
+	 * theme of TV-Browser on first use, so creating the plugin needs no theme.
+	 * @return the icon, may be <code>null</code>.
+	 */
+	private ImageIcon getExportIcon() {
+		if (exportIcon == null) {
+			exportIcon = createImageIcon("apps", "office-calendar");
+		}
+		return exportIcon;
+	}
+
+	/**
+	 * Starts the background jobs, see {@link #startBackgroundJobs()}, and
+	 * deleting past events if enabled, see {@link PurgeJob}. The jobs get
+	 * the calendar accessor on their own threads, so the Google API client
+	 * is not loaded on the startup path.
+	 */
+	@Override
+	public void handleTvBrowserStartFinished() {
+		startFinished = true;
+		startBackgroundJobs();
+		updatePurge();
+	}
+
+	/**
+	 * Starts mirroring the export target calendar, so the context menu
+	 * can tell about collisions with existing appointments, resumes
+	 * rendering exported events again, see {@link RerenderJob}, and
+	 * restores the marks of the programs exported to it once per start.
+	 */
+	protected synchronized void startBackgroundJobs() {
+		updateMirror();
+		updateRerender();
+		final String calendarId = settings.getCalendarId();
+		if (!marksRestored && calendarId != null && calendarId.indexOf('@') > 0) {
+			marksRestored = true;
+			new RestoreMarks().execute();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onDeactivation() {
+		synchronized (this) {
+			startFinished = false;
+			marksRestored = false;
+		}
+		closeExportBuffer();
+		final CalendarMirror mirror = calendarMirror;
+		calendarMirror = null;
+		if (mirror != null) {
+			mirror.close();
+		}
+		final RerenderJob job = rerenderJob;
+		rerenderJob = null;
+		if (job != null) {
+			job.close();
+		}
+		final PurgeJob purge = purgeJob;
+		purgeJob = null;
+		if (purge != null) {
+			purge.close();
+		}
+		closeCalendarAccounts();
+	}
+
+	/**
+	 * Starts the mirror of the export target calendar if a calendar is
+	 * configured, or reloads it if it runs already.
+	 */
+	protected void updateMirror() {
+		final String calendarId = settings.getCalendarId();
+		if (calendarId == null || calendarId.indexOf('@') <= 0) {
+			return;
+		}
+		CalendarMirror mirror = calendarMirror;
+		if (mirror == null) {
+			synchronized (this) {
+				mirror = calendarMirror;
+				if (mirror == null) {
+					mirror = new CalendarMirror(this::getCalendarAccess, CalendarMirror.DEFAULT_INTERVAL);
+					calendarMirror = mirror;
+					mirror.start();
+					return;
+				}
+			}
+		}
+		mirror.refresh();
+	}
+
+	/**
+	 * Renders the events exported to the export target calendar again in
+	 * the background if the settings they are rendered from changed since
+	 * they were exported. Does nothing unless a calendar is configured.
+	 */
+	protected void updateRerender() {
+		final String calendarId = settings.getCalendarId();
+		if (calendarId == null || calendarId.indexOf('@') <= 0) {
+			return;
+		}
+		RerenderJob job = rerenderJob;
+		if (job == null) {
+			synchronized (this) {
+				job = rerenderJob;
+				if (job == null) {
+					job = new RerenderJob(this::getCalendarAccess, programId -> getPluginManager().getProgram(programId), RerenderJob.DEFAULT_PAUSE);
+					rerenderJob = job;
+				}
+			}
+		}
+		job.start();
+	}
+
+	/**
+	 * Starts deleting past events from the export target calendar in the
+	 * background if a calendar is configured and a retention is set. The
+	 * job checks the retention setting on each step, so it needs no restart
+	 * when the setting changes.
+	 */
+	protected synchronized void updatePurge() {
+		final String calendarId = settings.getCalendarId();
+		if (purgeJob != null || settings.getRetentionDays() <= 0 || calendarId == null || calendarId.indexOf('@') <= 0) {
+			return;
+		}
+		purgeJob = new PurgeJob(this::getCalendarAccess, settings::getRetentionDays, PurgeJob.DEFAULT_INTERVAL);
+		purgeJob.start();
+	}
+
+	/**
+	 * Unmarks the given programs. If configured, the calendar events of the
+	 * programs are deleted first, in the background; programs whose events
+	 * could not be deleted stay marked.
+	 * @param programs the programs to unmark, must not be <code>null</code>.
+	 */
+	protected void unmark(final Program[] programs) {
+		final List<Program> marked = new ArrayList<Program>(programs.length);
+		for (Program program : programs) {
+			if (isMarkedByPlugin(program)) {
+				marked.add(program);
+			}
+		}
+		if (marked.isEmpty()) {
+			return;
+		}
+		if (settings.getDeleteOnUnmark()) {
+			new BulkUnmark(marked).execute();
+		} else {
+			for (Program program : marked) {
+				program.unmark(this);
+			}
+		}
+	}
+
+	/**
+	 * Marks the given exported program, recording it as {@link ExportEvents.Marking}.
+	 * @param program the program to mark, must not be <code>null</code>.
+	 */
+	protected void mark(final Program program) {
+		final ExportEvents.Marking trace = new ExportEvents.Marking();
+		trace.begin();
+		program.mark(this);
+		trace.commitInContext();
+	}
+
 	/**
 	 * Clears the actions cache. Can be invoked e.g. when
 	 * preferences change.
 	 */
 	protected void resetActionsCache() {
 		actionsCache.clear();
+		closeExportBuffer();
+		updatePurge();
+		if (startFinished) {
+			startBackgroundJobs();
+		}
+	}
+
+	/**
+	 * Returns the buffer collecting single exports, creating it on first use.
+	 * @return the export buffer, never <code>null</code>.
+	 */
+	protected synchronized ExportBuffer getExportBuffer() {
+		if (exportBuffer == null) {
+			exportBuffer = new ExportBuffer(
+				getCalendarAccess(),
+				getCalendarAccounts()::get,
+				result -> SwingUtilities.invokeLater(() -> exported(result)),
+				settings.getExportDelay());
+		}
+		return exportBuffer;
+	}
+
+	/**
+	 * Sends the pending single exports and drops the buffer, so the next
+	 * export uses the current account and coalescing window.
+	 */
+	private synchronized void closeExportBuffer() {
+		if (exportBuffer != null) {
+			exportBuffer.close();
+			exportBuffer = null;
+		}
+	}
+
+	/**
+	 * Marks the programs of a batch of single exports and reports the
+	 * outcome with one message.
+	 * @param result the outcome of the batch, must not be <code>null</code>.
+	 */
+	protected void exported(final ExportBuffer.Result result) {
+		for (Program program : result.getExported().keySet()) {
+			ExportEvents.run(program.getUniqueID(), result.getCalendarId(), result.getBatchId(), () -> mark(program));
+		}
+		final CalendarMirror mirror = calendarMirror;
+		if (mirror != null) {
+			mirror.add(result);
+		}
+		final Map<Program, Exception> failures = result.getFailures();
+		final int exported = result.getExported().size();
+		if (!failures.isEmpty()) {
+			ErrorHandler.handle(
+				list(localizer.msg(MSG_EXPORT_FAILED, "{0} of {1} programs could not be exported:", Integer.valueOf(failures.size()), Integer.valueOf(failures.size() + exported)), failures.keySet()),
+				failures.values().iterator().next());
+		} else if (settings.getShowExportSuccess()) {
+			JOptionPane.showMessageDialog(
+				getParentFrame(),
+				exported == 1
+					? localizer.msg(MSG_EXPORT_OK, "Export to calendar was successful.")
+					: localizer.msg(MSG_EXPORTS_OK, "{0} programs were exported to the calendar.", Integer.valueOf(exported)),
+				localizer.msg(MSG_SUCCESS, "Success!"),
+				JOptionPane.INFORMATION_MESSAGE);
+		}
 	}
 
 	/**
@@ -210,7 +488,7 @@ public class GoogleCalXPlugin extends Plugin {
 	 */
 	@Override
 	public SettingsTab getSettingsTab() {
-		return new GoogleCalXPreferences(getParentFrame(), this, calendarAccess, localizer, createImageIcon("apps", "office-calendar", 16));
+		return new GoogleCalXPreferences(getParentFrame(), this, getCalendarAccounts(), localizer, createImageIcon("apps", "office-calendar", 16));
 	}
 
 	/**
@@ -226,17 +504,62 @@ public class GoogleCalXPlugin extends Plugin {
 	 */
 	@Override
 	public void loadSettings(final Properties properties) {
+		closeExportBuffer();
 		settings = new GoogleCalXSettings(properties);
-		try {
-			calendarAccess = new CalendarAccess(
-					settings,
-					getPluginManager().getTvBrowserSettings().getTvBrowserUserHome(),
-					null);
-		} catch (IOException e) {
-			throw new IllegalStateException(e);
-		} catch (GeneralSecurityException e) {
-			throw new IllegalStateException(e);
+		closeCalendarAccounts();
+	}
+
+	/**
+	 * Closes the calendar accounts, if created, so their pending changes are
+	 * written and their background writer ends; the next access creates them
+	 * again from the current settings.
+	 */
+	private synchronized void closeCalendarAccounts() {
+		final CalendarAccounts accounts = calendarAccounts;
+		calendarAccounts = null;
+		if (accounts != null) {
+			try {
+				accounts.close();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "cannot write the stored credentials", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the calendar accounts. They are created on first use, so that
+	 * the Google API client is not loaded and initialized together with
+	 * the plugin, but only on the first export or settings access.
+	 * @return the calendar accounts, never <code>null</code>.
+	 */
+	protected CalendarAccounts getCalendarAccounts() {
+		CalendarAccounts result = calendarAccounts;
+		if (result == null) {
+			synchronized (this) {
+				result = calendarAccounts;
+				if (result == null) {
+					try {
+						result = new CalendarAccounts(
+								settings,
+								getPluginManager().getTvBrowserSettings().getTvBrowserUserHome());
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					} catch (GeneralSecurityException e) {
+						throw new IllegalStateException(e);
+					}
+					calendarAccounts = result;
+				}
+			}
 		}
+		return result;
+	}
+
+	/**
+	 * Returns the calendar accessor of the account of the export target.
+	 * @return the calendar accessor, never <code>null</code>.
+	 */
+	protected CalendarAccess getCalendarAccess() {
+		return getCalendarAccounts().getTarget();
 	}
 
 	/**
@@ -251,28 +574,239 @@ public class GoogleCalXPlugin extends Plugin {
 	 */
 	public boolean receivePrograms(final Program[] programArr, final ProgramReceiveTarget receiveTarget) {
 		if (exportReceiveTarget.equals(receiveTarget)) {
-			if (programArr != null) {
-				for (Program program : programArr) {
-					try {
-						calendarAccess.addEvent(
-							calendarAccess.createEvent(program)
-						);
-						program.mark(this);
-					} catch (IOException ex) {
-						ErrorHandler.handle(localizer.msg(MSG_ERROR, "Service call error"), ex);
-					}
-				}
+			if (programArr != null && programArr.length > 0) {
+				new BulkExport(programArr).execute();
+			}
+			return true;
+		} else if (unmarkReceiveTarget.equals(receiveTarget)) {
+			if (programArr != null && programArr.length > 0) {
+				unmark(programArr);
 			}
 			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * Creates the monitor showing the progress of a bulk export.
+	 * @param count the number of programs to export
+	 * @return the progress monitor, never <code>null</code>.
+	 */
+	protected ProgressMonitor createProgressMonitor(final int count) {
+		return new ProgressMonitor(
+			getParentFrame(),
+			localizer.msg(MSG_EXPORTING, "Exporting {0} programs...", Integer.valueOf(count)),
+			null,
+			0,
+			count);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	public ProgramReceiveTarget[] getProgramReceiveTargets() {
-		return new ProgramReceiveTarget[] { exportReceiveTarget };
+		return new ProgramReceiveTarget[] { exportReceiveTarget, unmarkReceiveTarget };
+	}
+
+	/**
+	 * Exports programs in the background, showing the progress with
+	 * the option to cancel. Failures are reported once at the end.
+	 */
+	private class BulkExport extends SwingWorker<BulkExporter.Result, Program> implements BulkExporter.Listener {
+
+		private final Program[] programs;
+		private final String calendarId;
+		private final BulkExporter exporter;
+		private final ProgressMonitor monitor;
+		private final AtomicInteger progress;
+		private final AtomicInteger maximum;
+
+		protected BulkExport(final Program[] somePrograms) {
+			programs = somePrograms;
+			final CalendarAccess access = getCalendarAccess();
+			calendarId = access.getTargetCalendarId();
+			exporter = new BulkExporter(access, getCalendarAccounts()::get);
+			exporter.setConflictPolicy(settings.getConflictPolicy());
+			monitor = createProgressMonitor(programs.length);
+			progress = new AtomicInteger();
+			maximum = new AtomicInteger(programs.length);
+		}
+
+		@Override
+		protected BulkExporter.Result doInBackground() throws IOException {
+			return exporter.export(programs, this);
+		}
+
+		@Override
+		public void processed(final Program program, final int done, final int total, final boolean exported) {
+			progress.set(done);
+			maximum.set(total);
+			publish(exported ? program : null);
+		}
+
+		@Override
+		protected void process(final List<Program> exported) {
+			for (Program program : exported) {
+				if (program != null) {
+					ExportEvents.run(program.getUniqueID(), calendarId, exporter.getBatchId(), () -> mark(program));
+				}
+			}
+			monitor.setMaximum(maximum.get());
+			monitor.setProgress(progress.get());
+			if (monitor.isCanceled()) {
+				exporter.cancel();
+			}
+		}
+
+		@Override
+		protected void done() {
+			monitor.close();
+			try {
+				final BulkExporter.Result result = get();
+				if (!result.getConflicts().isEmpty()) {
+					final String message = settings.getConflictPolicy() == ConflictPolicy.skip
+						? localizer.msg(MSG_CONFLICTS_SKIPPED, "{0} programs collide with existing appointments and were not exported:", Integer.valueOf(result.getConflicts().size()))
+						: localizer.msg(MSG_CONFLICTS_FLAGGED, "{0} programs collide with existing appointments:", Integer.valueOf(result.getConflicts().size()));
+					JOptionPane.showMessageDialog(getParentFrame(), list(message, result.getConflicts()), localizer.msg(MSG_CONFLICTS, "Conflicts"), JOptionPane.WARNING_MESSAGE);
+				}
+				final Map<Program, Exception> failures = result.getFailures();
+				if (!failures.isEmpty()) {
+					ErrorHandler.handle(
+						list(localizer.msg(MSG_EXPORT_FAILED, "{0} of {1} programs could not be exported:", Integer.valueOf(failures.size()), Integer.valueOf(result.getTotal())), failures.keySet()),
+						failures.values().iterator().next());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				ErrorHandler.handle(localizer.msg(MSG_ERROR, "Service call error"), e.getCause());
+			}
+			updateMirror();
+		}
+	}
+
+	/**
+	 * Deletes the calendar events of programs in the background and
+	 * unmarks the programs whose events were deleted. Failures are
+	 * reported once at the end.
+	 */
+	private class BulkUnmark extends SwingWorker<Map<Program, IOException>, Void> {
+
+		private final List<Program> programs;
+
+		protected BulkUnmark(final List<Program> somePrograms) {
+			programs = somePrograms;
+		}
+
+		@Override
+		protected Map<Program, IOException> doInBackground() throws IOException {
+			final CalendarAccess access = getCalendarAccess();
+			// the events are deleted by the account of the calendar they were routed to
+			final Map<String, List<Program>> byAccount = new LinkedHashMap<String, List<Program>>();
+			for (Program program : programs) {
+				byAccount.computeIfAbsent(access.getTarget(program).getAccount(), account -> new ArrayList<Program>()).add(program);
+			}
+			final Map<Program, IOException> failures = new LinkedHashMap<Program, IOException>();
+			ExportEvents.run(null, access.getTargetCalendarId(), ExportEvents.nextBatchId(), () -> {
+				for (Map.Entry<String, List<Program>> entry : byAccount.entrySet()) {
+					failures.putAll(getCalendarAccounts().get(entry.getKey()).deleteEvents(entry.getValue(), Lane.INTERACTIVE));
+				}
+			});
+			return failures;
+		}
+
+		@Override
+		protected void done() {
+			try {
+				final Map<Program, IOException> failures = get();
+				for (Program program : programs) {
+					if (!failures.containsKey(program)) {
+						program.unmark(GoogleCalXPlugin.this);
+					}
+				}
+				if (!failures.isEmpty()) {
+					ErrorHandler.handle(
+						list(localizer.msg(MSG_DELETE_FAILED, "{0} of {1} calendar events could not be deleted:", Integer.valueOf(failures.size()), Integer.valueOf(programs.size())), failures.keySet()),
+						failures.values().iterator().next());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				ErrorHandler.handle(localizer.msg(MSG_ERROR, "Service call error"), e.getCause());
+			}
+			updateMirror();
+		}
+	}
+
+	/**
+	 * Marks the programs of the program guide which have an event in one
+	 * of the calendars programs are exported to, e.g. after the TV-Browser
+	 * settings were lost. The exported programs are listed with one ranged
+	 * query per calendar and marked in small chunks, so the user interface
+	 * stays responsive.
+	 */
+	private class RestoreMarks extends SwingWorker<Integer, Void> {
+
+		@Override
+		protected Integer doInBackground() throws IOException, InterruptedException, InvocationTargetException {
+			final List<String> programIds = new ArrayList<String>();
+			final long now = System.currentTimeMillis();
+			for (CalendarAccess access : getCalendarAccounts().getTargets()) {
+				if (!access.isAuthorized()) {
+					// never open the authorization page on startup
+					continue;
+				}
+				for (String calendarId : access.getTargetCalendarIds()) {
+					access.getExportedPrograms(calendarId, now - CalendarMirror.PAST, now + CalendarMirror.FUTURE, Lane.BACKGROUND, programIds::addAll);
+				}
+			}
+			final AtomicInteger restored = new AtomicInteger();
+			for (int i = 0; i < programIds.size() && !isCancelled(); i += RESTORE_CHUNK) {
+				final List<Program> programs = new ArrayList<Program>(RESTORE_CHUNK);
+				for (String programId : programIds.subList(i, Math.min(programIds.size(), i + RESTORE_CHUNK))) {
+					final Program program = getPluginManager().getProgram(programId);
+					if (program != null) {
+						programs.add(program);
+					}
+				}
+				SwingUtilities.invokeAndWait(() -> {
+					for (Program program : programs) {
+						if (!isMarkedByPlugin(program)) {
+							mark(program);
+							restored.incrementAndGet();
+						}
+					}
+				});
+			}
+			return Integer.valueOf(restored.get());
+		}
+
+		@Override
+		protected void done() {
+			try {
+				get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// not asked for by the user; the marks are restored on the next start
+			}
+		}
+	}
+
+	/**
+	 * Returns the message followed by the titles of the first programs.
+	 */
+	private static String list(final String message, final Collection<Program> programs) {
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append(message);
+		int i = 0;
+		for (Program program : programs) {
+			if (i++ == MAX_LISTED) {
+				sb.append("\n...");
+				break;
+			}
+			sb.append("\n").append(program.getTitle());
+		}
+		return sb.toString();
 	}
 
 	/**
@@ -281,39 +815,46 @@ public class GoogleCalXPlugin extends Plugin {
 	private static class ExportAction extends AbstractAction {
 
 		private static final long serialVersionUID = 1L;
+		private static final int MAX_CONFLICTS_SHOWN = 2;
 
 		private final Program program;
 		private final GoogleCalXPlugin plugin;
+		private final String label;
 
 		protected ExportAction(final Program prog, final GoogleCalXPlugin parent) {
 			super(getLabel(parent.settings));
 			program = prog;
 			plugin = parent;
+			label = (String) getValue(Action.NAME);
 		}
 
-		@Override
-		public void actionPerformed(final ActionEvent e) {
-			if (plugin.calendarAccess != null) {
-				SwingUtilities.invokeLater(() -> {
-					try {
-						plugin.calendarAccess.addEvent(
-							plugin.calendarAccess.createEvent(program)
-						);
-						program.mark(plugin);
-						if (plugin.settings.getShowExportSuccess()) {
-							JOptionPane.showMessageDialog(
-								plugin.getParentFrame(),
-								localizer.msg(MSG_EXPORT_OK, "Export to calendar was successful."),
-								localizer.msg(MSG_SUCCESS, "Success!"),
-								JOptionPane.INFORMATION_MESSAGE);
-						}
-					} catch (IOException ex) {
-						ErrorHandler.handle(localizer.msg(MSG_ERROR, "Service call error"), ex);
+		/**
+		 * Shows the appointments colliding with the program in the label.
+		 * @param conflicts the summaries of the colliding appointments, must not be <code>null</code>.
+		 */
+		protected void annotate(final List<String> conflicts) {
+			if (conflicts.isEmpty()) {
+				putValue(Action.NAME, label);
+			} else {
+				final StringBuilder sb = new StringBuilder(64);
+				for (int i = 0; i < conflicts.size() && i < MAX_CONFLICTS_SHOWN; i++) {
+					if (i > 0) {
+						sb.append(", ");
 					}
-				});
+					sb.append(conflicts.get(i));
+				}
+				if (conflicts.size() > MAX_CONFLICTS_SHOWN) {
+					sb.append(", ...");
+				}
+				putValue(Action.NAME, localizer.msg(MSG_CONFLICTS_WITH, "{0} (conflicts with {1})", label, sb.toString()));
 			}
 		}
 
+		@Override
+		public void actionPerformed(final ActionEvent e) {
+			SwingUtilities.invokeLater(() -> plugin.getExportBuffer().submit(program));
+		}
+
 		/**
 		 * Returns the text for the export action.
 		 * @param settings the settings of the plugin, must not be <code>null</code>.
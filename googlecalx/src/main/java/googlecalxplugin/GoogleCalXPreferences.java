@@ -11,6 +11,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.Icon;
 import javax.swing.JButton;
@@ -18,8 +20,12 @@ import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JSeparator;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
 
 import com.google.api.services.calendar.model.ColorDefinition;
@@ -38,17 +44,27 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 
 	private final Component parent;
 	private final GoogleCalXPlugin plugin;
-	private final CalendarAccess calendarAccess;
+	private final CalendarAccounts calendarAccounts;
 	private final Localizer localizer;
 	private final Icon icon;
 	private JTextField fieldCalendarId;
+	private JComboBox<String> fieldAccount;
 	private CalendarTargetField fieldCalendarTarget;
 	private JCheckBox fieldShowCalendarId;
 	private JCheckBox fieldShowExportSuccess;
+	private JSpinner fieldExportThreads;
+	private JSpinner fieldConnectTimeout;
+	private JSpinner fieldReadTimeout;
+	private JSpinner fieldExportDelay;
+	private JComboBox<ConflictPolicy> fieldConflictPolicy;
+	private JCheckBox fieldDeleteOnUnmark;
 	private JTextField fieldNotificationTime;
 	private JTextField fieldNotificationTitle;
 	private JTextField fieldNotificationBody;
 	private JComboBox<NotificationTypes> fieldNotificationType;
+	private JTextArea fieldRoutingRules;
+	private JSpinner fieldRetentionDays;
+	private JButton countPurge;
 	private JButton pickNotificationColor;
 	private JButton pickCalendarTarget;
 	private JButton clearCredentials;
@@ -58,14 +74,14 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 	 * Creates the preferences view (plugin.settings tab).
 	 * @param comp the parent component (frame), must not be <code>null</code>.
 	 * @param aPlugin the plugin holding the plugin.settings, must not be <code>null</code>.
-	 * @param anAccess the calendar accessor, must not be <code>null</code>.
+	 * @param someAccounts the calendar accounts, must not be <code>null</code>.
 	 * @param aLocalizer the localizer for messages, must not be <code>null</code>.
 	 * @param anIcon an icon; may be <code>null</code>
 	 */
-	public GoogleCalXPreferences(final Component comp, final GoogleCalXPlugin aPlugin, final CalendarAccess anAccess, final Localizer aLocalizer, final Icon anIcon) {
+	public GoogleCalXPreferences(final Component comp, final GoogleCalXPlugin aPlugin, final CalendarAccounts someAccounts, final Localizer aLocalizer, final Icon anIcon) {
 		parent = comp;
 		plugin = aPlugin;
-		calendarAccess = anAccess;
+		calendarAccounts = someAccounts;
 		localizer = aLocalizer;
 		icon = anIcon;
 	}
@@ -94,13 +110,20 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 		pb.addRow();
 		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_CALENDAR_ID, "Calendar ID (eMail)") + ':', cc.xy(2, pb.getRow()));
 		pb.add(fieldCalendarId, cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
+		fieldAccount = new JComboBox<String>(plugin.settings.getAccounts().toArray(new String[0]));
+		fieldAccount.setEditable(true);
+		fieldAccount.setSelectedItem(plugin.settings.getAccount());
+		fieldAccount.addActionListener(this);
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_ACCOUNT, "Google account") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldAccount, cc.xy(4, pb.getRow()));
 		CalendarTarget target = plugin.settings.getCalendarTarget();
 		if (target == null) {
 			final String defaultID = plugin.settings.getCalendarId();
 			if (defaultID != null) {
-				target = new CalendarTarget(defaultID, defaultID);
+				target = new CalendarTarget(defaultID, defaultID, plugin.settings.getAccount());
 			} else {
-				target = new CalendarTarget("", "");
+				target = new CalendarTarget("", "", plugin.settings.getAccount());
 			}
 		}
 		fieldCalendarTarget = new CalendarTargetField(target);
@@ -125,6 +148,38 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_SHOW_EXPORT_SUCCESS, "Show success message after export") + ':', cc.xy(2, pb.getRow()));
 		pb.add(fieldShowExportSuccess, cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
 
+		fieldExportThreads = new JSpinner(new SpinnerNumberModel(plugin.settings.getMaxConcurrency(), 1, 16, 1));
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_EXPORT_THREADS, "Parallel requests for multiple programs") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldExportThreads, cc.xy(4, pb.getRow()));
+
+		fieldConnectTimeout = new JSpinner(new SpinnerNumberModel(plugin.settings.getConnectTimeout(), 1, 120, 1));
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_CONNECT_TIMEOUT, "Connect timeout (s)") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldConnectTimeout, cc.xy(4, pb.getRow()));
+
+		fieldReadTimeout = new JSpinner(new SpinnerNumberModel(plugin.settings.getReadTimeout(), 1, 300, 1));
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_READ_TIMEOUT, "Response timeout (s)") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldReadTimeout, cc.xy(4, pb.getRow()));
+
+		fieldExportDelay = new JSpinner(new SpinnerNumberModel(plugin.settings.getExportDelay(), 0, 10000, 250));
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_EXPORT_DELAY, "Collect single exports for (ms)") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldExportDelay, cc.xy(4, pb.getRow()));
+
+		fieldConflictPolicy = new JComboBox<ConflictPolicy>(ConflictPolicy.values());
+		fieldConflictPolicy.setSelectedItem(plugin.settings.getConflictPolicy());
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_CONFLICT_POLICY, "Appointment conflicts") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldConflictPolicy, cc.xy(4, pb.getRow()));
+
+		fieldDeleteOnUnmark = new JCheckBox();
+		fieldDeleteOnUnmark.setSelected(plugin.settings.getDeleteOnUnmark());
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_DELETE_ON_UNMARK, "Delete calendar event when unmarking") + ':', cc.xy(2, pb.getRow()));
+		pb.add(fieldDeleteOnUnmark, cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
+
 		fieldNotificationTitle = new JTextField(plugin.settings.getNotificationTitle());
 		pb.addRow();
 		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_NOTIFICATION_TITLE, "Notification title") + ':', cc.xy(2, pb.getRow()));
@@ -157,6 +212,22 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 		temp.add(pickNotificationColor);
 		pb.add(temp, cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
 
+		fieldRoutingRules = new JTextArea(plugin.settings.getRoutingRules().getSource(), 4, 40);
+		fieldRoutingRules.setToolTipText(localizer.msg(GoogleCalXPlugin.MSG_ROUTING_EXAMPLE, "Example: channel=ARD; genre=Krimi -> calendar=...; reminder=popup:15; color=11"));
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_ROUTING, "Rules per program") + ':', cc.xy(2, pb.getRow()));
+		pb.add(new JScrollPane(fieldRoutingRules), cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
+
+		fieldRetentionDays = new JSpinner(new SpinnerNumberModel(plugin.settings.getRetentionDays(), 0, 3650, 1));
+		countPurge = new JButton(localizer.msg(GoogleCalXPlugin.MSG_COUNT, "count"));
+		countPurge.addActionListener(this);
+		temp = new JPanel(new FlowLayout(FlowLayout.LEFT));
+		temp.add(fieldRetentionDays);
+		temp.add(countPurge);
+		pb.addRow();
+		pb.addLabel(localizer.msg(GoogleCalXPlugin.MSG_RETENTION, "Delete past events after days (0 = never)") + ':', cc.xy(2, pb.getRow()));
+		pb.add(temp, cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
+
 		pb.addRow();
 		pb.add(new JSeparator(), cc.xyw(4, pb.getRow(), pb.getColumnCount() - 3));
 
@@ -194,14 +265,35 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 	@Override
 	public void saveSettings() {
 		plugin.settings.setCalendarId(fieldCalendarId.getText());
+		final List<String> accounts = new ArrayList<String>();
+		for (int i = 0; i < fieldAccount.getItemCount(); i++) {
+			accounts.add(fieldAccount.getItemAt(i));
+		}
+		accounts.add(getAccount());
+		plugin.settings.setAccounts(accounts);
+		// the target keeps the account it was picked from
 		plugin.settings.setCalendarTarget(fieldCalendarTarget.getCalendarTarget());
 		plugin.settings.setShowCalendarId(fieldShowCalendarId.isSelected());
 		plugin.settings.setShowExportSuccess(fieldShowExportSuccess.isSelected());
+		plugin.settings.setMaxConcurrency(((Number) fieldExportThreads.getValue()).intValue());
+		plugin.settings.setConnectTimeout(((Number) fieldConnectTimeout.getValue()).intValue());
+		plugin.settings.setReadTimeout(((Number) fieldReadTimeout.getValue()).intValue());
+		plugin.settings.setExportDelay(((Number) fieldExportDelay.getValue()).intValue());
+		plugin.settings.setConflictPolicy((ConflictPolicy) fieldConflictPolicy.getSelectedItem());
+		plugin.settings.setDeleteOnUnmark(fieldDeleteOnUnmark.isSelected());
 		plugin.settings.setNotificationTitle(fieldNotificationTitle.getText());
 		plugin.settings.setNotificationBody(fieldNotificationBody.getText());
 		plugin.settings.setNotificationType((NotificationTypes) fieldNotificationType.getSelectedItem());
 		plugin.settings.setNotificationTime(fieldNotificationTime.getText());
 		plugin.settings.setNotificationColor(notificationColor.getColor());
+		plugin.settings.setRetentionDays(((Number) fieldRetentionDays.getValue()).intValue());
+		try {
+			// compiled once here, not per export
+			plugin.settings.setRoutingRules(RoutingRules.compile(fieldRoutingRules.getText()));
+		} catch (IllegalArgumentException e) {
+			ErrorHandler.handle(localizer.msg(GoogleCalXPlugin.MSG_ROUTING_INVALID, "The rules are invalid and were not saved, the previous rules remain active: {0}", e.getMessage()), e);
+			fieldRoutingRules.setText(plugin.settings.getRoutingRules().getSource());
+		}
 		plugin.resetActionsCache();
 	}
 
@@ -213,47 +305,80 @@ public class GoogleCalXPreferences implements SettingsTab, ActionListener {
 		final Object source = e.getSource();
 		if (source == fieldNotificationType) {
 			handleDependencies();
+		} else if (source == fieldAccount) {
+			if (fieldCalendarTarget.getCalendarTarget().getId().isEmpty()) {
+				// without a target, the calendar ID is exported to with the selected account
+				fieldCalendarTarget.setCalendarTarget(new CalendarTarget("", "", getAccount()));
+			}
 		} else if (source == clearCredentials) {
 			if (JOptionPane.showConfirmDialog(parent, localizer.msg(GoogleCalXPlugin.MSG_R_U_SURE, "Are you sure?"), localizer.msg(GoogleCalXPlugin.MSG_CLEAR_CREDENTIALS, "clear"), JOptionPane.YES_NO_OPTION) == JOptionPane.OK_OPTION) {
-				calendarAccess.deleteCredentials();
-			}
-		} else if (source == pickCalendarTarget) {
-			SwingUtilities.invokeLater(() -> {
 				try {
-					final List<CalendarTarget> targets = calendarAccess.getCalendarTargets();
-					if (targets.size() > 0) {
-						final CalendarTarget[] possibleValues = targets.toArray(new CalendarTarget[targets.size()]);
-						final Object selectedValue = JOptionPane.showInputDialog(
-								parent,
-								localizer.msg(GoogleCalXPlugin.MSG_CHOOSE_CALENDAR, "Choose calendar"),
-								localizer.msg(GoogleCalXPlugin.MSG_SELECT, "select"),
-								JOptionPane.INFORMATION_MESSAGE,
-								null,
-								possibleValues, possibleValues[0]);
-						if (selectedValue != null) {
-							fieldCalendarTarget.setCalendarTarget((CalendarTarget) selectedValue);
-						}
-					}
+					calendarAccounts.get(getAccount()).deleteCredentials();
 				} catch (IOException ex) {
 					ErrorHandler.handle(localizer.msg(GoogleCalXPlugin.MSG_ERROR, "Service call error"), ex);
 				}
-			});
+			}
+		} else if (source == pickCalendarTarget) {
+			final CalendarAccess access = calendarAccounts.get(getAccount());
+			final ListPicker<CalendarTarget> picker = new ListPicker<CalendarTarget>(
+				parent,
+				localizer,
+				localizer.msg(GoogleCalXPlugin.MSG_CHOOSE_CALENDAR, "Choose calendar"),
+				access::getCalendarTargetsAsync);
+			picker.setFilter(target -> target.getLabel() + ' ' + target.getId());
+			final CalendarTarget selected = picker.pick();
+			if (selected != null) {
+				fieldCalendarTarget.setCalendarTarget(selected);
+			}
+		} else if (source == countPurge) {
+			countPurge();
 		} else if (source == pickNotificationColor) {
-			SwingUtilities.invokeLater(() -> {
-				try {
+			final CalendarAccess access = calendarAccounts.get(getAccount());
+			notificationColor.setColor(NotificationColor.pickColor(parent, localizer, localizer.msg(GoogleCalXPlugin.MSG_CHOOSE_COLOR, "Choose color"), pages -> {
+				final CompletableFuture<Set<Map.Entry<String, ColorDefinition>>> definitions = access.getCalendarColorsAsync();
+				final CompletableFuture<Void> result = definitions.thenAccept(entries -> {
 					final List<CalendarColor> colors = new ArrayList<CalendarColor>();
-					for (Map.Entry<String, ColorDefinition> entry : calendarAccess.getCalendarColors()) {
+					for (Map.Entry<String, ColorDefinition> entry : entries) {
 						colors.add(new CalendarColor(entry.getKey(), entry.getValue()));
 					}
 					Collections.sort(colors);
-					notificationColor.setColor(NotificationColor.pickColor(parent, localizer.msg(GoogleCalXPlugin.MSG_CHOOSE_COLOR, "Choose color"), colors));
-				} catch (IOException ex) {
-					ErrorHandler.handle(localizer.msg(GoogleCalXPlugin.MSG_ERROR, "Service call error"), ex);
-				}
-			});
+					pages.accept(colors);
+				});
+				// closing the dialog abandons the request
+				result.whenComplete((ignored, error) -> definitions.cancel(true));
+				return result;
+			}));
 		}
 	}
 
+	/**
+	 * Counts in the background the events a purge with the entered number
+	 * of days would delete, and tells the user; nothing is deleted.
+	 */
+	protected void countPurge() {
+		final int days = ((Number) fieldRetentionDays.getValue()).intValue();
+		final CalendarAccess access = calendarAccounts.get(getAccount());
+		countPurge.setEnabled(false);
+		new PurgeJob(() -> access, () -> days, PurgeJob.DEFAULT_INTERVAL).countAsync(days).whenCompleteAsync((count, error) -> {
+			countPurge.setEnabled(true);
+			if (error != null) {
+				ErrorHandler.handle(localizer.msg(GoogleCalXPlugin.MSG_ERROR, "Service call error"), error);
+			} else {
+				JOptionPane.showMessageDialog(parent, localizer.msg(GoogleCalXPlugin.MSG_PURGE_COUNT, "{0} past events would be deleted.", count), localizer.msg(GoogleCalXPlugin.MSG_COUNT, "count"), JOptionPane.INFORMATION_MESSAGE);
+			}
+		}, SwingUtilities::invokeLater);
+	}
+
+	/**
+	 * Returns the account selected or entered.
+	 * @return the name of the account, never <code>null</code>.
+	 */
+	protected String getAccount() {
+		final Object selected = fieldAccount.getSelectedItem();
+		final String account = selected != null ? selected.toString().replace(',', ' ').replace('|', ' ').trim() : "";
+		return account.isEmpty() ? CalendarAccounts.DEFAULT_ACCOUNT : account;
+	}
+
 	/**
 	 * Enables or disables components dependent on whether custom notifications should be used.
 	 */
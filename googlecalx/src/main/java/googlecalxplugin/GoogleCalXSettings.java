@@ -1,8 +1,15 @@
 package googlecalxplugin;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import devplugin.Program;
 import devplugin.ProgramFieldType;
@@ -15,6 +22,7 @@ public class GoogleCalXSettings extends PropertyBasedSettings {
 	
 	private static final String PROP_CALENDAR_ID = "calendarId";
 	private static final String PROP_CALENDAR_TARGET = "calendarTarget";
+	private static final String PROP_EXPORT_TARGET = "exportTarget";
 	private static final String PROP_SHOW_CALENDAR_ID = "idInContextMenu";
 	private static final String PROP_NOTIFICATION_TIME = "ntime";
 	private static final String PROP_NOTIFICATION_TYPE = "ntype";
@@ -22,8 +30,20 @@ public class GoogleCalXSettings extends PropertyBasedSettings {
 	private static final String PROP_NOTIFICATION_TITLE = "ntitle";
 	private static final String PROP_NOTIFICATION_BODY = "nbody";
 	private static final String PROP_SHOW_EXPORT_SUCCESS = "showSuccess";
+	private static final String PROP_EXPORT_THREADS = "exportThreads";
+	private static final String PROP_EXPORT_DELAY = "exportDelay";
+	private static final String PROP_CONFLICT_POLICY = "conflicts";
+	private static final String PROP_DELETE_ON_UNMARK = "deleteOnUnmark";
+	private static final String PROP_ACCOUNT = "account";
+	private static final String PROP_ACCOUNTS = "accounts";
+	private static final String PROP_CONNECT_TIMEOUT = "connectTimeout";
+	private static final String PROP_READ_TIMEOUT = "readTimeout";
+	private static final String PROP_ROUTING = "routing";
+	private static final String PROP_RETENTION = "retentionDays";
 	
+	private static final Logger LOGGER = Logger.getLogger(GoogleCalXSettings.class.getName());
 	private final Map<String, CalendarColor> colorCache = new WeakHashMap<String, CalendarColor>();
+	private volatile RoutingRules routingRules = RoutingRules.NONE;
 
 	/**
 	 * Creates the settings based on properties.
@@ -50,21 +70,80 @@ public class GoogleCalXSettings extends PropertyBasedSettings {
 	}
 
 	/**
-	 * Returns the calendar target to export to.
+	 * Returns the calendar target to export to. A target stored before
+	 * targets were bound to an account belongs to {@link #getAccount()}.
 	 * @return the calendar target to export to, may be <code>null</code>.
 	 */
 	public CalendarTarget getCalendarTarget() {
-		return CalendarTarget.parse(get(PROP_CALENDAR_TARGET));
+		final CalendarTarget target = CalendarTarget.parse(get(PROP_EXPORT_TARGET));
+		if (target == null) {
+			return CalendarTarget.parseLegacy(get(PROP_CALENDAR_TARGET), getAccount());
+		}
+		if (target.getAccount() == null) {
+			return new CalendarTarget(target.getId(), target.getLabel(), getAccount());
+		}
+		return target;
 	}
 
 	/**
-	 * Sets the calendar target to export to.
+	 * Sets the calendar target to export to, together with its account.
 	 * @param aTarget the calendar target to export to, must not be <code>null</code>.
 	 */
 	public void setCalendarTarget(final CalendarTarget aTarget) {
 		if (aTarget != null) {
-			set(PROP_CALENDAR_TARGET, aTarget.toStringRep());
+			set(PROP_EXPORT_TARGET, aTarget.toStringRep());
+			setAccount(aTarget.getAccount());
+		}
+	}
+
+	/**
+	 * Returns the account of the calendar target.
+	 * @return the name of the account, never <code>null</code>.
+	 */
+	public String getAccount() {
+		return get(PROP_ACCOUNT, CalendarAccounts.DEFAULT_ACCOUNT);
+	}
+
+	/**
+	 * Sets the account of the calendar target.
+	 * @param account the name of the account, <code>null</code> for the default account.
+	 */
+	public void setAccount(final String account) {
+		set(PROP_ACCOUNT, account != null && !account.isEmpty() ? account : CalendarAccounts.DEFAULT_ACCOUNT);
+	}
+
+	/**
+	 * Returns the names of all known accounts. The account of the
+	 * calendar target is always included.
+	 * @return the names of the accounts, never <code>null</code>.
+	 */
+	public List<String> getAccounts() {
+		final Set<String> result = new LinkedHashSet<String>();
+		for (String account : get(PROP_ACCOUNTS, CalendarAccounts.DEFAULT_ACCOUNT).split(",")) {
+			if (!account.trim().isEmpty()) {
+				result.add(account.trim());
+			}
+		}
+		result.add(getAccount());
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Sets the names of all known accounts.
+	 * @param accounts the names of the accounts, must not be <code>null</code>.
+	 */
+	public void setAccounts(final Collection<String> accounts) {
+		final StringBuilder sb = new StringBuilder();
+		for (String account : accounts) {
+			final String name = account.replace(',', ' ').replace('|', ' ').trim();
+			if (!name.isEmpty()) {
+				if (sb.length() > 0) {
+					sb.append(',');
+				}
+				sb.append(name);
+			}
 		}
+		set(PROP_ACCOUNTS, sb.toString());
 	}
 
 	/**
@@ -203,4 +282,180 @@ public class GoogleCalXSettings extends PropertyBasedSettings {
 		set(PROP_SHOW_EXPORT_SUCCESS, Boolean.toString(flag));
 	}
 
+	/**
+	 * Returns the maximum number of parallel requests of an account, e.g.
+	 * when exporting many programs. The requests in flight start below and
+	 * adapt to the server up to this number, see {@link RequestScheduler}.
+	 * Takes effect after the next start.
+	 * @return the maximum number of parallel requests, at least one.
+	 */
+	public int getMaxConcurrency() {
+		try {
+			return Math.max(1, Integer.parseInt(get(PROP_EXPORT_THREADS, Integer.toString(RequestScheduler.DEFAULT_CONCURRENCY))));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of parallel requests of an account.
+	 * @param threads the maximum number of parallel requests, at least one.
+	 */
+	public void setMaxConcurrency(final int threads) {
+		set(PROP_EXPORT_THREADS, Integer.toString(Math.max(1, threads)));
+	}
+
+	/**
+	 * Returns how long single exports are collected to be sent together.
+	 * @return the coalescing window in milliseconds, zero to send each export at once.
+	 */
+	public int getExportDelay() {
+		try {
+			return Math.max(0, Integer.parseInt(get(PROP_EXPORT_DELAY, "1000")));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Sets how long single exports are collected to be sent together.
+	 * @param millis the coalescing window in milliseconds, zero to send each export at once.
+	 */
+	public void setExportDelay(final int millis) {
+		set(PROP_EXPORT_DELAY, Integer.toString(Math.max(0, millis)));
+	}
+
+	/**
+	 * Returns how long exported events are kept in the calendar after they ended.
+	 * @return the number of days, zero to keep past events.
+	 */
+	public int getRetentionDays() {
+		try {
+			return Math.max(0, Integer.parseInt(get(PROP_RETENTION, "0")));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Sets how long exported events are kept in the calendar after they ended.
+	 * @param days the number of days, zero to keep past events.
+	 */
+	public void setRetentionDays(final int days) {
+		set(PROP_RETENTION, Integer.toString(Math.max(0, days)));
+	}
+
+	/**
+	 * Returns how long to wait for a connection to the Google Calendar API.
+	 * @return the connect timeout in seconds, at least one.
+	 */
+	public int getConnectTimeout() {
+		return getSeconds(PROP_CONNECT_TIMEOUT, 10);
+	}
+
+	/**
+	 * Sets how long to wait for a connection to the Google Calendar API.
+	 * @param seconds the connect timeout in seconds, at least one.
+	 */
+	public void setConnectTimeout(final int seconds) {
+		set(PROP_CONNECT_TIMEOUT, Integer.toString(Math.max(1, seconds)));
+	}
+
+	/**
+	 * Returns how long to wait for a response of the Google Calendar API.
+	 * @return the read timeout in seconds, at least one.
+	 */
+	public int getReadTimeout() {
+		return getSeconds(PROP_READ_TIMEOUT, 20);
+	}
+
+	/**
+	 * Sets how long to wait for a response of the Google Calendar API.
+	 * @param seconds the read timeout in seconds, at least one.
+	 */
+	public void setReadTimeout(final int seconds) {
+		set(PROP_READ_TIMEOUT, Integer.toString(Math.max(1, seconds)));
+	}
+
+	private int getSeconds(final String key, final int defaultValue) {
+		try {
+			return Math.max(1, Integer.parseInt(get(key, Integer.toString(defaultValue))));
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns how to handle programs colliding with existing appointments
+	 * when exporting multiple programs.
+	 * @return the conflict policy, never <code>null</code>.
+	 */
+	public ConflictPolicy getConflictPolicy() {
+		try {
+			return Enum.valueOf(ConflictPolicy.class, get(PROP_CONFLICT_POLICY, ConflictPolicy.export.name()));
+		} catch (IllegalArgumentException e) {
+			return ConflictPolicy.export;
+		}
+	}
+
+	/**
+	 * Sets how to handle programs colliding with existing appointments
+	 * when exporting multiple programs.
+	 * @param policy the conflict policy to use.
+	 */
+	public void setConflictPolicy(final ConflictPolicy policy) {
+		if (policy != null) {
+			set(PROP_CONFLICT_POLICY, policy.name());
+		}
+	}
+
+	/**
+	 * Indicates whether or not to delete the calendar event
+	 * when unmarking an exported program.
+	 * @return <code>true</code> if the calendar event is to be deleted.
+	 */
+	public boolean getDeleteOnUnmark() {
+		return Boolean.parseBoolean(get(PROP_DELETE_ON_UNMARK, Boolean.toString(false)));
+	}
+
+	/**
+	 * Sets whether or not to delete the calendar event
+	 * when unmarking an exported program.
+	 * @param flag <code>true</code> to delete the calendar event.
+	 */
+	public void setDeleteOnUnmark(final boolean flag) {
+		set(PROP_DELETE_ON_UNMARK, Boolean.toString(flag));
+	}
+
+	/**
+	 * Returns the compiled rules choosing calendar, reminder and color per program.
+	 * The preferences reject invalid rules when saving; stored rules are compiled
+	 * once when they change, and invalid stored rules route nothing.
+	 * @return the routing rules, never <code>null</code>.
+	 */
+	public RoutingRules getRoutingRules() {
+		final String source = get(PROP_ROUTING, "");
+		RoutingRules rules = routingRules;
+		if (!rules.getSource().equals(source)) {
+			try {
+				rules = RoutingRules.compile(source);
+			} catch (IllegalArgumentException e) {
+				// stored by an older version or edited by hand; route nothing
+				LOGGER.log(Level.WARNING, "invalid routing rules, no rules are applied", e);
+				rules = RoutingRules.none(source);
+			}
+			routingRules = rules;
+		}
+		return rules;
+	}
+
+	/**
+	 * Sets the rules choosing calendar, reminder and color per program.
+	 * @param rules the compiled rules, see {@link RoutingRules#compile(String)}; must not be <code>null</code>.
+	 */
+	public void setRoutingRules(final RoutingRules rules) {
+		set(PROP_ROUTING, rules.getSource());
+		routingRules = rules;
+	}
+
 }
@@ -0,0 +1,416 @@
+package googlecalxplugin;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.google.api.services.calendar.model.Event;
+
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Exports the programmes of an XMLTV file without TV-Browser, e.g. from
+ * cron on a server. Events are created by {@link CalendarAccess} with the
+ * templates, reminders and colors of the plugin settings, and inserted in
+ * batch requests of up to 50 events. The XMLTV file is streamed, so only
+ * the batches being sent are held in memory, whatever the size of the guide.
+ * Programmes can be filtered by channel and title; exporting the same
+ * guide again updates the events instead of duplicating them.
+ * <p>
+ * The TV-Browser jar must be on the class path. The credentials are read
+ * from the same store as in TV-Browser; authorize the account in
+ * TV-Browser and copy the store to the server, or run the exporter once
+ * interactively.
+ */
+public class HeadlessExporter {
+
+	private static final int BATCH_SIZE = 50;
+	private static final int DEFAULT_CONCURRENCY = 4;
+	private static final int EXIT_FAILED = 1;
+	private static final int EXIT_USAGE = 2;
+
+	private final CalendarAccess access;
+	private final String calendarId;
+	private final List<Pattern> channelPatterns;
+	private final List<Pattern> titlePatterns;
+	private int concurrency;
+
+	/**
+	 * Creates the exporter.
+	 * @param anAccess the calendar accessor, must not be <code>null</code>.
+	 * @param aCalendarId the ID of the calendar to export to, must not be <code>null</code>.
+	 */
+	public HeadlessExporter(final CalendarAccess anAccess, final String aCalendarId) {
+		access = anAccess;
+		calendarId = aCalendarId;
+		channelPatterns = new ArrayList<Pattern>();
+		titlePatterns = new ArrayList<Pattern>();
+		concurrency = DEFAULT_CONCURRENCY;
+	}
+
+	/**
+	 * Adds a channel filter. If there are channel filters, only programmes
+	 * of channels whose ID or display name matches any of them are exported.
+	 * @param pattern the pattern to find in the channel ID or name, must not be <code>null</code>.
+	 */
+	public void addChannelPattern(final Pattern pattern) {
+		channelPatterns.add(pattern);
+	}
+
+	/**
+	 * Adds a title filter. If there are title filters, only programmes
+	 * whose title matches any of them are exported.
+	 * @param pattern the pattern to find in the title, must not be <code>null</code>.
+	 */
+	public void addTitlePattern(final Pattern pattern) {
+		titlePatterns.add(pattern);
+	}
+
+	/**
+	 * Sets the number of batch requests in flight.
+	 * @param threads the number of batch requests in flight, at least one.
+	 */
+	public void setConcurrency(final int threads) {
+		concurrency = Math.max(1, threads);
+	}
+
+	/**
+	 * Checks whether the given programme passes the filters.
+	 * @param programme the programme, must not be <code>null</code>.
+	 * @return <code>true</code> if the programme is to be exported.
+	 */
+	public boolean accepts(final XmltvProgram programme) {
+		return (channelPatterns.isEmpty()
+				|| find(channelPatterns, programme.getChannelId())
+				|| find(channelPatterns, programme.getChannelName()))
+			&& (titlePatterns.isEmpty() || find(titlePatterns, programme.getTitle()));
+	}
+
+	/**
+	 * Exports the programmes of the given reader passing the filters.
+	 * Blocks until all batches are sent.
+	 * @param reader the XMLTV reader, must not be <code>null</code>.
+	 * @return the report of the export, never <code>null</code>.
+	 * @throws IOException if the input cannot be read or the calendar cannot be accessed at all
+	 */
+	public Report export(final XmltvReader reader) throws IOException {
+		final HttpMeter meter = access.getMeter();
+		final Report report = new Report(meter.getRequestCount(), meter.getBytesSent(), meter.getBytesReceived());
+		final long batchId = ExportEvents.nextBatchId();
+		// authorize before reading, so a missing credential fails fast
+		ExportEvents.call(null, calendarId, batchId, access::getCalendar);
+		final Semaphore slots = new Semaphore(concurrency);
+		final ExecutorService senders = Executors.newFixedThreadPool(concurrency, BulkExporter.daemon("headless"));
+		try {
+			List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+			XmltvProgram programme;
+			while ((programme = reader.read()) != null) {
+				report.read++;
+				if (accepts(programme)) {
+					report.matched++;
+					batch.add(access.createEvent(programme.toProgram()));
+					if (batch.size() == BATCH_SIZE) {
+						send(batch, batchId, slots, senders, report);
+						batch = new ArrayList<Event>(BATCH_SIZE);
+					}
+				}
+			}
+			if (!batch.isEmpty()) {
+				send(batch, batchId, slots, senders, report);
+			}
+		} finally {
+			senders.shutdown();
+			try {
+				// the senders are daemons; waiting ends with the batches in flight
+				senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		report.skipped = reader.getSkipped();
+		report.finish(meter);
+		return report;
+	}
+
+	private void send(final List<Event> events, final long batchId, final Semaphore slots, final ExecutorService senders, final Report report) throws IOException {
+		try {
+			slots.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for a batch to be sent");
+		}
+		senders.execute(ExportEvents.inContext(() -> {
+			try {
+				final Map<Event, IOException> failures = ExportEvents.call(null, calendarId, batchId, () -> access.addEvents(calendarId, events, Lane.BULK));
+				report.exported.addAndGet(events.size() - failures.size());
+				report.failed.addAndGet(failures.size());
+				if (!failures.isEmpty()) {
+					report.error.compareAndSet(null, failures.values().iterator().next());
+				}
+			} catch (IOException e) {
+				report.failed.addAndGet(events.size());
+				report.error.compareAndSet(null, e);
+			} finally {
+				slots.release();
+			}
+		}));
+	}
+
+	private static boolean find(final List<Pattern> patterns, final String text) {
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(text).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs the exporter, see {@link #usage(PrintStream)} for the arguments.
+	 * Exits with 1 if any programme could not be exported, and with 2 on
+	 * invalid arguments.
+	 * @param args the command line arguments
+	 */
+	public static void main(final String[] args) {
+		final Properties properties = new Properties();
+		final List<Pattern> channels = new ArrayList<Pattern>();
+		final List<Pattern> titles = new ArrayList<Pattern>();
+		String store = System.getProperty("user.home");
+		String account = null;
+		String calendar = null;
+		String threads = null;
+		String file = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				if (!arg.startsWith("-") || "-".equals(arg)) {
+					file = arg;
+					continue;
+				}
+				if (i + 1 == args.length) {
+					throw new IllegalArgumentException("missing value of " + arg);
+				}
+				final String value = args[++i];
+				switch (arg) {
+				case "-settings":
+					try (InputStream in = new FileInputStream(value)) {
+						properties.load(in);
+					}
+					break;
+				case "-store":
+					store = value;
+					break;
+				case "-account":
+					account = value;
+					break;
+				case "-calendar":
+					calendar = value;
+					break;
+				case "-channel":
+					channels.add(Pattern.compile(value));
+					break;
+				case "-title":
+					titles.add(Pattern.compile(value));
+					break;
+				case "-threads":
+					threads = value;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option " + arg);
+				}
+			}
+			if (file == null) {
+				throw new IllegalArgumentException("missing XMLTV file");
+			}
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			usage(System.err);
+			System.exit(EXIT_USAGE);
+			return;
+		}
+		final GoogleCalXSettings settings = new GoogleCalXSettings(properties);
+		if (account != null) {
+			settings.setAccount(account);
+		}
+		try {
+			final CalendarAccess access = new CalendarAccounts(settings, store).getTarget();
+			final HeadlessExporter exporter = new HeadlessExporter(access, calendar != null ? calendar : access.getTargetCalendarId());
+			channels.forEach(exporter::addChannelPattern);
+			titles.forEach(exporter::addTitlePattern);
+			exporter.setConcurrency(threads != null ? Integer.parseInt(threads) : settings.getMaxConcurrency());
+			final Report report;
+			try (XmltvReader reader = new XmltvReader(open(file))) {
+				report = exporter.export(reader);
+			}
+			report.print(System.out);
+			if (report.getFailed() > 0) {
+				System.exit(EXIT_FAILED);
+			}
+		} catch (IOException | GeneralSecurityException | RuntimeException e) {
+			System.err.println("export failed: " + e);
+			System.exit(EXIT_FAILED);
+		}
+	}
+
+	private static InputStream open(final String file) throws IOException {
+		final InputStream in = "-".equals(file) ? System.in : new FileInputStream(file);
+		return file.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : new BufferedInputStream(in, 1 << 16);
+	}
+
+	/**
+	 * Prints the arguments of {@link #main(String[])}.
+	 * @param out the stream to print to, must not be <code>null</code>.
+	 */
+	public static void usage(final PrintStream out) {
+		out.println("usage: " + HeadlessExporter.class.getName() + " [options] <xmltv file, .gz or - for stdin>");
+		out.println("  -settings <file>  properties with the plugin settings (templates, reminders, calendar)");
+		out.println("  -store <dir>      directory with the .store folder of the credentials, default: user home");
+		out.println("  -account <name>   the Google account, default: the account of the settings");
+		out.println("  -calendar <id>    the calendar ID, default: the calendar of the settings");
+		out.println("  -channel <regex>  export channels whose ID or name matches, repeatable");
+		out.println("  -title <regex>    export programmes whose title matches, repeatable");
+		out.println("  -threads <n>      batch requests in flight, default: the maximum parallel requests of the settings");
+	}
+
+	/**
+	 * The figures of an export.
+	 */
+	public static class Report {
+
+		private final long startNanos;
+		private final long requestsBefore;
+		private final long sentBefore;
+		private final long receivedBefore;
+		private final AtomicInteger exported;
+		private final AtomicInteger failed;
+		private final AtomicReference<IOException> error;
+		private int read;
+		private int matched;
+		private int skipped;
+		private long elapsedNanos;
+		private long requests;
+		private long bytesSent;
+		private long bytesReceived;
+
+		Report(final long requestCount, final long sent, final long received) {
+			startNanos = System.nanoTime();
+			requestsBefore = requestCount;
+			sentBefore = sent;
+			receivedBefore = received;
+			exported = new AtomicInteger();
+			failed = new AtomicInteger();
+			error = new AtomicReference<IOException>();
+		}
+
+		void finish(final HttpMeter meter) {
+			elapsedNanos = System.nanoTime() - startNanos;
+			requests = meter.getRequestCount() - requestsBefore;
+			bytesSent = meter.getBytesSent() - sentBefore;
+			bytesReceived = meter.getBytesReceived() - receivedBefore;
+		}
+
+		/**
+		 * Returns the number of programmes read.
+		 * @return the number of programmes read.
+		 */
+		public int getRead() {
+			return read;
+		}
+
+		/**
+		 * Returns the number of programmes passing the filters.
+		 * @return the number of programmes passing the filters.
+		 */
+		public int getMatched() {
+			return matched;
+		}
+
+		/**
+		 * Returns the number of programmes skipped because they are incomplete.
+		 * @return the number of skipped programmes.
+		 */
+		public int getSkipped() {
+			return skipped;
+		}
+
+		/**
+		 * Returns the number of programmes exported.
+		 * @return the number of exported programmes.
+		 */
+		public int getExported() {
+			return exported.get();
+		}
+
+		/**
+		 * Returns the number of programmes which could not be exported.
+		 * @return the number of failed programmes.
+		 */
+		public int getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * Returns the first error of the export.
+		 * @return the first error, or <code>null</code> if all programmes were exported.
+		 */
+		public IOException getError() {
+			return error.get();
+		}
+
+		/**
+		 * Returns the number of HTTP requests sent.
+		 * @return the number of HTTP requests sent.
+		 */
+		public long getRequests() {
+			return requests;
+		}
+
+		/**
+		 * Returns the duration of the export.
+		 * @return the duration of the export in milliseconds.
+		 */
+		public long getElapsedMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		}
+
+		/**
+		 * Returns the throughput of the export.
+		 * @return the number of programmes exported per second.
+		 */
+		public double getThroughput() {
+			return elapsedNanos > 0 ? exported.get() * 1e9 / elapsedNanos : 0d;
+		}
+
+		/**
+		 * Prints the report.
+		 * @param out the stream to print to, must not be <code>null</code>.
+		 */
+		public void print(final PrintStream out) {
+			out.printf(Locale.ROOT, "programmes: %d read, %d skipped, %d matched%n", Integer.valueOf(read), Integer.valueOf(skipped), Integer.valueOf(matched));
+			out.printf(Locale.ROOT, "exported: %d, failed: %d%n", Integer.valueOf(getExported()), Integer.valueOf(getFailed()));
+			out.printf(Locale.ROOT, "time: %.1f s, %.1f programmes/s%n", Double.valueOf(elapsedNanos / 1e9), Double.valueOf(getThroughput()));
+			out.printf(Locale.ROOT, "HTTP: %d requests, %d bytes sent, %d bytes received%n", Long.valueOf(requests), Long.valueOf(bytesSent), Long.valueOf(bytesReceived));
+			if (getError() != null) {
+				out.println("first error: " + getError().getMessage());
+			}
+		}
+	}
+
+}
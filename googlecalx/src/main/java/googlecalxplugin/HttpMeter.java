@@ -0,0 +1,243 @@
+package googlecalxplugin;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.util.StreamingContent;
+
+/**
+ * Meter counting the requests and the bytes sent and received, hooked
+ * into the requests by a request initializer. The bytes sent are counted
+ * on the wire, i.e. after compression; the bytes received are taken from
+ * the <code>Content-Length</code> header of the responses, so responses
+ * without length do not add to them.
+ * <p>
+ * Each attempt of a request is recorded as {@link ExportEvents.HttpExecute}
+ * event, lasting until its response arrived. Attempts failing without
+ * response are counted, but not recorded.
+ */
+public class HttpMeter {
+
+	private final AtomicLong requests;
+	private final AtomicLong bytesSent;
+	private final AtomicLong bytesReceived;
+
+	/**
+	 * Creates the meter.
+	 */
+	public HttpMeter() {
+		requests = new AtomicLong();
+		bytesSent = new AtomicLong();
+		bytesReceived = new AtomicLong();
+	}
+
+	/**
+	 * Returns a request initializer metering the requests it initializes.
+	 * The interceptors set by the given initializer are kept and run first.
+	 * @param initializer the initializer to delegate to, must not be <code>null</code>.
+	 * @return the metering initializer.
+	 */
+	public HttpRequestInitializer metered(final HttpRequestInitializer initializer) {
+		return request -> {
+			initializer.initialize(request);
+			final Exchange exchange = new Exchange();
+			final HttpExecuteInterceptor interceptor = request.getInterceptor();
+			request.setInterceptor(intercepted -> {
+				if (interceptor != null) {
+					interceptor.intercept(intercepted);
+				}
+				exchange.begin(intercepted);
+			});
+			final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+			request.setResponseInterceptor(response -> {
+				exchange.finish(response);
+				if (responseInterceptor != null) {
+					responseInterceptor.interceptResponse(response);
+				}
+			});
+		};
+	}
+
+	/**
+	 * Returns the number of requests executed.
+	 * @return the number of requests executed.
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * Returns the number of request body bytes sent.
+	 * @return the number of request body bytes sent.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Returns the number of response body bytes received.
+	 * @return the number of response body bytes received.
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Resets all counters to zero.
+	 */
+	public void reset() {
+		requests.set(0L);
+		bytesSent.set(0L);
+		bytesReceived.set(0L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "requests=" + requests.get() + ", sent=" + bytesSent.get() + ", received=" + bytesReceived.get();
+	}
+
+	/**
+	 * The attempts of one request. The execute interceptor runs before each
+	 * attempt, the response interceptor only after the last one, so a
+	 * pending attempt is finished when the next one begins.
+	 */
+	private class Exchange {
+
+		private String method;
+		private String url;
+		private ExportEvents.HttpExecute event;
+		private long sent;
+
+		protected void begin(final HttpRequest request) {
+			finish(0, 0L);
+			requests.incrementAndGet();
+			method = request.getRequestMethod();
+			url = request.getUrl().build();
+			sent = 0L;
+			// wrap the encoding if any, so the compressed bytes are counted
+			if (request.getEncoding() != null) {
+				if (!(request.getEncoding() instanceof CountingEncoding)) {
+					request.setEncoding(new CountingEncoding(request.getEncoding(), this));
+				}
+			} else if (request.getContent() != null && !(request.getContent() instanceof CountingContent)) {
+				request.setContent(new CountingContent(request.getContent(), this));
+			}
+			event = new ExportEvents.HttpExecute();
+			event.begin();
+		}
+
+		protected void finish(final HttpResponse response) {
+			final Long length = response.getHeaders().getContentLength();
+			finish(response.getStatusCode(), length != null ? length.longValue() : 0L);
+		}
+
+		private void finish(final int status, final long received) {
+			if (event == null) {
+				return;
+			}
+			bytesSent.addAndGet(sent);
+			bytesReceived.addAndGet(received);
+			if (event.isEnabled()) {
+				final int query = url.indexOf('?');
+				event.setRequest(method, query < 0 ? url : url.substring(0, query));
+				event.setResponse(status, sent, received);
+			}
+			event.commitInContext();
+			event = null;
+		}
+
+		/**
+		 * Returns a stream counting the bytes of the body. The body may be
+		 * written more than once per attempt, e.g. to compute its length;
+		 * only the last write is the one sent.
+		 */
+		protected OutputStream count(final OutputStream out) {
+			sent = 0L;
+			return new FilterOutputStream(out) {
+
+				@Override
+				public void write(final int b) throws IOException {
+					out.write(b);
+					sent++;
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					out.write(b, off, len);
+					sent += len;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Encoding counting the encoded bytes.
+	 */
+	private static class CountingEncoding implements HttpEncoding {
+
+		private final HttpEncoding encoding;
+		private final Exchange exchange;
+
+		protected CountingEncoding(final HttpEncoding anEncoding, final Exchange anExchange) {
+			encoding = anEncoding;
+			exchange = anExchange;
+		}
+
+		@Override
+		public String getName() {
+			return encoding.getName();
+		}
+
+		@Override
+		public void encode(final StreamingContent content, final OutputStream out) throws IOException {
+			encoding.encode(content, exchange.count(out));
+		}
+	}
+
+	/**
+	 * Content counting its bytes, used for requests without encoding.
+	 */
+	private static class CountingContent implements HttpContent {
+
+		private final HttpContent content;
+		private final Exchange exchange;
+
+		protected CountingContent(final HttpContent aContent, final Exchange anExchange) {
+			content = aContent;
+			exchange = anExchange;
+		}
+
+		@Override
+		public long getLength() throws IOException {
+			return content.getLength();
+		}
+
+		@Override
+		public String getType() {
+			return content.getType();
+		}
+
+		@Override
+		public boolean retrySupported() {
+			return content.retrySupported();
+		}
+
+		@Override
+		public void writeTo(final OutputStream out) throws IOException {
+			content.writeTo(exchange.count(out));
+		}
+	}
+
+}
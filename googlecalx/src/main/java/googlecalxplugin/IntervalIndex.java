@@ -0,0 +1,163 @@
+package googlecalxplugin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable index of time intervals supporting overlap queries. The
+ * intervals are sorted by start, and for each position the maximum end
+ * of all intervals up to it is kept. Whether an interval overlaps any
+ * indexed interval is answered with one binary search; listing the
+ * overlapping intervals costs additionally the number of candidates
+ * whose start lies before the end of the query.
+ * Intervals are half-open, i.e. <code>[start, end)</code>.
+ * @param <T> the type of the values attached to the intervals
+ */
+public class IntervalIndex<T> {
+
+	private static final IntervalIndex<?> EMPTY = new IntervalIndex<Object>(new long[0], new long[0], new Object[0]);
+
+	private final long[] starts;
+	private final long[] ends;
+	private final long[] maxEnds;
+	private final Object[] values;
+
+	private IntervalIndex(final long[] someStarts, final long[] someEnds, final Object[] someValues) {
+		starts = someStarts;
+		ends = someEnds;
+		values = someValues;
+		maxEnds = new long[ends.length];
+		long max = Long.MIN_VALUE;
+		for (int i = 0; i < ends.length; i++) {
+			max = Math.max(max, ends[i]);
+			maxEnds[i] = max;
+		}
+	}
+
+	/**
+	 * Returns an empty index.
+	 * @param <T> the type of the values attached to the intervals
+	 * @return an empty index, never <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> IntervalIndex<T> empty() {
+		return (IntervalIndex<T>) EMPTY;
+	}
+
+	/**
+	 * Returns the number of intervals in the index.
+	 * @return the number of intervals in the index.
+	 */
+	public int size() {
+		return starts.length;
+	}
+
+	/**
+	 * Checks whether the given interval overlaps any interval of the index.
+	 * @param start the start of the interval (inclusive), in milliseconds
+	 * @param end the end of the interval (exclusive), in milliseconds
+	 * @return <code>true</code> if there is an overlap, <code>false</code> otherwise.
+	 */
+	public boolean overlaps(final long start, final long end) {
+		final int last = lastStartingBefore(end);
+		return last >= 0 && maxEnds[last] > start;
+	}
+
+	/**
+	 * Returns the values of all intervals overlapping the given interval,
+	 * ordered by their start.
+	 * @param start the start of the interval (inclusive), in milliseconds
+	 * @param end the end of the interval (exclusive), in milliseconds
+	 * @return the values of the overlapping intervals, never <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> find(final long start, final long end) {
+		int i = lastStartingBefore(end);
+		if (i < 0 || maxEnds[i] <= start) {
+			return Collections.emptyList();
+		}
+		final List<T> result = new ArrayList<T>(4);
+		for (; i >= 0 && maxEnds[i] > start; i--) {
+			if (ends[i] > start) {
+				result.add((T) values[i]);
+			}
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	/**
+	 * Returns the index of the last interval starting before the given time.
+	 */
+	private int lastStartingBefore(final long time) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			if (starts[mid] < time) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * Collects intervals and builds the index.
+	 * @param <T> the type of the values attached to the intervals
+	 */
+	public static class Builder<T> {
+
+		private final List<Object[]> entries = new ArrayList<Object[]>();
+
+		/**
+		 * Adds an interval. Empty intervals are ignored.
+		 * @param start the start of the interval (inclusive), in milliseconds
+		 * @param end the end of the interval (exclusive), in milliseconds
+		 * @param value the value attached to the interval, may be <code>null</code>.
+		 * @return this builder
+		 */
+		public Builder<T> add(final long start, final long end, final T value) {
+			if (end > start) {
+				entries.add(new Object[] { Long.valueOf(start), Long.valueOf(end), value });
+			}
+			return this;
+		}
+
+		/**
+		 * Adds all intervals of the given index.
+		 * @param index the index to copy the intervals of, must not be <code>null</code>.
+		 * @return this builder
+		 */
+		@SuppressWarnings("unchecked")
+		public Builder<T> addAll(final IntervalIndex<T> index) {
+			for (int i = 0; i < index.starts.length; i++) {
+				add(index.starts[i], index.ends[i], (T) index.values[i]);
+			}
+			return this;
+		}
+
+		/**
+		 * Builds the index.
+		 * @return the index, never <code>null</code>.
+		 */
+		public IntervalIndex<T> build() {
+			final Object[][] sorted = entries.toArray(new Object[entries.size()][]);
+			Arrays.sort(sorted, Comparator.comparing((Object[] entry) -> (Long) entry[0]));
+			final long[] starts = new long[sorted.length];
+			final long[] ends = new long[sorted.length];
+			final Object[] values = new Object[sorted.length];
+			for (int i = 0; i < sorted.length; i++) {
+				starts[i] = ((Long) sorted[i][0]).longValue();
+				ends[i] = ((Long) sorted[i][1]).longValue();
+				values[i] = sorted[i][2];
+			}
+			return new IntervalIndex<T>(starts, ends, values);
+		}
+	}
+
+}
@@ -0,0 +1,283 @@
+package googlecalxplugin;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.swing.AbstractListModel;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import util.exc.ErrorHandler;
+import util.ui.Localizer;
+
+/**
+ * Dialog to pick an item of a list which is loaded in the background.
+ * The dialog opens at once and items are added as their pages arrive,
+ * so the event dispatch thread never waits for the Calendar API. An
+ * optional filter field narrows the list while typing; the arrow keys
+ * move the selection, Enter or a double click picks the selected item.
+ * @param <T> the type of the items
+ */
+public class ListPicker<T> {
+
+	/**
+	 * Loads the items without blocking, called on the event dispatch thread.
+	 * @param <T> the type of the items
+	 */
+	public interface Loader<T> {
+
+		/**
+		 * Starts loading the items.
+		 * @param pages receives the items page by page on any thread, must not be <code>null</code>.
+		 * @return the future completing after the last page; cancelled when the dialog is closed
+		 */
+		CompletableFuture<?> load(Consumer<List<T>> pages);
+
+	}
+
+	private final Component parent;
+	private final Localizer localizer;
+	private final String title;
+	private final Loader<T> loader;
+	private Function<T, String> filterText;
+	private ListCellRenderer<? super T> renderer;
+
+	/**
+	 * Creates the picker.
+	 * @param aParent the parent component (frame), may be <code>null</code>.
+	 * @param aLocalizer the localizer for messages, must not be <code>null</code>.
+	 * @param aTitle the title of the dialog, must not be <code>null</code>.
+	 * @param aLoader the loader of the items, must not be <code>null</code>.
+	 */
+	public ListPicker(final Component aParent, final Localizer aLocalizer, final String aTitle, final Loader<T> aLoader) {
+		parent = aParent;
+		localizer = aLocalizer;
+		title = aTitle;
+		loader = aLoader;
+	}
+
+	/**
+	 * Shows a filter field above the list.
+	 * @param text returns the text of an item the filter is searched in, must not be <code>null</code>.
+	 */
+	public void setFilter(final Function<T, String> text) {
+		filterText = text;
+	}
+
+	/**
+	 * Sets the renderer of the items.
+	 * @param aRenderer the renderer, <code>null</code> to show the string representation.
+	 */
+	public void setRenderer(final ListCellRenderer<? super T> aRenderer) {
+		renderer = aRenderer;
+	}
+
+	/**
+	 * Shows the dialog and loads the items. Must be called on the event
+	 * dispatch thread; blocks until the dialog is closed, while events
+	 * are still dispatched.
+	 * @return the item picked, or <code>null</code> if the dialog was cancelled.
+	 */
+	public T pick() {
+		final FilterModel<T> model = new FilterModel<T>(filterText);
+		final JList<T> list = new JList<T>(model);
+		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setVisibleRowCount(15);
+		if (renderer != null) {
+			list.setCellRenderer(renderer);
+		}
+		final JLabel status = new JLabel(localizer.msg(GoogleCalXPlugin.MSG_LOADING, "Loading..."));
+		final JScrollPane scroller = new JScrollPane(list, ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
+		scroller.setPreferredSize(new Dimension(360, scroller.getPreferredSize().height));
+		final JPanel panel = new JPanel(new BorderLayout(0, 4));
+		panel.add(scroller, BorderLayout.CENTER);
+		panel.add(status, BorderLayout.SOUTH);
+		final JTextField filter = filterText != null ? createFilter(model, list) : null;
+		if (filter != null) {
+			panel.add(filter, BorderLayout.NORTH);
+		}
+
+		final JOptionPane pane = new JOptionPane(panel, JOptionPane.PLAIN_MESSAGE, JOptionPane.OK_CANCEL_OPTION);
+		list.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(final MouseEvent e) {
+				if (e.getClickCount() == 2 && list.getSelectedIndex() >= 0) {
+					pane.setValue(Integer.valueOf(JOptionPane.OK_OPTION));
+				}
+			}
+		});
+
+		final JDialog dialog = pane.createDialog(parent, title);
+		dialog.setResizable(true);
+		if (filter != null) {
+			// runs after the option pane focused its default button
+			dialog.addWindowFocusListener(new WindowAdapter() {
+				@Override
+				public void windowGainedFocus(final WindowEvent e) {
+					SwingUtilities.invokeLater(filter::requestFocusInWindow);
+				}
+			});
+		}
+		// pages and the end of loading are handled on the event dispatch thread, in the order they happen
+		final CompletableFuture<?> loading = loader.load(page -> SwingUtilities.invokeLater(() -> {
+			model.addAll(page);
+			if (list.getSelectedIndex() < 0 && model.getSize() > 0) {
+				list.setSelectedIndex(0);
+			}
+		}));
+		loading.whenCompleteAsync((result, error) -> {
+			status.setText(" ");
+			if (error != null && !loading.isCancelled()) {
+				pane.setValue(Integer.valueOf(JOptionPane.CLOSED_OPTION));
+				ErrorHandler.handle(localizer.msg(GoogleCalXPlugin.MSG_ERROR, "Service call error"), error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+			}
+		}, SwingUtilities::invokeLater);
+		try {
+			dialog.setVisible(true);
+		} finally {
+			loading.cancel(true);
+			dialog.dispose();
+		}
+		final Object value = pane.getValue();
+		if (value instanceof Integer && ((Integer) value).intValue() == JOptionPane.OK_OPTION) {
+			return list.getSelectedValue();
+		}
+		return null;
+	}
+
+	private JTextField createFilter(final FilterModel<T> model, final JList<T> list) {
+		final JTextField result = new JTextField();
+		result.setToolTipText(localizer.msg(GoogleCalXPlugin.MSG_FILTER, "Type to filter"));
+		result.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(final DocumentEvent e) {
+				changedUpdate(e);
+			}
+
+			@Override
+			public void removeUpdate(final DocumentEvent e) {
+				changedUpdate(e);
+			}
+
+			@Override
+			public void changedUpdate(final DocumentEvent e) {
+				model.setFilter(result.getText());
+				if (model.getSize() > 0) {
+					list.setSelectedIndex(0);
+					list.ensureIndexIsVisible(0);
+				}
+			}
+		});
+		result.addKeyListener(new KeyAdapter() {
+			@Override
+			public void keyPressed(final KeyEvent e) {
+				final int step = e.getKeyCode() == KeyEvent.VK_DOWN ? 1 : e.getKeyCode() == KeyEvent.VK_UP ? -1 : 0;
+				if (step != 0 && model.getSize() > 0) {
+					final int index = Math.max(0, Math.min(model.getSize() - 1, list.getSelectedIndex() + step));
+					list.setSelectedIndex(index);
+					list.ensureIndexIsVisible(index);
+					e.consume();
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * List model showing the items containing the filter text, ignoring case.
+	 * All items are kept, so changing the filter needs no reload.
+	 */
+	private static class FilterModel<T> extends AbstractListModel<T> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient Function<T, String> text;
+		private final transient List<T> items;
+		private transient List<T> visible;
+		private String filter;
+
+		protected FilterModel(final Function<T, String> aText) {
+			text = aText;
+			items = new ArrayList<T>();
+			visible = new ArrayList<T>();
+			filter = "";
+		}
+
+		protected void addAll(final List<T> page) {
+			items.addAll(page);
+			final int first = visible.size();
+			for (T item : page) {
+				if (accepts(item)) {
+					visible.add(item);
+				}
+			}
+			if (visible.size() > first) {
+				fireIntervalAdded(this, first, visible.size() - 1);
+			}
+		}
+
+		protected void setFilter(final String aFilter) {
+			final String next = aFilter.trim().toLowerCase(Locale.ROOT);
+			if (next.equals(filter)) {
+				return;
+			}
+			// narrowing the filter only needs to look at the visible items
+			final List<T> candidates = next.contains(filter) ? visible : items;
+			filter = next;
+			final List<T> result = new ArrayList<T>(candidates.size());
+			for (T item : candidates) {
+				if (accepts(item)) {
+					result.add(item);
+				}
+			}
+			final int removed = visible.size();
+			visible = result;
+			if (removed > 0) {
+				fireIntervalRemoved(this, 0, removed - 1);
+			}
+			if (!visible.isEmpty()) {
+				fireIntervalAdded(this, 0, visible.size() - 1);
+			}
+		}
+
+		private boolean accepts(final T item) {
+			return filter.isEmpty() || text.apply(item).toLowerCase(Locale.ROOT).contains(filter);
+		}
+
+		@Override
+		public int getSize() {
+			return visible.size();
+		}
+
+		@Override
+		public T getElementAt(final int index) {
+			return visible.get(index);
+		}
+	}
+
+}
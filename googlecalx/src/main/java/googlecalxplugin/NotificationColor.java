@@ -2,16 +2,13 @@ package googlecalxplugin;
 
 import java.awt.Color;
 import java.awt.Component;
-import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListCellRenderer;
 import javax.swing.JLabel;
 import javax.swing.JList;
-import javax.swing.JOptionPane;
-import javax.swing.JScrollPane;
-import javax.swing.ListSelectionModel;
-import javax.swing.ScrollPaneConstants;
+
+import util.ui.Localizer;
 
 /**
  * A label demonstrating a {@link CalendarColor}.
@@ -56,27 +53,22 @@ public class NotificationColor extends JLabel {
 
 	/**
 	 * Shows a selection of all available calendar colors and lets the user pick one.
+	 * The colors are loaded in the background while the dialog is shown.
 	 * @param parent the parent component (frame)
+	 * @param localizer the localizer for messages, must not be <code>null</code>.
 	 * @param title the title of the dialog
-	 * @param colors a list of calendar colors, must not be <code>null</code>.
+	 * @param colors the loader of the calendar colors, must not be <code>null</code>.
 	 * @return the selected calendar color, or <code>null</code>.
 	 */
-	public static CalendarColor pickColor(final Component parent, final String title, final List<CalendarColor> colors) {
-		final NotificationColor[] items = new NotificationColor[colors.size()];
-		for (int i = 0; i < items.length; i++) {
-			items[i] = new NotificationColor("", colors.get(i));
-		}
-		final JList<NotificationColor> list = new JList<NotificationColor>(items);
-		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-		list.setSelectedIndex(0);
-		list.setCellRenderer(new DefaultListCellRenderer() {
+	public static CalendarColor pickColor(final Component parent, final Localizer localizer, final String title, final ListPicker.Loader<CalendarColor> colors) {
+		final ListPicker<CalendarColor> picker = new ListPicker<CalendarColor>(parent, localizer, title, colors);
+		picker.setRenderer(new DefaultListCellRenderer() {
 			private static final long serialVersionUID = 1L;
 			@Override
 			public Component getListCellRendererComponent(JList<?> model,
 					Object value, int index, boolean isSelected,
 					boolean cellHasFocus) {
-				final CalendarColor color = ((NotificationColor) value).getColor();
-				final NotificationColor result = new NotificationColor(" example", color);
+				final NotificationColor result = new NotificationColor(" example", (CalendarColor) value);
 				if (isSelected) {
 					result.setBorder(BorderFactory.createLineBorder(Color.WHITE));
 				}
@@ -86,16 +78,7 @@ public class NotificationColor extends JLabel {
 				return result;
 			}
 		});
-		if (JOptionPane.showConfirmDialog(
-				parent,
-				new JScrollPane(list, ScrollPaneConstants.VERTICAL_SCROLLBAR_AS_NEEDED, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER),
-				title,
-				JOptionPane.OK_CANCEL_OPTION)
-				== 0) {
-			return list.getSelectedValue().getColor();
-		} else {
-			return null;
-		}
+		return picker.pick();
 	}
 
-}
\ No newline at end of file
+}
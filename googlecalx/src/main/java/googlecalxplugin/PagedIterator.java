@@ -0,0 +1,195 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the items of a paged list endpoint of the Calendar API,
+ * e.g. the calendar list or the events of a calendar. The items of a page
+ * are handed out as soon as the page arrives, while the next page is
+ * already requested in the background; at most one page is fetched ahead,
+ * so a caller stopping early, see {@link #close()}, costs at most one
+ * request more than it needed.
+ * <p>
+ * As an {@link Iterator} cannot throw checked exceptions, errors of a
+ * request surface as {@link UncheckedIOException} from {@link #hasNext()};
+ * {@link #forEachPage(Consumer)} throws the {@link IOException} itself.
+ * An iterator is used by one thread.
+ * @param <T> the item type
+ */
+public final class PagedIterator<T> implements Iterator<T>, Closeable {
+
+	/**
+	 * Requests one page of a list endpoint.
+	 * @param <T> the item type
+	 */
+	interface Source<T> {
+
+		/**
+		 * Requests a page.
+		 * @param pageToken the token of the page, <code>null</code> for the first page.
+		 * @return the page, never <code>null</code>.
+		 * @throws IOException in case of error
+		 */
+		Page<T> fetch(String pageToken) throws IOException;
+
+	}
+
+	/**
+	 * The items of a page and the token of the next page.
+	 * @param <T> the item type
+	 */
+	static final class Page<T> {
+
+		private final List<T> items;
+		private final String nextPageToken;
+
+		/**
+		 * Creates the page.
+		 * @param someItems the items, <code>null</code> for none
+		 * @param aNextPageToken the token of the next page, <code>null</code> if this is the last page.
+		 */
+		Page(final List<T> someItems, final String aNextPageToken) {
+			items = someItems != null ? someItems : Collections.<T>emptyList();
+			nextPageToken = aNextPageToken;
+		}
+	}
+
+	private final Source<T> source;
+	private final Executor executor;
+	private CompletableFuture<Page<T>> next;
+	private Iterator<T> current;
+
+	/**
+	 * Creates the iterator and requests the first page at once.
+	 * @param aSource requests the pages, must not be <code>null</code>.
+	 * @param anExecutor runs the requests, must not be <code>null</code>.
+	 */
+	PagedIterator(final Source<T> aSource, final Executor anExecutor) {
+		source = aSource;
+		executor = anExecutor;
+		current = Collections.<T>emptyList().iterator();
+		next = request(null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Waits for the next page if the items of the current one are used up.
+	 * @throws UncheckedIOException if the request of the next page failed
+	 */
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			try {
+				final List<T> page = nextPage();
+				if (page == null) {
+					return false;
+				}
+				current = page.iterator();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @throws UncheckedIOException if the request of the next page failed
+	 */
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/**
+	 * Hands the remaining items page by page to the given consumer, each
+	 * page as soon as it arrives; the next page is requested meanwhile.
+	 * @param pages receives the items of each page, must not be <code>null</code>.
+	 * @throws IOException in case of error; pages received before stay valid
+	 */
+	public void forEachPage(final Consumer<List<T>> pages) throws IOException {
+		if (current.hasNext()) {
+			final List<T> rest = new ArrayList<T>();
+			current.forEachRemaining(rest::add);
+			pages.accept(rest);
+		}
+		for (List<T> page = nextPage(); page != null; page = nextPage()) {
+			pages.accept(page);
+		}
+	}
+
+	/**
+	 * Returns the remaining items as a sequential stream; closing the stream
+	 * closes the iterator.
+	 * @return the stream, never <code>null</code>.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+	}
+
+	/**
+	 * Stops requesting pages; a request in flight is cancelled.
+	 */
+	@Override
+	public void close() {
+		if (next != null) {
+			next.cancel(true);
+			next = null;
+		}
+		current = Collections.<T>emptyList().iterator();
+	}
+
+	/**
+	 * Waits for the next page and requests the one after it.
+	 * @return the items of the page, <code>null</code> if there are no more pages.
+	 */
+	private List<T> nextPage() throws IOException {
+		if (next == null) {
+			return null;
+		}
+		final Page<T> page;
+		try {
+			page = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new InterruptedIOException("interrupted while waiting for a page");
+		} catch (ExecutionException e) {
+			next = null;
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		// the caller works on this page while the next one is on its way
+		next = page.nextPageToken != null ? request(page.nextPageToken) : null;
+		return page.items;
+	}
+
+	private CompletableFuture<Page<T>> request(final String pageToken) {
+		return AsyncCall.start(executor, () -> source.fetch(pageToken));
+	}
+
+}
@@ -0,0 +1,257 @@
+package googlecalxplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.calendar.model.Event;
+
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Deletes the events exported to the calendars programs are exported to,
+ * see {@link CalendarAccess#getTargetCalendarIds()}, once they ended more
+ * than the configured number of days ago, see {@link GoogleCalXSettings#getRetentionDays()},
+ * so the calendars do not grow with every program ever exported.
+ * <p>
+ * The job works in small steps at a fixed interval. A step lists the
+ * exported events of one time slice of a week of one calendar and deletes
+ * at most one batch of them in the background lane, which limits the rate
+ * of deletes to one batch per interval. A slice is done once a step finds
+ * nothing left to delete in it. The first slices of a calendar go back in
+ * time from the retention limit until a year of slices held no exported
+ * events; later slices follow the retention limit as it moves on. The
+ * calendars are served in order, so a step works on the first calendar
+ * with a slice to do. The slices done are written per calendar to a
+ * checkpoint file next to the stored credentials, so the job continues
+ * where it stopped after a restart, and a step with nothing to do costs
+ * no request. A step is skipped while the account is not authorized, so
+ * the authorization page is never opened by the job.
+ */
+public class PurgeJob implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(PurgeJob.class.getName());
+
+	/** default interval of steps, in milliseconds */
+	public static final long DEFAULT_INTERVAL = TimeUnit.SECONDS.toMillis(30L);
+	/** name of the checkpoint file in the data directory */
+	static final String CHECKPOINT = "purge";
+	/** the time span listed by one step, in milliseconds */
+	static final long SLICE = TimeUnit.DAYS.toMillis(7L);
+	/** slices following the retention limit are not shorter than this, in milliseconds */
+	private static final long MIN_SLICE = TimeUnit.DAYS.toMillis(1L);
+	/** consecutive slices without exported events which end going back in time */
+	private static final int MAX_EMPTY_SLICES = 52;
+	private static final int BATCH_SIZE = 50;
+	private static final String KEY_UNTIL = "until";
+	private static final String KEY_CURSOR = "cursor";
+	private static final String KEY_EMPTY = "empty";
+	private static final String KEY_COMPLETE = "complete";
+
+	private final Supplier<CalendarAccess> accessSupplier;
+	private final IntSupplier retention;
+	private final long interval;
+	private final AtomicBoolean running;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates the job; it does nothing until {@link #start()} or {@link #step()}.
+	 * @param supplier returns the calendar accessor of the export account, must not be <code>null</code>.
+	 * Called on the background thread, so the calendar client is not created by the caller.
+	 * @param retentionDays returns the number of days to keep ended events, zero to keep them;
+	 * must not be <code>null</code>.
+	 * @param intervalMillis the interval of steps, in milliseconds
+	 */
+	public PurgeJob(final Supplier<CalendarAccess> supplier, final IntSupplier retentionDays, final long intervalMillis) {
+		accessSupplier = supplier;
+		retention = retentionDays;
+		interval = Math.max(1L, intervalMillis);
+		running = new AtomicBoolean();
+	}
+
+	/**
+	 * Starts running steps in the background, the first one after one interval.
+	 */
+	public synchronized void start() {
+		if (executor == null) {
+			final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, BulkExporter.daemon("purge"));
+			result.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			result.scheduleWithFixedDelay(this::stepQuietly, interval, interval, TimeUnit.MILLISECONDS);
+			executor = result;
+		}
+	}
+
+	/**
+	 * Stops running steps; a step in progress ends after the current request.
+	 */
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Counts the exported events which a purge with the given retention
+	 * would delete, without deleting them. Lists all past exported events
+	 * with one ranged query per calendar; meant to be asked for by the user,
+	 * so it authorizes the account if needed.
+	 * @param days the number of days to keep ended events
+	 * @return the number of events.
+	 * @throws IOException in case of error
+	 */
+	public int count(final int days) throws IOException {
+		final CalendarAccess access = accessSupplier.get();
+		final long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Math.max(0, days));
+		final AtomicInteger result = new AtomicInteger();
+		for (String calendarId : access.getTargetCalendarIds()) {
+			access.getExportedEvents(calendarId, 0L, cutoff, Lane.BACKGROUND, page -> result.addAndGet(ended(page, cutoff).size()));
+		}
+		return result.get();
+	}
+
+	/**
+	 * Counts the events a purge would delete without blocking, see {@link #count(int)}.
+	 * The count runs on the shared executor, see {@link AsyncCall#sharedExecutor()},
+	 * so the calendar accessor is not asked for by the caller.
+	 * @param days the number of days to keep ended events
+	 * @return the future of the number of events
+	 */
+	public CompletableFuture<Integer> countAsync(final int days) {
+		return AsyncCall.start(AsyncCall.sharedExecutor(), () -> Integer.valueOf(count(days)));
+	}
+
+	/**
+	 * Runs one step on the calling thread: lists the next time slice of the
+	 * first calendar with one to do and deletes up to one batch of its ended events.
+	 * @return the number of deleted events; -1 if purging is off, the account is
+	 * not authorized, a step is in progress already or there is nothing to do.
+	 * @throws IOException in case of error; the slice is listed again by the next step
+	 */
+	public int step() throws IOException {
+		final int days = retention.getAsInt();
+		if (days <= 0 || !running.compareAndSet(false, true)) {
+			return -1;
+		}
+		try {
+			final CalendarAccess access = accessSupplier.get();
+			if (!access.isAuthorized()) {
+				return -1;
+			}
+			final Path file = new File(access.getDataDirectory(), CHECKPOINT).toPath();
+			final long cutoff = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days);
+			final Properties checkpoint = load(StateFiles.read(file));
+			for (String calendarId : access.getTargetCalendarIds()) {
+				final int result = step(access, file, checkpoint, calendarId, cutoff);
+				if (result >= 0) {
+					return result;
+				}
+			}
+			return -1;
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Runs one step in the given calendar if it has a slice to do.
+	 * @return the number of deleted events; -1 if there is nothing to do.
+	 */
+	private int step(final CalendarAccess access, final Path file, final Properties checkpoint, final String calendarId, final long cutoff) throws IOException {
+		if (checkpoint.getProperty(key(calendarId, KEY_UNTIL)) == null) {
+			// a new calendar, start at the retention limit
+			checkpoint.setProperty(key(calendarId, KEY_UNTIL), Long.toString(cutoff));
+			checkpoint.setProperty(key(calendarId, KEY_CURSOR), Long.toString(cutoff));
+		}
+		final long until = Long.parseLong(checkpoint.getProperty(key(calendarId, KEY_UNTIL)));
+		final long cursor = Long.parseLong(checkpoint.getProperty(key(calendarId, KEY_CURSOR)));
+		final int empty = Integer.parseInt(checkpoint.getProperty(key(calendarId, KEY_EMPTY), "0"));
+		final boolean forward = cutoff - until >= MIN_SLICE;
+		if (!forward && Boolean.parseBoolean(checkpoint.getProperty(key(calendarId, KEY_COMPLETE)))) {
+			return -1;
+		}
+		final long from = forward ? until : cursor - SLICE;
+		final long to = forward ? Math.min(cutoff, until + SLICE) : cursor;
+		final List<String> ended = new ArrayList<String>();
+		access.getExportedEvents(calendarId, from, to, Lane.BACKGROUND, page -> ended.addAll(ended(page, cutoff)));
+		final List<String> batch = ended.subList(0, Math.min(ended.size(), BATCH_SIZE));
+		final Map<String, IOException> failures = batch.isEmpty()
+			? Collections.<String, IOException>emptyMap()
+			: access.deleteEvents(calendarId, new ArrayList<String>(batch), Lane.BACKGROUND);
+		if (failures.isEmpty() && ended.size() <= BATCH_SIZE) {
+			// nothing left in the slice
+			if (forward) {
+				checkpoint.setProperty(key(calendarId, KEY_UNTIL), Long.toString(to));
+			} else {
+				final int emptySlices = ended.isEmpty() ? empty + 1 : 0;
+				checkpoint.setProperty(key(calendarId, KEY_CURSOR), Long.toString(from));
+				checkpoint.setProperty(key(calendarId, KEY_EMPTY), Integer.toString(emptySlices));
+				checkpoint.setProperty(key(calendarId, KEY_COMPLETE), Boolean.toString(emptySlices >= MAX_EMPTY_SLICES));
+			}
+		}
+		save(file, checkpoint);
+		return batch.size() - failures.size();
+	}
+
+	/**
+	 * Runs one step, logging errors; runs on the background thread.
+	 */
+	private void stepQuietly() {
+		try {
+			step();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "cannot purge past events", e);
+		}
+	}
+
+	private static List<String> ended(final List<Event> events, final long cutoff) {
+		final List<String> result = new ArrayList<String>(events.size());
+		for (Event event : events) {
+			if (event.getId() != null && event.getEnd() != null && CalendarMirror.toMillis(event.getEnd()) <= cutoff) {
+				result.add(event.getId());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the checkpoint key of an entry of the given calendar.
+	 */
+	private static String key(final String calendarId, final String name) {
+		return calendarId + '.' + name;
+	}
+
+	private static Properties load(final byte[] content) throws IOException {
+		final Properties result = new Properties();
+		if (content != null) {
+			result.load(new ByteArrayInputStream(content));
+		}
+		return result;
+	}
+
+	private static void save(final Path file, final Properties checkpoint) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		checkpoint.store(out, null);
+		StateFiles.update(file, current -> out.toByteArray());
+	}
+
+}
@@ -0,0 +1,381 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+
+/**
+ * Admits Calendar API requests in priority order while sharing one
+ * request budget. The budget is a token bucket refilled at the per-user
+ * quota rate plus a limit of requests in flight. Interactive requests
+ * are admitted before waiting bulk requests, which are admitted before
+ * background requests. Bulk and background requests leave one request
+ * slot and one token unused, so an interactive request never has to
+ * wait for a bulk request to finish. While the limit is one request, that
+ * slot is taken by bulk requests too; an interactive request then exceeds
+ * the limit by one.
+ * <p>
+ * The number of requests in flight adapts to the server, see
+ * {@link ConcurrencyLimit}: it grows while requests succeed and shrinks
+ * on rate limit responses (429, or 403 with a rate limit reason) and
+ * when the latency rises, so bulk exports settle at the highest
+ * throughput the account sustains. The limit starts low and grows up to
+ * the configured maximum, so a new account does not start with a burst of
+ * rate limited requests. Requests which were rate limited or failed on
+ * the server (5xx) are sent again after a jittered, exponentially growing
+ * pause, so adapting to the server loses no requests.
+ * <p>
+ * During an outage, the {@link CircuitBreaker} lets requests fail at once
+ * instead of each waiting for its timeout.
+ * <p>
+ * Requests run on the calling thread; no threads are created.
+ */
+public class RequestScheduler {
+
+	/** The lanes of the scheduler, in order of priority. */
+	public enum Lane {
+		/** requests triggered directly by the user */
+		INTERACTIVE,
+		/** exports of many programs */
+		BULK,
+		/** synchronization and maintenance */
+		BACKGROUND;
+	}
+
+	/**
+	 * A request to execute.
+	 * @param <T> the result type
+	 */
+	public interface Call<T> {
+
+		/**
+		 * Executes the request.
+		 * @return the result of the request
+		 * @throws IOException in case of error
+		 */
+		T call() throws IOException;
+
+	}
+
+	/** default rate: the Calendar API allows 600 requests per minute and user */
+	public static final double DEFAULT_RATE = 10d;
+	/** default maximum number of requests in flight */
+	public static final int DEFAULT_CONCURRENCY = 8;
+	/** the number of requests in flight to start with; one is left for interactive requests */
+	private static final int INITIAL_CONCURRENCY = 2;
+
+	/** the most attempts of a request which was rate limited or failed on the server */
+	static final int MAX_ATTEMPTS = 5;
+	/** the pause before the first retry, doubled for each further one */
+	private static final long INITIAL_BACKOFF = TimeUnit.MILLISECONDS.toNanos(500L);
+
+	private static final double RESERVE = 1d;
+	private static final int STATUS_TOO_MANY_REQUESTS = 429;
+
+	private final ConcurrencyLimit limit;
+	private volatile CircuitBreaker breaker;
+	private final double tokensPerNano;
+	private final double burst;
+	private final Lock lock;
+	private final Condition changed;
+	private final int[] waiting;
+	private int running;
+	private int runningLow;
+	private double tokens;
+	private long refilled;
+	private volatile long backOff;
+
+	/**
+	 * Creates the scheduler with the default rate and concurrency.
+	 */
+	public RequestScheduler() {
+		this(DEFAULT_CONCURRENCY, DEFAULT_RATE);
+	}
+
+	/**
+	 * Creates the scheduler.
+	 * @param maxConcurrency the maximum number of requests in flight, at least one.
+	 * @param requestsPerSecond the number of requests per second allowed, must be positive.
+	 */
+	public RequestScheduler(final int maxConcurrency, final double requestsPerSecond) {
+		limit = new ConcurrencyLimit(1, INITIAL_CONCURRENCY, maxConcurrency);
+		breaker = new CircuitBreaker();
+		tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1L);
+		burst = Math.max(1d + RESERVE, requestsPerSecond);
+		lock = new ReentrantLock();
+		changed = lock.newCondition();
+		waiting = new int[Lane.values().length];
+		tokens = burst;
+		refilled = System.nanoTime();
+		backOff = INITIAL_BACKOFF;
+	}
+
+	/**
+	 * Executes the given request as soon as the lane is admitted. A request
+	 * which was rate limited or failed on the server is executed again, up to
+	 * {@value #MAX_ATTEMPTS} times; the request must therefore be repeatable.
+	 * @param <T> the result type
+	 * @param lane the lane of the request, must not be <code>null</code>.
+	 * @param call the request, must not be <code>null</code>.
+	 * @return the result of the request
+	 * @throws IOException in case of error, or when interrupted while waiting;
+	 * a {@link CircuitBreaker.OpenException} if the Calendar API is not reachable
+	 */
+	public <T> T execute(final Lane lane, final Call<T> call) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return executeOnce(lane, call);
+			} catch (HttpResponseException e) {
+				if (attempt == MAX_ATTEMPTS || !(isRateLimited(e) || e.getStatusCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR)) {
+					throw e;
+				}
+				// the limit was lowered already; the pause spreads the retries of requests throttled together
+				pause((long) (backOff * (1L << (attempt - 1)) * (0.5d + ThreadLocalRandom.current().nextDouble())));
+			}
+		}
+	}
+
+	/**
+	 * Sets the pause before the first retry, e.g. to shorten it in tests.
+	 * @param millis the pause in milliseconds, not negative.
+	 */
+	void setBackOff(final long millis) {
+		backOff = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	private <T> T executeOnce(final Lane lane, final Call<T> call) throws IOException {
+		final CircuitBreaker circuit = breaker;
+		final boolean probe = circuit.acquire();
+		try {
+			acquire(lane);
+		} catch (InterruptedIOException e) {
+			circuit.onAbandon(probe);
+			throw e;
+		}
+		final long start = System.nanoTime();
+		boolean responded = false;
+		boolean rateLimited = false;
+		boolean failed = false;
+		try {
+			final T result = call.call();
+			responded = true;
+			return result;
+		} catch (HttpResponseException e) {
+			rateLimited = isRateLimited(e);
+			responded = !rateLimited;
+			failed = e.getStatusCode() >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR;
+			throw e;
+		} catch (SocketTimeoutException e) {
+			failed = true;
+			throw e;
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			// no connection
+			failed = true;
+			throw e;
+		} finally {
+			release(lane, start, responded, rateLimited);
+			if (failed) {
+				circuit.onFailure(probe);
+			} else if (responded || rateLimited) {
+				circuit.onSuccess(probe);
+			} else {
+				circuit.onAbandon(probe);
+			}
+		}
+	}
+
+	/**
+	 * Returns the circuit breaker all requests pass.
+	 * @return the circuit breaker, never <code>null</code>.
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return breaker;
+	}
+
+	/**
+	 * Replaces the circuit breaker, e.g. to use a different threshold.
+	 * @param aBreaker the circuit breaker to use, must not be <code>null</code>.
+	 */
+	void setCircuitBreaker(final CircuitBreaker aBreaker) {
+		breaker = aBreaker;
+	}
+
+	/**
+	 * Returns the current limit of requests in flight.
+	 * @return the current limit of requests in flight, at least one.
+	 */
+	public int getConcurrencyLimit() {
+		lock.lock();
+		try {
+			return limit.get();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the maximum the limit of requests in flight grows to.
+	 * @return the maximum number of requests in flight, at least one.
+	 */
+	public int getMaxConcurrency() {
+		lock.lock();
+		try {
+			return limit.getMax();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 * @return the number of requests in flight.
+	 */
+	public int getRunning() {
+		lock.lock();
+		try {
+			return running;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of requests waiting in the given lane.
+	 * @param lane the lane, must not be <code>null</code>.
+	 * @return the number of waiting requests.
+	 */
+	public int getWaiting(final Lane lane) {
+		lock.lock();
+		try {
+			return waiting[lane.ordinal()];
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void acquire(final Lane lane) throws InterruptedIOException {
+		final int index = lane.ordinal();
+		lock.lock();
+		try {
+			waiting[index]++;
+			try {
+				while (!admissible(lane)) {
+					final double needed = required(lane) - tokens;
+					if (needed > 0 && slotAvailable(lane)) {
+						changed.awaitNanos(Math.max(1L, (long) Math.ceil(needed / tokensPerNano)));
+					} else {
+						changed.await();
+					}
+				}
+			} finally {
+				waiting[index]--;
+			}
+			tokens -= 1d;
+			running++;
+			if (lane != Lane.INTERACTIVE) {
+				runningLow++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for " + lane);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(final Lane lane, final long start, final boolean responded, final boolean rateLimited) {
+		final long now = System.nanoTime();
+		lock.lock();
+		try {
+			if (responded) {
+				limit.onResponse(now - start, running >= limit.get() || isWaiting(), now);
+			} else if (rateLimited) {
+				limit.onRateLimited(now);
+			}
+			running--;
+			if (lane != Lane.INTERACTIVE) {
+				runningLow--;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void pause(final long nanos) throws InterruptedIOException {
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting to retry");
+		}
+	}
+
+	private boolean admissible(final Lane lane) {
+		for (int i = 0; i < lane.ordinal(); i++) {
+			if (waiting[i] > 0) {
+				return false;
+			}
+		}
+		refill();
+		return slotAvailable(lane) && tokens >= required(lane);
+	}
+
+	private boolean slotAvailable(final Lane lane) {
+		final int concurrency = limit.get();
+		if (lane == Lane.INTERACTIVE) {
+			// one interactive request may always run besides the other lanes
+			return running < concurrency || running == runningLow;
+		}
+		return running < concurrency && runningLow < Math.max(1, concurrency - 1);
+	}
+
+	private boolean isWaiting() {
+		for (int count : waiting) {
+			if (count > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRateLimited(final HttpResponseException e) {
+		if (e.getStatusCode() == STATUS_TOO_MANY_REQUESTS) {
+			return true;
+		}
+		if (e.getStatusCode() == HttpStatusCodes.STATUS_CODE_FORBIDDEN && e instanceof GoogleJsonResponseException) {
+			final GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+			if (details != null && details.getErrors() != null) {
+				for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+					if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private double required(final Lane lane) {
+		return lane == Lane.INTERACTIVE ? 1d : 1d + RESERVE;
+	}
+
+	private void refill() {
+		final long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+		refilled = now;
+	}
+
+}
@@ -0,0 +1,261 @@
+package googlecalxplugin;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Renders the events exported to the calendars programs are exported to,
+ * see {@link CalendarAccess#getTargetCalendarIds()}, again after the
+ * settings they are rendered from changed, e.g. the title and body
+ * templates or the reminders, see {@link CalendarAccess#getRenderFingerprint()}.
+ * Events whose content hash, see {@link CalendarAccess#getContentHash(Program)},
+ * is unchanged are skipped; the others are patched in batches in the
+ * background lane, with a pause between batches which grows while requests
+ * fail, e.g. for lack of quota.
+ * <p>
+ * The calendars are processed one after the other, the events of each
+ * ordered by program ID. After each batch the last processed ID of the
+ * calendar is written to a checkpoint file next to the stored credentials,
+ * so a job interrupted by a restart resumes where it stopped. A calendar
+ * which is finished is not processed again until the settings change.
+ * A run is skipped while the account is not authorized, so the
+ * authorization page is never opened by the job.
+ */
+public class RerenderJob implements Closeable {
+
+	private static final Logger LOGGER = Logger.getLogger(RerenderJob.class.getName());
+
+	/** default pause between two batches, in milliseconds */
+	public static final long DEFAULT_PAUSE = TimeUnit.SECONDS.toMillis(2L);
+	/** name of the checkpoint file in the data directory */
+	static final String CHECKPOINT = "rerender";
+	private static final String KEY_FINGERPRINT = "fingerprint";
+	private static final String KEY_CURSOR = "cursor";
+	private static final String KEY_DONE = "done";
+	private static final String KEY_ATTEMPTS = "attempts";
+	private static final int BATCH_SIZE = 50;
+	/** runs which leave events unpatched before the job gives up until the settings change */
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(10L);
+	private static final long MAX_PAUSE = TimeUnit.MINUTES.toMillis(1L);
+
+	private final Supplier<CalendarAccess> accessSupplier;
+	private final Function<String, Program> programs;
+	private final long pause;
+	private final AtomicBoolean running;
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Creates the job; it does nothing until {@link #start()} or {@link #run()}.
+	 * @param supplier returns the calendar accessor of the export account, must not be <code>null</code>.
+	 * Called on the background thread, so the calendar client is not created by the caller.
+	 * @param lookup returns the program of a unique program ID, or <code>null</code> if it is
+	 * not in the program guide (anymore); must not be <code>null</code>.
+	 * @param pauseMillis the pause between two batches, in milliseconds
+	 */
+	public RerenderJob(final Supplier<CalendarAccess> supplier, final Function<String, Program> lookup, final long pauseMillis) {
+		accessSupplier = supplier;
+		programs = lookup;
+		pause = Math.max(0L, pauseMillis);
+		running = new AtomicBoolean();
+	}
+
+	/**
+	 * Runs the job in the background soon, e.g. after the settings changed.
+	 * A run finding nothing to do costs no request.
+	 */
+	public synchronized void start() {
+		if (executor == null) {
+			final ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, BulkExporter.daemon("rerender"));
+			result.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+			executor = result;
+		}
+		executor.execute(this::runQuietly);
+	}
+
+	/**
+	 * Stops the job; a run in progress ends after the current request, its
+	 * progress up to the last batch is kept.
+	 */
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Runs the job on the calling thread, resuming from the checkpoint if
+	 * it was written for the current settings.
+	 * @return the number of patched events; -1 if the account is not authorized,
+	 * a run is in progress already or all calendars are finished for the current settings.
+	 * @throws IOException in case of error; the progress up to the last batch is kept
+	 */
+	public int run() throws IOException {
+		if (!running.compareAndSet(false, true)) {
+			return -1;
+		}
+		try {
+			final CalendarAccess access = accessSupplier.get();
+			if (!access.isAuthorized()) {
+				return -1;
+			}
+			final Path file = new File(access.getDataDirectory(), CHECKPOINT).toPath();
+			final String fingerprint = access.getRenderFingerprint();
+			Properties checkpoint = load(StateFiles.read(file));
+			if (!fingerprint.equals(checkpoint.getProperty(KEY_FINGERPRINT))) {
+				// the settings changed, start over in all calendars
+				checkpoint = new Properties();
+				checkpoint.setProperty(KEY_FINGERPRINT, fingerprint);
+			}
+			int patched = -1;
+			boolean retry = false;
+			for (String calendarId : access.getTargetCalendarIds()) {
+				if (!Boolean.parseBoolean(checkpoint.getProperty(key(calendarId, KEY_DONE)))) {
+					patched = Math.max(0, patched) + run(access, file, checkpoint, calendarId);
+					retry |= !Boolean.parseBoolean(checkpoint.getProperty(key(calendarId, KEY_DONE)));
+				}
+			}
+			if (retry) {
+				retryLater();
+			}
+			return patched;
+		} finally {
+			running.set(false);
+		}
+	}
+
+	/**
+	 * Renders the events of one calendar again, resuming from its entries
+	 * in the checkpoint, and updates them.
+	 */
+	private int run(final CalendarAccess access, final Path file, final Properties checkpoint, final String calendarId) throws IOException {
+		final int attempts = Integer.parseInt(checkpoint.getProperty(key(calendarId, KEY_ATTEMPTS), "0"));
+		final String cursor = checkpoint.getProperty(key(calendarId, KEY_CURSOR));
+		final long now = System.currentTimeMillis();
+		// past events are left as they are
+		final TreeMap<String, String> exported = new TreeMap<String, String>();
+		access.getExportedHashes(calendarId, now, now + CalendarMirror.FUTURE, Lane.BACKGROUND, exported::putAll);
+		final NavigableMap<String, String> todo = cursor != null ? exported.tailMap(cursor, false) : exported;
+		final List<Event> batch = new ArrayList<Event>(BATCH_SIZE);
+		int patched = 0;
+		int failed = 0;
+		long delay = pause;
+		String last = cursor;
+		for (Map.Entry<String, String> entry : todo.entrySet()) {
+			final Program program = programs.apply(entry.getKey());
+			if (program != null && !access.getContentHash(program).equals(entry.getValue())) {
+				batch.add(access.createEvent(program));
+			}
+			last = entry.getKey();
+			if (batch.size() == BATCH_SIZE) {
+				final int failures = access.patchEvents(calendarId, batch, Lane.BACKGROUND).size();
+				patched += batch.size() - failures;
+				failed += failures;
+				batch.clear();
+				save(file, checkpoint, calendarId, last, false, attempts);
+				// back off while requests fail, e.g. for lack of quota
+				delay = failures > 0 ? Math.min(MAX_PAUSE, Math.max(1L, 2L * delay)) : pause;
+				sleep(delay);
+			}
+		}
+		if (!batch.isEmpty()) {
+			final int failures = access.patchEvents(calendarId, batch, Lane.BACKGROUND).size();
+			patched += batch.size() - failures;
+			failed += failures;
+		}
+		if (failed > 0 && attempts + 1 < MAX_ATTEMPTS) {
+			// start over later, the events patched meanwhile are skipped by their hash
+			save(file, checkpoint, calendarId, null, false, attempts + 1);
+		} else {
+			save(file, checkpoint, calendarId, last, true, 0);
+		}
+		return patched;
+	}
+
+	/**
+	 * Runs the job, logging errors; runs on the background thread.
+	 */
+	private void runQuietly() {
+		try {
+			run();
+		} catch (InterruptedIOException e) {
+			// closed
+		} catch (IOException | RuntimeException e) {
+			LOGGER.log(Level.FINE, "cannot render events again", e);
+			retryLater();
+		}
+	}
+
+	private synchronized void retryLater() {
+		if (executor != null) {
+			executor.schedule(this::runQuietly, RETRY_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static Properties load(final byte[] content) throws IOException {
+		final Properties result = new Properties();
+		if (content != null) {
+			result.load(new ByteArrayInputStream(content));
+		}
+		return result;
+	}
+
+	private static void save(final Path file, final Properties checkpoint, final String calendarId, final String cursor, final boolean done, final int attempts) throws IOException {
+		if (cursor != null) {
+			checkpoint.setProperty(key(calendarId, KEY_CURSOR), cursor);
+		} else {
+			checkpoint.remove(key(calendarId, KEY_CURSOR));
+		}
+		checkpoint.setProperty(key(calendarId, KEY_DONE), Boolean.toString(done));
+		checkpoint.setProperty(key(calendarId, KEY_ATTEMPTS), Integer.toString(attempts));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		checkpoint.store(out, null);
+		// another instance may run the job, too; the last writer wins, both resume from there
+		StateFiles.update(file, current -> out.toByteArray());
+	}
+
+	/**
+	 * Returns the checkpoint key of an entry of the given calendar.
+	 */
+	private static String key(final String calendarId, final String name) {
+		return calendarId + '.' + name;
+	}
+
+	private static void sleep(final long millis) throws InterruptedIOException {
+		if (millis > 0L) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted between batches");
+			}
+		}
+	}
+
+}
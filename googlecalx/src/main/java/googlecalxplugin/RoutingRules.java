@@ -0,0 +1,489 @@
+package googlecalxplugin;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import devplugin.Channel;
+import devplugin.Program;
+import devplugin.ProgramFieldType;
+
+/**
+ * Compiled rules choosing the target calendar, reminder and color of the
+ * event of a program. The rules are given as text, one rule per line:
+ * <pre>
+ * channel=ARD|ZDF; genre=Krimi -&gt; calendar=crime@group.calendar.google.com; reminder=popup:15; color=11
+ * title=Tatort* -&gt; color=5
+ * genre=Sport -&gt; calendar=work|sports@group.calendar.google.com
+ * title=~(?i)\bfinale?\b -&gt; reminder=sms:60
+ * </pre>
+ * Conditions left of the arrow are separated by semicolons and must all
+ * hold; a rule without conditions matches every program:
+ * <ul>
+ * <li><code>channel</code> - the ID or name of the channel</li>
+ * <li><code>title</code> - the title; a trailing <code>*</code> matches the
+ * beginning of the title, a leading <code>~</code> introduces a regular
+ * expression found anywhere in the title</li>
+ * <li>the name of a {@link ProgramFieldType}, e.g. <code>GENRE_TYPE</code> or
+ * just <code>genre</code> - the value of the field; comma separated values
+ * such as genres match each value on its own</li>
+ * </ul>
+ * Except for regular expressions, values are compared ignoring case and
+ * alternatives are separated by <code>|</code>. The actions right of the
+ * arrow are <code>calendar</code>, the ID of a calendar, optionally preceded
+ * by the name of the account it belongs to and <code>|</code> (by default,
+ * the account of the export target), <code>reminder</code>, a {@link NotificationTypes} name with the minutes
+ * after a colon, and <code>color</code>, the ID of a calendar color. Empty
+ * lines and lines starting with <code>#</code> are ignored.
+ * <p>
+ * The first matching rule applies. When compiled, the conditions are turned
+ * into hash tables per channel, title and field value, each pointing to the
+ * set of rules the value satisfies. Routing a program therefore costs a few
+ * hash lookups and an intersection of bit sets; regular expressions are
+ * only evaluated for rules which still match otherwise, in rule order.
+ * <p>
+ * Instances are immutable and safe for concurrent use.
+ */
+public final class RoutingRules {
+
+	/** rules routing no program */
+	public static final RoutingRules NONE = new RoutingRules("", new ArrayList<Rule>());
+
+	private static final String ARROW = "->";
+	private static final String KEY_CHANNEL = "channel";
+	private static final String KEY_TITLE = "title";
+	private static final String KEY_CALENDAR = "calendar";
+	private static final String KEY_REMINDER = "reminder";
+	private static final String KEY_COLOR = "color";
+
+	private final String source;
+	private final Route[] routes;
+	private final Pattern[] patterns;
+	private final Dimension channels;
+	private final Dimension titles;
+	private final Dimension prefixes;
+	private final int[] prefixLengths;
+	private final Map<ProgramFieldType, Dimension> fields;
+
+	private RoutingRules(final String aSource, final List<Rule> rules) {
+		source = aSource;
+		routes = new Route[rules.size()];
+		patterns = new Pattern[rules.size()];
+		channels = new Dimension();
+		titles = new Dimension();
+		prefixes = new Dimension();
+		fields = new HashMap<ProgramFieldType, Dimension>();
+		final Map<Integer, Boolean> lengths = new HashMap<Integer, Boolean>();
+		for (int i = 0; i < routes.length; i++) {
+			final Rule rule = rules.get(i);
+			routes[i] = rule.route;
+			channels.add(i, rule.channels);
+			if (rule.pattern != null) {
+				// checked last, and only if everything else matches
+				patterns[i] = rule.pattern;
+				titles.add(i, null);
+			} else if (rule.prefixes != null) {
+				for (String prefix : rule.prefixes) {
+					prefixes.put(prefix, i);
+					lengths.put(Integer.valueOf(prefix.length()), Boolean.TRUE);
+				}
+			} else {
+				titles.add(i, rule.titles);
+			}
+		}
+		for (int i = 0; i < routes.length; i++) {
+			for (Map.Entry<ProgramFieldType, List<String>> entry : rules.get(i).fields.entrySet()) {
+				Dimension dimension = fields.get(entry.getKey());
+				if (dimension == null) {
+					dimension = new Dimension();
+					// the rules before did not restrict the field
+					dimension.any.set(0, i);
+					fields.put(entry.getKey(), dimension);
+				}
+				dimension.add(i, entry.getValue());
+			}
+			for (Map.Entry<ProgramFieldType, Dimension> entry : fields.entrySet()) {
+				if (!rules.get(i).fields.containsKey(entry.getKey())) {
+					entry.getValue().any.set(i);
+				}
+			}
+		}
+		prefixLengths = new int[lengths.size()];
+		int i = 0;
+		for (Integer length : lengths.keySet()) {
+			prefixLengths[i++] = length.intValue();
+		}
+	}
+
+	/**
+	 * Compiles the given rules.
+	 * @param text the rules, one per line, must not be <code>null</code>.
+	 * @return the compiled rules, never <code>null</code>.
+	 * @throws IllegalArgumentException if a rule is malformed; the message names the line
+	 */
+	public static RoutingRules compile(final String text) {
+		final List<Rule> rules = new ArrayList<Rule>();
+		final String[] lines = text.split("\\r?\\n");
+		for (int i = 0; i < lines.length; i++) {
+			final String line = lines[i].trim();
+			if (!line.isEmpty() && line.charAt(0) != '#') {
+				try {
+					rules.add(parse(line));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage(), e);
+				}
+			}
+		}
+		return rules.isEmpty() && text.trim().isEmpty() ? NONE : new RoutingRules(text, rules);
+	}
+
+	/**
+	 * Returns rules routing no program, remembering the given text,
+	 * e.g. in place of rules which do not compile.
+	 * @param text the text of the rules, must not be <code>null</code>.
+	 * @return the empty rules, never <code>null</code>.
+	 */
+	static RoutingRules none(final String text) {
+		return new RoutingRules(text, new ArrayList<Rule>());
+	}
+
+	/**
+	 * Returns the text the rules were compiled from.
+	 * @return the rules as text, never <code>null</code>.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the number of rules.
+	 * @return the number of rules.
+	 */
+	public int size() {
+		return routes.length;
+	}
+
+	/**
+	 * Returns the calendars named by the <code>calendar</code> actions of
+	 * the rules, i.e. all calendars programs may be routed to besides the
+	 * export target.
+	 * @param targetAccount the account of calendars named without account, <code>null</code> for the default account.
+	 * @return the calendars in rule order, without duplicates; never <code>null</code>.
+	 */
+	public Set<CalendarTarget> getCalendarTargets(final String targetAccount) {
+		final Set<CalendarTarget> result = new LinkedHashSet<CalendarTarget>();
+		for (Route route : routes) {
+			if (route.getCalendarId() != null) {
+				result.add(new CalendarTarget(route.getCalendarId(), route.getCalendarId(), route.getAccount() != null ? route.getAccount() : targetAccount));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the route of the first rule matching the given program.
+	 * @param program the program, must not be <code>null</code>.
+	 * @return the route, or <code>null</code> if no rule matches.
+	 */
+	public Route route(final Program program) {
+		if (routes.length == 0) {
+			return null;
+		}
+		final Channel channel = program.getChannel();
+		final BitSet candidates = channel != null
+			? channels.match(channel.getId(), channel.getName())
+			: channels.match();
+		for (Map.Entry<ProgramFieldType, Dimension> entry : fields.entrySet()) {
+			if (candidates.isEmpty()) {
+				return null;
+			}
+			candidates.and(entry.getValue().match(getValues(program, entry.getKey())));
+		}
+		final String title = program.getTitle();
+		if (title != null) {
+			final String key = title.toLowerCase(Locale.ROOT);
+			final BitSet matches = titles.match(key);
+			for (int length : prefixLengths) {
+				if (length <= key.length()) {
+					prefixes.or(matches, key.substring(0, length));
+				}
+			}
+			candidates.and(matches);
+		} else {
+			candidates.and(titles.any);
+		}
+		for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+			if (patterns[i] == null || (title != null && patterns[i].matcher(title).find())) {
+				return routes[i];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return source;
+	}
+
+	private static String[] getValues(final Program program, final ProgramFieldType type) {
+		final String value;
+		if (type.isRightFormat(ProgramFieldType.FORMAT_TEXT)) {
+			value = program.getTextField(type);
+		} else if (type.isRightFormat(ProgramFieldType.FORMAT_INT)) {
+			value = program.getIntFieldAsString(type);
+		} else {
+			value = null;
+		}
+		if (value == null) {
+			return new String[0];
+		}
+		final String[] result = value.split(",");
+		for (int i = 0; i < result.length; i++) {
+			result[i] = result[i].trim().toLowerCase(Locale.ROOT);
+		}
+		return result;
+	}
+
+	private static Rule parse(final String line) {
+		final int arrow = line.indexOf(ARROW);
+		if (arrow < 0) {
+			throw new IllegalArgumentException("missing " + ARROW);
+		}
+		final Rule rule = new Rule();
+		for (String condition : line.substring(0, arrow).split(";")) {
+			if (condition.trim().isEmpty()) {
+				continue;
+			}
+			final String key = getKey(condition);
+			final String value = getValue(condition);
+			if (KEY_CHANNEL.equals(key)) {
+				rule.channels = getAlternatives(value);
+			} else if (KEY_TITLE.equals(key)) {
+				if (value.startsWith("~")) {
+					try {
+						rule.pattern = Pattern.compile(value.substring(1));
+					} catch (PatternSyntaxException e) {
+						throw new IllegalArgumentException("invalid title expression: " + e.getDescription(), e);
+					}
+				} else if (value.endsWith("*")) {
+					rule.prefixes = getAlternatives(value.substring(0, value.length() - 1));
+				} else {
+					rule.titles = getAlternatives(value);
+				}
+			} else {
+				final ProgramFieldType type = getFieldType(key);
+				if (type == null) {
+					throw new IllegalArgumentException("unknown condition " + key);
+				}
+				rule.fields.put(type, getAlternatives(value));
+			}
+		}
+		String account = null;
+		String calendarId = null;
+		NotificationTypes type = null;
+		String time = null;
+		String colorId = null;
+		for (String action : line.substring(arrow + ARROW.length()).split(";")) {
+			if (action.trim().isEmpty()) {
+				continue;
+			}
+			final String key = getKey(action);
+			final String value = getValue(action);
+			if (KEY_CALENDAR.equals(key)) {
+				final int bar = value.indexOf('|');
+				account = bar > 0 ? value.substring(0, bar).trim() : null;
+				calendarId = value.substring(bar + 1).trim();
+				if (calendarId.isEmpty()) {
+					throw new IllegalArgumentException("no calendar in " + value);
+				}
+			} else if (KEY_REMINDER.equals(key)) {
+				final int colon = value.indexOf(':');
+				try {
+					type = NotificationTypes.valueOf((colon < 0 ? value : value.substring(0, colon).trim()).toLowerCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("unknown reminder " + value, e);
+				}
+				if (colon >= 0) {
+					time = value.substring(colon + 1).trim();
+					try {
+						Integer.parseInt(time);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("invalid reminder minutes " + time, e);
+					}
+				}
+			} else if (KEY_COLOR.equals(key)) {
+				colorId = value;
+			} else {
+				throw new IllegalArgumentException("unknown action " + key);
+			}
+		}
+		if (calendarId == null && type == null && colorId == null) {
+			throw new IllegalArgumentException("no action");
+		}
+		rule.route = new Route(account, calendarId, type, time, colorId);
+		return rule;
+	}
+
+	private static String getKey(final String assignment) {
+		final int idx = assignment.indexOf('=');
+		if (idx <= 0) {
+			throw new IllegalArgumentException("expected key=value instead of " + assignment.trim());
+		}
+		return assignment.substring(0, idx).trim().toLowerCase(Locale.ROOT);
+	}
+
+	private static String getValue(final String assignment) {
+		final String value = assignment.substring(assignment.indexOf('=') + 1).trim();
+		if (value.isEmpty()) {
+			throw new IllegalArgumentException("no value for " + assignment.trim());
+		}
+		return value;
+	}
+
+	private static List<String> getAlternatives(final String value) {
+		final List<String> result = new ArrayList<String>();
+		for (String alternative : value.split("\\|")) {
+			if (!alternative.trim().isEmpty()) {
+				result.add(alternative.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+		if (result.isEmpty()) {
+			throw new IllegalArgumentException("no value in " + value);
+		}
+		return result;
+	}
+
+	private static ProgramFieldType getFieldType(final String key) {
+		final String name = key.toUpperCase(Locale.ROOT);
+		final ProgramFieldType type = CalendarAccess.FieldTypes.STR2PFT.get(name);
+		return type != null ? type : CalendarAccess.FieldTypes.STR2PFT.get(name + "_TYPE");
+	}
+
+	/**
+	 * The target calendar, reminder and color chosen by a rule. Properties
+	 * the rule does not set are <code>null</code>, the settings apply then.
+	 */
+	public static final class Route {
+
+		private final String account;
+		private final String calendarId;
+		private final NotificationTypes notificationType;
+		private final String notificationTime;
+		private final String colorId;
+
+		Route(final String anAccount, final String aCalendarId, final NotificationTypes aType, final String aTime, final String aColorId) {
+			account = anAccount;
+			calendarId = aCalendarId;
+			notificationType = aType;
+			notificationTime = aTime;
+			colorId = aColorId;
+		}
+
+		/**
+		 * Returns the account of the calendar to export to.
+		 * @return the name of the account, <code>null</code> for the account of the export target.
+		 */
+		public String getAccount() {
+			return account;
+		}
+
+		/**
+		 * Returns the ID of the calendar to export to.
+		 * @return the calendar ID, may be <code>null</code>.
+		 */
+		public String getCalendarId() {
+			return calendarId;
+		}
+
+		/**
+		 * Returns the type of reminder.
+		 * @return the type of reminder, may be <code>null</code>.
+		 */
+		public NotificationTypes getNotificationType() {
+			return notificationType;
+		}
+
+		/**
+		 * Returns the minutes before the program to remind at.
+		 * @return the minutes as string, may be <code>null</code>.
+		 */
+		public String getNotificationTime() {
+			return notificationTime;
+		}
+
+		/**
+		 * Returns the ID of the event color.
+		 * @return the color ID, may be <code>null</code>.
+		 */
+		public String getColorId() {
+			return colorId;
+		}
+	}
+
+	/**
+	 * A rule as parsed.
+	 */
+	private static class Rule {
+
+		protected List<String> channels;
+		protected List<String> titles;
+		protected List<String> prefixes;
+		protected Pattern pattern;
+		protected final Map<ProgramFieldType, List<String>> fields = new HashMap<ProgramFieldType, List<String>>();
+		protected Route route;
+	}
+
+	/**
+	 * Lookup of the rules satisfied by a value of one property of the program.
+	 */
+	private static class Dimension {
+
+		/** rules without condition on the property */
+		protected final BitSet any = new BitSet();
+		protected final Map<String, BitSet> values = new HashMap<String, BitSet>();
+
+		protected void add(final int rule, final List<String> someValues) {
+			if (someValues == null) {
+				any.set(rule);
+			} else {
+				for (String value : someValues) {
+					put(value, rule);
+				}
+			}
+		}
+
+		protected void put(final String value, final int rule) {
+			BitSet rules = values.get(value);
+			if (rules == null) {
+				rules = new BitSet();
+				values.put(value, rules);
+			}
+			rules.set(rule);
+		}
+
+		protected BitSet match(final String... someValues) {
+			final BitSet result = (BitSet) any.clone();
+			for (String value : someValues) {
+				if (value != null) {
+					or(result, value.toLowerCase(Locale.ROOT));
+				}
+			}
+			return result;
+		}
+
+		protected void or(final BitSet result, final String key) {
+			final BitSet rules = values.get(key);
+			if (rules != null) {
+				result.or(rules);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+package googlecalxplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads and writes the state files of the plugin, e.g. the stored
+ * credentials, consistently across processes such as two TV-Browser
+ * instances on one roaming profile.
+ * <p>
+ * A file is only ever replaced as a whole: the new content is written to
+ * a temporary file, which is then atomically renamed. Readers therefore
+ * see either the old or the new content and need no lock. Updates are
+ * read-modify-write cycles under an exclusive {@link FileLock} on a lock
+ * file next to the state file, so concurrent updates are applied one
+ * after another instead of overwriting each other. The lock file is never
+ * deleted, see {@link #createLockFile(Path)}. Whether a file changed
+ * is told cheaply by its {@link #stamp(Path) stamp}.
+ */
+final class StateFiles {
+
+	/**
+	 * A change of the content of a state file.
+	 */
+	interface Change {
+
+		/**
+		 * Computes the new content of the file.
+		 * @param current the current content, <code>null</code> if the file does not exist.
+		 * @return the new content, or <code>null</code> to leave the file as it is.
+		 * @throws IOException in case of error; the file is left as it is
+		 */
+		byte[] apply(byte[] current) throws IOException;
+
+	}
+
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final int MOVE_ATTEMPTS = 10;
+	private static final long MOVE_PAUSE = 10L;
+	/** file locks are held per process, threads of this process take turns on these */
+	private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<Path, Object>();
+
+	private StateFiles() {
+		// utility class
+	}
+
+	/**
+	 * Reads a state file without locking it.
+	 * @param file the state file, must not be <code>null</code>.
+	 * @return the content, or <code>null</code> if the file does not exist.
+	 * @throws IOException in case of error
+	 */
+	static byte[] read(final Path file) throws IOException {
+		try {
+			return Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a value which changes whenever the file is replaced, e.g.
+	 * by another process. Costs one file system query.
+	 * @param file the state file, must not be <code>null</code>.
+	 * @return the stamp, <code>null</code> if the file does not exist.
+	 * @throws IOException in case of error
+	 */
+	static Object stamp(final Path file) throws IOException {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			// the file key, e.g. the inode, changes with each rename; not all file systems have one
+			return Arrays.asList(attributes.fileKey(), attributes.lastModifiedTime(), Long.valueOf(attributes.size()));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Changes a state file while holding the lock of the file. Blocks while
+	 * another thread or process changes the file.
+	 * @param file the state file, must not be <code>null</code>.
+	 * @param change computes the new content from the current one, must not be <code>null</code>.
+	 * @return the stamp of the file after the change, see {@link #stamp(Path)}.
+	 * @throws IOException in case of error
+	 */
+	static Object update(final Path file, final Change change) throws IOException {
+		final Path lockFile = file.resolveSibling(file.getFileName() + LOCK_SUFFIX);
+		synchronized (MONITORS.computeIfAbsent(lockFile.toAbsolutePath(), path -> new Object())) {
+			createLockFile(lockFile);
+			try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				final FileLock lock = channel.lock();
+				try {
+					final byte[] content = change.apply(read(file));
+					if (content != null) {
+						write(file, content);
+					}
+					return stamp(file);
+				} finally {
+					lock.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the lock file of a state file unless it exists, accessible by
+	 * its owner only like the state file. Lock files are deliberately never
+	 * deleted: a process waiting for the lock of a deleted file would get it
+	 * while another process locks the new file, and both would change the
+	 * state file at once.
+	 * @param lockFile the lock file, must not be <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	private static void createLockFile(final Path lockFile) throws IOException {
+		if (Files.exists(lockFile)) {
+			return;
+		}
+		try {
+			if (POSIX) {
+				Files.createFile(lockFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			} else {
+				Files.createFile(lockFile);
+				setOwnerOnly(lockFile.toFile());
+			}
+		} catch (FileAlreadyExistsException e) {
+			// created by another process meanwhile
+		}
+	}
+
+	/**
+	 * Makes a file or directory accessible by its owner only.
+	 * @param file the file or directory, must not be <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	static void setOwnerOnly(final File file) throws IOException {
+		if (POSIX) {
+			Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString(file.isDirectory() ? "rwx------" : "rw-------"));
+		} else {
+			// best effort on file systems without POSIX attributes
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+			if (file.isDirectory()) {
+				file.setExecutable(false, false);
+				file.setExecutable(true, true);
+			}
+		}
+	}
+
+	private static void write(final Path file, final byte[] content) throws IOException {
+		final Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			setOwnerOnly(temp.toFile());
+			try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.WRITE, StandardOpenOption.SYNC)) {
+				out.write(content);
+			}
+			for (int attempt = 1; ; attempt++) {
+				try {
+					move(temp, file);
+					break;
+				} catch (AccessDeniedException e) {
+					// Windows refuses to replace a file while a reader has it open
+					if (attempt == MOVE_ATTEMPTS) {
+						throw e;
+					}
+					pause();
+				}
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static void move(final Path source, final Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void pause() throws IOException {
+		try {
+			Thread.sleep(MOVE_PAUSE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while replacing a state file");
+		}
+	}
+
+}
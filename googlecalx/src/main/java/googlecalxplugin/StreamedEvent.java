@@ -0,0 +1,289 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.google.api.client.http.HttpContent;
+
+/**
+ * The event of a program as body of an insert request. Unlike an
+ * {@link com.google.api.services.calendar.model.Event}, which is a map
+ * serialized by reflection, the fields of the program are written straight
+ * into the request stream with the streaming generator of Jackson. The
+ * parts which are the same for many programs, i.e. reminders and color,
+ * are serialized once per {@link Template} and copied as raw bytes.
+ * <p>
+ * Created by {@link CalendarAccess#createStreamedEvent(devplugin.Program)}.
+ */
+public final class StreamedEvent implements HttpContent {
+
+	private static final JsonFactory JSON = JsonFactory.builder().disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
+	private static final SerializableString ID = new SerializedString("id");
+	private static final SerializableString SUMMARY = new SerializedString("summary");
+	private static final SerializableString DESCRIPTION = new SerializedString("description");
+	private static final SerializableString START = new SerializedString("start");
+	private static final SerializableString END = new SerializedString("end");
+	private static final SerializableString DATE_TIME = new SerializedString("dateTime");
+	private static final SerializableString EXTENDED_PROPERTIES = new SerializedString("extendedProperties");
+	private static final SerializableString PRIVATE = new SerializedString("private");
+	private static final SerializableString TAG = new SerializedString(CalendarAccess.PROPERTY_TAG);
+	private static final SerializableString PROGRAM = new SerializedString(CalendarAccess.PROPERTY_PROGRAM);
+	private static final SerializableString HASH = new SerializedString(CalendarAccess.PROPERTY_HASH);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	/** 64 bits tell changed content apart well enough */
+	private static final int HASH_BYTES = 8;
+
+	private final String id;
+	private final String programId;
+	private final String summary;
+	private final String description;
+	private final String start;
+	private final String end;
+	private final SerializableString skeleton;
+	private final String hash;
+
+	StreamedEvent(final String anId, final String aProgramId, final String aSummary, final String aDescription, final String aStart, final String anEnd, final SerializableString aSkeleton) {
+		id = anId;
+		programId = aProgramId;
+		summary = aSummary;
+		description = aDescription;
+		start = aStart;
+		end = anEnd;
+		skeleton = aSkeleton;
+		hash = hash(aSummary, aDescription, aSkeleton.getValue());
+	}
+
+	/**
+	 * Returns the ID of the event, see {@link CalendarAccess#getEventId(devplugin.Program)}.
+	 * @return the event ID, may be <code>null</code>.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the summary of the event.
+	 * @return the summary, never <code>null</code>.
+	 */
+	public String getSummary() {
+		return summary;
+	}
+
+	/**
+	 * Returns the hash of the content of the event, see {@link CalendarAccess#getContentHash(devplugin.Program)}.
+	 * @return the hash, never <code>null</code>.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getLength() {
+		return -1L;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getType() {
+		return "application/json; charset=UTF-8";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean retrySupported() {
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+			json.writeStartObject();
+			if (id != null) {
+				json.writeFieldName(ID);
+				json.writeString(id);
+			}
+			json.writeFieldName(SUMMARY);
+			json.writeString(summary);
+			if (description != null) {
+				json.writeFieldName(DESCRIPTION);
+				json.writeString(description);
+			}
+			writeTime(json, START, start);
+			writeTime(json, END, end);
+			if (programId != null) {
+				json.writeFieldName(EXTENDED_PROPERTIES);
+				json.writeStartObject();
+				json.writeFieldName(PRIVATE);
+				json.writeStartObject();
+				json.writeFieldName(TAG);
+				json.writeString(CalendarAccess.TAG_EXPORTED);
+				json.writeFieldName(PROGRAM);
+				json.writeString(programId);
+				json.writeFieldName(HASH);
+				json.writeString(hash);
+				json.writeEndObject();
+				json.writeEndObject();
+			}
+			// starts with a comma, the summary is always written
+			json.writeRaw(skeleton);
+			json.writeEndObject();
+		}
+	}
+
+	/**
+	 * Hashes the given texts into a short hex string.
+	 * @param parts the texts, elements may be <code>null</code>.
+	 * @return the truncated SHA-1 hash of the texts, never <code>null</code>.
+	 */
+	static String hash(final String... parts) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (String part : parts) {
+			if (part != null) {
+				digest.update(part.getBytes(StandardCharsets.UTF_8));
+			}
+			// separates the parts, so a text moving from one part to the next changes the hash
+			digest.update((byte) 0);
+		}
+		final byte[] bytes = digest.digest();
+		final char[] result = new char[2 * HASH_BYTES];
+		for (int i = 0; i < HASH_BYTES; i++) {
+			result[2 * i] = HEX[(bytes[i] >>> 4) & 0xf];
+			result[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(result);
+	}
+
+	private static void writeTime(final JsonGenerator json, final SerializableString name, final String time) throws IOException {
+		json.writeFieldName(name);
+		json.writeStartObject();
+		json.writeFieldName(DATE_TIME);
+		json.writeString(time);
+		json.writeEndObject();
+	}
+
+	/**
+	 * The parts of the events derived from the settings: reminders, color
+	 * and the routing rules choosing them per program. A template is valid
+	 * as long as these settings do not change; the skeleton of each route
+	 * is serialized on first use.
+	 */
+	static final class Template {
+
+		private final NotificationTypes type;
+		private final String time;
+		private final String colorId;
+		private final RoutingRules rules;
+		private final SerializableString defaultSkeleton;
+		private final Map<RoutingRules.Route, SerializableString> skeletons;
+
+		Template(final GoogleCalXSettings settings) {
+			type = settings.getNotificationType();
+			time = settings.getNotificationTime();
+			colorId = settings.getNotificationColor().getId();
+			rules = settings.getRoutingRules();
+			defaultSkeleton = serialize(type, time, colorId, null);
+			skeletons = new ConcurrentHashMap<RoutingRules.Route, SerializableString>();
+		}
+
+		/**
+		 * Indicates whether the template reflects the given settings.
+		 * @param settings the settings, must not be <code>null</code>.
+		 * @return <code>true</code> if the template can be used for the settings.
+		 */
+		boolean isFor(final GoogleCalXSettings settings) {
+			return rules == settings.getRoutingRules()
+				&& type == settings.getNotificationType()
+				&& time.equals(settings.getNotificationTime())
+				&& colorId.equals(settings.getNotificationColor().getId());
+		}
+
+		RoutingRules getRules() {
+			return rules;
+		}
+
+		/**
+		 * Returns the serialized reminders and color for the given route.
+		 * @param route the route of the program, <code>null</code> if no rule matched
+		 * @return the skeleton, starting with a comma; never <code>null</code>.
+		 */
+		SerializableString getSkeleton(final RoutingRules.Route route) {
+			if (route == null) {
+				return defaultSkeleton;
+			}
+			return skeletons.computeIfAbsent(route, r -> serialize(
+				r.getNotificationType() != null ? r.getNotificationType() : type,
+				r.getNotificationTime() != null ? r.getNotificationTime() : time,
+				colorId,
+				r.getColorId()));
+		}
+
+		/**
+		 * Serializes reminders and color as {@link CalendarAccess#createEvent(devplugin.Program)} sets them.
+		 */
+		private static SerializableString serialize(final NotificationTypes type, final String time, final String colorId, final String routedColorId) {
+			final StringWriter out = new StringWriter(128);
+			try (JsonGenerator json = JSON.createGenerator(out)) {
+				String color = null;
+				// written as fields of an object, the braces are dropped below
+				json.writeStartObject();
+				json.writeObjectFieldStart("reminders");
+				if (NotificationTypes.none.equals(type)) {
+					json.writeBooleanField("useDefault", false);
+				} else if (NotificationTypes.defaults.equals(type)) {
+					json.writeBooleanField("useDefault", true);
+				} else {
+					json.writeBooleanField("useDefault", false);
+					json.writeArrayFieldStart("overrides");
+					json.writeStartObject();
+					json.writeStringField("method", type.name());
+					json.writeNumberField("minutes", Integer.parseInt(time));
+					json.writeEndObject();
+					json.writeEndArray();
+					color = colorId;
+				}
+				json.writeEndObject();
+				if (routedColorId != null) {
+					color = routedColorId;
+				}
+				if (color != null) {
+					json.writeStringField("colorId", color);
+				}
+				// restores a deleted event when updated after a conflict
+				json.writeStringField("status", "confirmed");
+				json.writeEndObject();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			final String fields = out.toString();
+			return new SerializedString(',' + fields.substring(1, fields.length() - 1));
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package googlecalxplugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.ZonedDateTime;
+
+import devplugin.Date;
+import devplugin.Program;
+import devplugin.ProgramFieldType;
+
+/**
+ * A programme read from an XMLTV file. It can be turned into a
+ * {@link Program}, so the event is created by {@link CalendarAccess}
+ * exactly as for programs of TV-Browser. The program is a dynamic proxy
+ * answering the bean properties used by templates and event creation;
+ * all other methods return default values.
+ */
+public final class XmltvProgram implements InvocationHandler {
+
+	private final String channelId;
+	private final String channelName;
+	private final ZonedDateTime start;
+	private final int length;
+	private final String title;
+	private final String subTitle;
+	private final String description;
+	private final String category;
+
+	/**
+	 * Creates the programme.
+	 * @param aChannelId the ID of the channel, must not be <code>null</code>.
+	 * @param aChannelName the display name of the channel, must not be <code>null</code>.
+	 * @param aStart the start in the local time zone, must not be <code>null</code>.
+	 * @param aLength the length in minutes, zero if unknown
+	 * @param aTitle the title, must not be <code>null</code>.
+	 * @param aSubTitle the sub-title, may be <code>null</code>.
+	 * @param aDescription the description, may be <code>null</code>.
+	 * @param aCategory the first category, may be <code>null</code>.
+	 */
+	XmltvProgram(final String aChannelId, final String aChannelName, final ZonedDateTime aStart, final int aLength,
+			final String aTitle, final String aSubTitle, final String aDescription, final String aCategory) {
+		channelId = aChannelId;
+		channelName = aChannelName;
+		start = aStart;
+		length = aLength;
+		title = aTitle;
+		subTitle = aSubTitle;
+		description = aDescription;
+		category = aCategory;
+	}
+
+	/**
+	 * Returns the ID of the channel.
+	 * @return the ID of the channel, never <code>null</code>.
+	 */
+	public String getChannelId() {
+		return channelId;
+	}
+
+	/**
+	 * Returns the display name of the channel; the ID if the channel has none.
+	 * @return the display name of the channel, never <code>null</code>.
+	 */
+	public String getChannelName() {
+		return channelName;
+	}
+
+	/**
+	 * Returns the title.
+	 * @return the title, never <code>null</code>.
+	 */
+	public String getTitle() {
+		return title;
+	}
+
+	/**
+	 * Returns the unique ID; channel and start identify a programme, so
+	 * exporting the same guide again updates the events instead of
+	 * duplicating them.
+	 * @return the unique ID, never <code>null</code>.
+	 */
+	public String getUniqueID() {
+		return "xmltv_" + channelId + '_' + start.toLocalDateTime();
+	}
+
+	/**
+	 * Returns the programme as program of TV-Browser.
+	 * @return the program, never <code>null</code>.
+	 */
+	public Program toProgram() {
+		return (Program) Proxy.newProxyInstance(XmltvProgram.class.getClassLoader(), new Class<?>[] { Program.class }, this);
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) {
+		switch (method.getName()) {
+		case "getUniqueID":
+		case "getID":
+			return getUniqueID();
+		case "getTitle":
+			return title;
+		case "getShortInfo":
+			return subTitle;
+		case "getDescription":
+			return description;
+		case "getDate":
+			return new Date(start.getYear(), start.getMonthValue(), start.getDayOfMonth());
+		case "getHours":
+			return Integer.valueOf(start.getHour());
+		case "getMinutes":
+			return Integer.valueOf(start.getMinute());
+		case "getStartTime":
+			return Integer.valueOf(start.getHour() * 60 + start.getMinute());
+		case "getLength":
+			return Integer.valueOf(length);
+		case "getTextField":
+			if (args[0] == ProgramFieldType.GENRE_TYPE) {
+				return category;
+			} else if (args[0] == ProgramFieldType.EPISODE_TYPE) {
+				return subTitle;
+			}
+			return null;
+		case "hashCode":
+			return Integer.valueOf(System.identityHashCode(proxy));
+		case "equals":
+			return Boolean.valueOf(proxy == args[0]);
+		case "toString":
+			return title + " (" + channelName + ", " + start.toLocalDateTime() + ')';
+		default:
+			return defaultValue(method.getReturnType());
+		}
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type == long.class) {
+			return Long.valueOf(0L);
+		} else if (type == short.class) {
+			return Short.valueOf((short) 0);
+		} else if (type == byte.class) {
+			return Byte.valueOf((byte) 0);
+		} else if (type == char.class) {
+			return Character.valueOf((char) 0);
+		} else if (type == float.class) {
+			return Float.valueOf(0f);
+		} else if (type == double.class) {
+			return Double.valueOf(0d);
+		}
+		return null;
+	}
+
+}
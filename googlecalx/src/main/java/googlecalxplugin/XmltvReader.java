@@ -0,0 +1,218 @@
+package googlecalxplugin;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the programmes of an XMLTV file one by one with a streaming
+ * parser. Only the programme being read is held in memory, plus the
+ * display names of the channels, so guides of any size can be read.
+ * Programmes without channel, start or title are skipped.
+ * <p>
+ * Times are converted to the given time zone; times without offset
+ * are taken as UTC, as defined by XMLTV.
+ */
+public class XmltvReader implements Closeable {
+
+	private static final int MIN_TIME_DIGITS = 12;
+
+	private final InputStream input;
+	private final XMLStreamReader reader;
+	private final ZoneId zone;
+	private final Map<String, String> channels;
+	private int skipped;
+
+	/**
+	 * Creates the reader converting times to the default time zone.
+	 * @param in the XMLTV input, must not be <code>null</code>; closed with the reader.
+	 * @throws IOException in case of error
+	 */
+	public XmltvReader(final InputStream in) throws IOException {
+		this(in, ZoneId.systemDefault());
+	}
+
+	/**
+	 * Creates the reader.
+	 * @param in the XMLTV input, must not be <code>null</code>; closed with the reader.
+	 * @param aZone the time zone to convert the times to, must not be <code>null</code>.
+	 * @throws IOException in case of error
+	 */
+	public XmltvReader(final InputStream in, final ZoneId aZone) throws IOException {
+		final XMLInputFactory factory = XMLInputFactory.newFactory();
+		// the DTD of XMLTV declares no entities; never fetch it
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		try {
+			reader = factory.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		input = in;
+		zone = aZone;
+		channels = new HashMap<String, String>();
+	}
+
+	/**
+	 * Reads the next programme.
+	 * @return the next programme, or <code>null</code> at the end of the input.
+	 * @throws IOException in case of error, e.g. if the input is not well-formed
+	 */
+	public XmltvProgram read() throws IOException {
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if ("channel".equals(name)) {
+						readChannel();
+					} else if ("programme".equals(name)) {
+						final XmltvProgram result = readProgramme();
+						if (result != null) {
+							return result;
+						}
+						skipped++;
+					}
+				}
+			}
+			return null;
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Returns the number of programmes skipped so far because of missing
+	 * or malformed channel, start or title.
+	 * @return the number of skipped programmes.
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			input.close();
+		}
+	}
+
+	private void readChannel() throws XMLStreamException {
+		final String id = reader.getAttributeValue(null, "id");
+		String displayName = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			if (displayName == null && "display-name".equals(reader.getLocalName())) {
+				displayName = reader.getElementText().trim();
+			} else {
+				skipElement();
+			}
+		}
+		if (id != null) {
+			channels.put(id, displayName != null ? displayName : id);
+		}
+	}
+
+	private XmltvProgram readProgramme() throws XMLStreamException {
+		final String channel = reader.getAttributeValue(null, "channel");
+		final ZonedDateTime start = parseTime(reader.getAttributeValue(null, "start"));
+		final ZonedDateTime stop = parseTime(reader.getAttributeValue(null, "stop"));
+		String title = null;
+		String subTitle = null;
+		String description = null;
+		String category = null;
+		while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+			switch (reader.getLocalName()) {
+			case "title":
+				title = first(title);
+				break;
+			case "sub-title":
+				subTitle = first(subTitle);
+				break;
+			case "desc":
+				description = first(description);
+				break;
+			case "category":
+				category = first(category);
+				break;
+			default:
+				skipElement();
+			}
+		}
+		if (channel == null || start == null || title == null) {
+			return null;
+		}
+		final int length = stop != null && stop.isAfter(start) ? (int) ChronoUnit.MINUTES.between(start, stop) : 0;
+		return new XmltvProgram(channel, channels.getOrDefault(channel, channel), start, length, title, subTitle, description, category);
+	}
+
+	/**
+	 * Returns the given value if set, otherwise the text of the current
+	 * element; elements may be repeated in several languages.
+	 */
+	private String first(final String value) throws XMLStreamException {
+		final String text = reader.getElementText();
+		return value != null ? value : text.trim();
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Parses an XMLTV time such as <code>20260101201500 +0100</code>;
+	 * seconds and offset are optional.
+	 * @return the time in the time zone of the reader, or <code>null</code> if the value is missing or malformed.
+	 */
+	private ZonedDateTime parseTime(final String value) {
+		if (value == null) {
+			return null;
+		}
+		final String text = value.trim();
+		int digits = 0;
+		while (digits < text.length() && Character.isDigit(text.charAt(digits))) {
+			digits++;
+		}
+		if (digits < MIN_TIME_DIGITS) {
+			return null;
+		}
+		try {
+			final LocalDateTime local = LocalDateTime.of(
+				number(text, 0, 4), number(text, 4, 6), number(text, 6, 8),
+				number(text, 8, 10), number(text, 10, 12), digits >= 14 ? number(text, 12, 14) : 0);
+			final String offset = text.substring(digits).trim();
+			return local.atOffset(offset.isEmpty() ? ZoneOffset.UTC : ZoneOffset.of(offset)).atZoneSameInstant(zone);
+		} catch (DateTimeException e) {
+			return null;
+		}
+	}
+
+	private static int number(final String text, final int start, final int end) {
+		return Integer.parseInt(text.substring(start, end));
+	}
+
+}
@@ -0,0 +1,155 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests the pipeline of {@link BulkExporter} against a local stand-in of the Calendar API.
+ */
+public class BulkExporterTest {
+
+	private static final Date DATE = new Date(2026, 1, 1);
+	private static final int CONCURRENCY = 4;
+
+	@TempDir
+	File directory;
+
+	@Test
+	public void cancelledExportsSkipTheRemainingPrograms() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final Program[] programs = SyntheticPrograms.create(1000, DATE);
+		final BulkExporter exporter = new BulkExporter(access);
+		final AtomicInteger reported = new AtomicInteger();
+		final BulkExporter.Result result = exporter.export(programs, (program, done, total, exported) -> {
+			reported.incrementAndGet();
+			if (done == 10) {
+				exporter.cancel();
+			}
+		});
+		assertTrue(exporter.isCancelled());
+		assertEquals(programs.length, result.getExported() + result.getSkipped() + result.getFailures().size());
+		assertEquals(result.getExported(), api.getInserts());
+		// the producers stopped taking programs, only the ones taken were reported
+		assertTrue(reported.get() < 100, () -> reported.get() + " programs reported");
+		assertTrue(result.getSkipped() > 900, () -> result.getSkipped() + " programs skipped");
+	}
+
+	@Test
+	public void conflictsNeedOneFreeBusyQuery() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final GoogleCalXSettings settings = createSettings();
+		// programs routed to another calendar are checked in the same query
+		settings.setRoutingRules(RoutingRules.compile("title=Program 1* -> calendar=other@example.com"));
+		final CalendarAccess access = createAccess(settings, api);
+		// 30 days of programs, every tenth one collides with an appointment
+		final Program[] programs = SyntheticPrograms.create(48 * 30, DATE);
+		for (int i = 0; i < programs.length; i += 10) {
+			final long start = access.getStartTime(programs[i]);
+			api.addBusy(start + 60_000L, start + 120_000L);
+		}
+		final BulkExporter exporter = new BulkExporter(access);
+		exporter.setConflictPolicy(ConflictPolicy.skip);
+		final BulkExporter.Result result = exporter.export(programs, (program, done, total, exported) -> { });
+		assertEquals(1, api.getFreeBusyRequests());
+		assertEquals(programs.length / 10, result.getConflicts().size());
+		assertEquals(programs.length - programs.length / 10, api.getInserts());
+	}
+
+	@Test
+	public void outageFailsFast() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 5L, 0L, 0, 0);
+		api.setDown(true);
+		final CalendarAccess access = createAccess(api);
+		final CircuitBreaker breaker = new CircuitBreaker(CircuitBreaker.DEFAULT_THRESHOLD, 200L);
+		access.getScheduler().setCircuitBreaker(breaker);
+		final int programs = 500;
+		final BulkExporter.Result result = new BulkExporter(access).export(
+				SyntheticPrograms.create(programs, DATE), (program, done, total, exported) -> { });
+		int failedFast = 0;
+		for (Exception failure : result.getFailures().values()) {
+			if (failure instanceof CircuitBreaker.OpenException) {
+				failedFast++;
+			}
+		}
+		assertEquals(programs, result.getFailures().size());
+		// requests already admitted when the circuit opens still reach the server; the limit only shrinks meanwhile
+		assertTrue(api.getRefused() <= CircuitBreaker.DEFAULT_THRESHOLD + CONCURRENCY, () -> api.getRefused() + " requests were sent");
+		assertEquals(programs - api.getRefused(), failedFast);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+		api.setDown(false);
+		Thread.sleep(250L);
+		access.addEvent(access.createEvent(SyntheticPrograms.createProgram(999, DATE)));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void exportStepsAreRecorded() throws IOException {
+		final CalendarAccess access = createAccess(new FakeCalendarApi(1, 0L, 0L, 0, 0));
+		final BulkExporter exporter = new BulkExporter(access);
+		final Path file = directory.toPath().resolve("export.jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(ExportEvents.TemplateResolution.class).withoutThreshold();
+			recording.enable(ExportEvents.EventConstruction.class).withoutThreshold();
+			recording.enable(ExportEvents.HttpExecute.class).withoutThreshold();
+			recording.start();
+			exporter.export(SyntheticPrograms.create(10, DATE), (program, done, total, exported) -> { });
+			recording.stop();
+			recording.dump(file);
+		}
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+			assertEquals(exporter.getBatchId(), event.getLong("batchId"));
+			assertEquals("someone@example.com", event.getString("calendarId"));
+			assertTrue(event.getString("programId").startsWith("synthetic_"));
+			if ("googlecalx.HttpExecute".equals(event.getEventType().getName())) {
+				assertEquals(200, event.getInt("status"));
+				assertTrue(event.getLong("bytesSent") > 0L && event.getLong("bytesReceived") > 0L);
+			}
+			counts.merge(event.getEventType().getName(), Integer.valueOf(1), (a, b) -> Integer.valueOf(a.intValue() + b.intValue()));
+		}
+		assertEquals(Integer.valueOf(20), counts.get("googlecalx.TemplateResolution"));
+		assertEquals(Integer.valueOf(10), counts.get("googlecalx.EventConstruction"));
+		assertEquals(Integer.valueOf(10), counts.get("googlecalx.HttpExecute"));
+	}
+
+	private CalendarAccess createAccess(final FakeCalendarApi api) throws IOException {
+		return createAccess(createSettings(), api);
+	}
+
+	private CalendarAccess createAccess(final GoogleCalXSettings settings, final FakeCalendarApi api) throws IOException {
+		final CalendarAccess access = new CalendarAccess(settings, directory.getAbsolutePath(), null, api, request -> { });
+		final RequestScheduler scheduler = new RequestScheduler(CONCURRENCY, 1000d);
+		scheduler.setBackOff(1L);
+		access.setScheduler(scheduler);
+		return access;
+	}
+
+	private static GoogleCalXSettings createSettings() {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		return settings;
+	}
+
+}
@@ -0,0 +1,63 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.api.client.util.store.DataStore;
+
+/**
+ * Tests the data stores of {@link CachedDataStoreFactory} shared by processes.
+ */
+public class CachedDataStoreFactoryTest {
+
+	@TempDir
+	File directory;
+
+	@Test
+	public void storeKeepsChangesOfOtherProcesses() throws Exception {
+		// two factories stand for two processes sharing the directory
+		final CachedDataStoreFactory first = new CachedDataStoreFactory(directory, 0L);
+		final CachedDataStoreFactory second = new CachedDataStoreFactory(directory, 0L);
+		final DataStore<String> one = first.getDataStore("state");
+		final DataStore<String> other = second.getDataStore("state");
+		final int keys = 200;
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<?>> writes = new ArrayList<Future<?>>();
+			for (int i = 0; i < keys; i++) {
+				final int key = i;
+				writes.add(pool.submit(() -> {
+					(key % 2 == 0 ? one : other).set("key" + key, "value" + key);
+					(key % 2 == 0 ? first : second).flush();
+					return null;
+				}));
+			}
+			for (Future<?> write : writes) {
+				write.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		final DataStore<String> reader = new CachedDataStoreFactory(directory, 0L).getDataStore("state");
+		assertEquals(keys, reader.size());
+		assertEquals("value7", reader.get("key7"));
+
+		// changes of the other process become visible on a later read
+		other.delete("key0");
+		second.flush();
+		Thread.sleep(1100L);
+		assertEquals(null, one.get("key0"));
+		assertEquals("value1", one.get("key1"));
+		assertEquals(keys - 1, one.size());
+	}
+
+}
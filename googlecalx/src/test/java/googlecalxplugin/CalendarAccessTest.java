@@ -0,0 +1,251 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Date;
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Tests the requests of {@link CalendarAccess} against the in-process
+ * {@link FakeCalendarApi}.
+ */
+public class CalendarAccessTest {
+
+	private static final String CALENDAR = "someone@example.com";
+	private static final Date DATE = new Date(2026, 1, 1);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void calendarListIsPaged() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1000, 0L, 0L, 0, 0);
+		final List<CalendarTarget> targets = createAccess(api).getCalendarTargets();
+		assertEquals(1000, targets.size());
+		assertEquals("cal999@group.calendar.google.com", targets.get(999).getId());
+		assertEquals(4, api.getListRequests());
+		// pages are handed out as they arrive
+		final List<Integer> pages = new ArrayList<Integer>();
+		createAccess(api).getCalendarTargets(page -> pages.add(Integer.valueOf(page.size())));
+		assertEquals(Arrays.asList(Integer.valueOf(250), Integer.valueOf(250), Integer.valueOf(250), Integer.valueOf(250)), pages);
+	}
+
+	@Test
+	public void clientIsSharedAcrossThreads() throws Exception {
+		final CalendarAccess access = createAccess(new FakeCalendarApi(1, 0L, 0L, 0, 0));
+		final int threads = 32;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Future<Calendar>> clients = new ArrayList<Future<Calendar>>(threads);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < threads; i++) {
+				clients.add(executor.submit(() -> {
+					start.await();
+					return access.getCalendar();
+				}));
+			}
+			start.countDown();
+			final Set<Calendar> distinct = Collections.newSetFromMap(new IdentityHashMap<Calendar, Boolean>());
+			for (Future<Calendar> client : clients) {
+				distinct.add(client.get());
+			}
+			assertEquals(1, distinct.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void errorsSurfaceAsExceptions() throws IOException {
+		final GoogleJsonResponseException rateLimit = assertThrows(GoogleJsonResponseException.class,
+				() -> createAccess(new FakeCalendarApi(10, 0L, 0L, 1, 0)).getCalendarTargets());
+		assertEquals(429, rateLimit.getStatusCode());
+		final GoogleJsonResponseException serverError = assertThrows(GoogleJsonResponseException.class,
+				() -> createAccess(new FakeCalendarApi(10, 0L, 0L, 0, 1)).getCalendarColors());
+		assertEquals(503, serverError.getStatusCode());
+	}
+
+	@Test
+	public void requestsUseTheTimeoutsOfTheSettings() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final GoogleCalXSettings settings = createSettings();
+		final CalendarAccess access = createAccess(settings, api);
+		settings.setConnectTimeout(3);
+		settings.setReadTimeout(7);
+		access.addEvent(access.createEvent(SyntheticPrograms.createProgram(0, DATE)));
+		assertEquals(3000, api.getConnectTimeout());
+		assertEquals(7000, api.getReadTimeout());
+	}
+
+	@Test
+	public void eventsAreFoundById() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final Program[] programs = SyntheticPrograms.create(60, DATE);
+		new BulkExporter(access).export(programs, (program, done, total, exported) -> { });
+		// exporting again updates the existing event
+		access.addEvent(access.createEvent(programs[0]));
+		assertEquals(1, api.getUpdates());
+		// one program was never exported, which counts as deleted
+		final List<Program> unmarked = new ArrayList<Program>(Arrays.asList(programs));
+		unmarked.add(SyntheticPrograms.createProgram(60, DATE));
+		assertTrue(access.deleteEvents(unmarked, Lane.INTERACTIVE).isEmpty());
+		assertEquals(60, api.getDeletes());
+		assertEquals(2, api.getBatchRequests());
+	}
+
+	@Test
+	public void exportedProgramsAreFoundByTag() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final Program[] programs = SyntheticPrograms.create(3000, DATE);
+		final List<Event> events = new ArrayList<Event>(programs.length);
+		final Set<String> expected = new HashSet<String>();
+		for (Program program : programs) {
+			events.add(access.createEvent(program));
+			expected.add(program.getUniqueID());
+		}
+		assertEquals("synthetic_0", events.get(0).getExtendedProperties().getPrivate().get(CalendarAccess.PROPERTY_PROGRAM));
+		assertTrue(access.addEvents(CALENDAR, events, Lane.BULK).isEmpty());
+
+		final List<String> found = new ArrayList<String>();
+		access.getExportedPrograms(CALENDAR, 0L, System.currentTimeMillis() + CalendarMirror.FUTURE, Lane.BACKGROUND, found::addAll);
+		assertEquals(expected, new HashSet<String>(found));
+		assertEquals(programs.length, found.size());
+		// 2500 events per page
+		assertEquals(2, api.getEventListRequests());
+	}
+
+	@Test
+	public void rulesShapeTheEvents() throws IOException {
+		final GoogleCalXSettings settings = createSettings();
+		settings.setRoutingRules(RoutingRules.compile("title=Program 15 -> calendar=cal5@group.calendar.google.com; reminder=popup:15\n"
+			+ "title=program 9* -> color=7\n"
+			+ "-> reminder=none\n"));
+		final CalendarAccess access = createAccess(settings, new FakeCalendarApi(1, 0L, 0L, 0, 0));
+		final Program[] programs = SyntheticPrograms.create(1000, DATE);
+		assertEquals("cal5@group.calendar.google.com", access.getTargetCalendarId(programs[15]));
+		final Event routed = access.createEvent(programs[15]);
+		assertEquals(Integer.valueOf(15), routed.getReminders().getOverrides().get(0).getMinutes());
+		assertEquals("popup", routed.getReminders().getOverrides().get(0).getMethod());
+		assertEquals("7", access.createEvent(programs[950]).getColorId());
+		assertEquals(CALENDAR, access.getTargetCalendarId(programs[950]));
+		assertEquals(Boolean.FALSE, access.createEvent(programs[300]).getReminders().getUseDefault());
+	}
+
+	@Test
+	public void streamedEventsMatchGenericEvents() throws IOException {
+		final GoogleCalXSettings settings = createSettings();
+		settings.setNotificationType(NotificationTypes.popup);
+		settings.setRoutingRules(RoutingRules.compile("title=Program 1 -> reminder=none; color=3"));
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(settings, api);
+		@SuppressWarnings("deprecation")
+		final JsonFactory json = JacksonFactory.getDefaultInstance();
+		final Program[] programs = SyntheticPrograms.create(10, DATE);
+		for (int i = 0; i < 3; i++) {
+			final Event generic = access.createEvent(programs[i]).setStatus("confirmed");
+			final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+			access.createStreamedEvent(programs[i]).writeTo(streamed);
+			assertEquals(json.fromString(json.toString(generic), HashMap.class), json.fromString(streamed.toString("UTF-8"), HashMap.class));
+		}
+
+		final Event inserted = access.addEvent(CALENDAR, access.createStreamedEvent(programs[5]), Lane.INTERACTIVE);
+		assertEquals(1, api.getInserts());
+		assertTrue(inserted.getId() != null);
+		// exported again: updated in place
+		access.addEvent(CALENDAR, access.createStreamedEvent(programs[5]), Lane.INTERACTIVE);
+		assertEquals(1, api.getUpdates());
+
+		// the body is gzipped like the ones of the client's own requests
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		access.createStreamedEvent(programs[6]).writeTo(plain);
+		final int inserts = api.getInserts();
+		access.getMeter().reset();
+		access.addEvent(CALENDAR, access.createStreamedEvent(programs[6]), Lane.INTERACTIVE);
+		assertEquals(inserts + 1, api.getInserts());
+		assertTrue(access.getMeter().getBytesSent() < plain.size(), "streamed events should be sent gzipped");
+	}
+
+	@Test
+	public void asyncCallsCanBeCancelled() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(10, 50L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		// one request at a time, so the second request waits for the first
+		access.setScheduler(new RequestScheduler(1, 1e6));
+		final Program[] programs = SyntheticPrograms.create(3, DATE);
+		final CompletableFuture<Event> first = access.addEventAsync(access.createEvent(programs[0]));
+		final CompletableFuture<Event> second = access.addEventAsync(access.createEvent(programs[1]));
+		assertTrue(second.cancel(true));
+		assertTrue(first.get().getId() != null);
+		assertThrows(CancellationException.class, second::get);
+		assertEquals(1, api.getInserts());
+
+		final CompletableFuture<Event> third = access.addEventAsync(access.createEvent(programs[2])).orTimeout(10L, TimeUnit.MILLISECONDS);
+		final ExecutionException timeout = assertThrows(ExecutionException.class, third::get);
+		assertTrue(timeout.getCause() instanceof TimeoutException, () -> "unexpected " + timeout.getCause());
+
+		// compose without blocking a thread per step
+		assertEquals(Integer.valueOf(10), access.getCalendarTargetsAsync().thenApply(List::size).get(5L, TimeUnit.SECONDS));
+		// the pages are received before the future completes
+		final List<CalendarTarget> targets = new CopyOnWriteArrayList<CalendarTarget>();
+		access.getCalendarTargetsAsync(targets::addAll).get(5L, TimeUnit.SECONDS);
+		assertEquals(10, targets.size());
+	}
+
+	private CalendarAccess createAccess(final FakeCalendarApi api) throws IOException {
+		return createAccess(createSettings(), api);
+	}
+
+	private CalendarAccess createAccess(final GoogleCalXSettings settings, final FakeCalendarApi api) throws IOException {
+		final CalendarAccess access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		final RequestScheduler scheduler = new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6);
+		scheduler.setBackOff(1L);
+		access.setScheduler(scheduler);
+		return access;
+	}
+
+	private static GoogleCalXSettings createSettings() {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId(CALENDAR);
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		return settings;
+	}
+
+}
@@ -0,0 +1,85 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests the accessors handed out by {@link CalendarAccounts}.
+ */
+public class CalendarAccountsTest {
+
+	private static final Date DATE = new Date(2026, 1, 1);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void accountsAreIndependent() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(3, 0L, 0L, 0, 0);
+		final CalendarAccounts accounts = createAccounts(createSettings(), api);
+		final CalendarAccess home = accounts.get("home");
+		final CalendarAccess work = accounts.get("work");
+		assertSame(home, accounts.get(new CalendarTarget("id", "label", "home")));
+		assertSame(accounts.get(CalendarAccounts.DEFAULT_ACCOUNT), accounts.get((String) null));
+		assertNotSame(home.getCalendar(), work.getCalendar());
+		assertNotSame(home.getScheduler(), work.getScheduler());
+		assertSame(home.getMeter(), work.getMeter());
+		assertEquals("work", work.getCalendarTargets().get(0).getAccount());
+	}
+
+	@Test
+	public void rulesRouteToTheCalendarsOfAnotherAccount() throws IOException {
+		final GoogleCalXSettings settings = createSettings();
+		settings.setCalendarTarget(new CalendarTarget("home@example.com", "Home", "home"));
+		settings.setRoutingRules(RoutingRules.compile("title=Program 1* -> calendar=work|work@example.com"));
+		final CalendarAccounts accounts = createAccounts(settings, new FakeCalendarApi(1, 0L, 0L, 0, 0));
+		final CalendarAccess home = accounts.getTarget();
+		final CalendarAccess work = accounts.get("work");
+		assertEquals("home", home.getAccount());
+		assertEquals(Arrays.asList(home, work), new ArrayList<CalendarAccess>(accounts.getTargets()));
+		assertEquals(Collections.singleton("home@example.com"), home.getTargetCalendarIds());
+		assertEquals(Collections.singleton("work@example.com"), work.getTargetCalendarIds());
+		assertEquals(new CalendarTarget("work@example.com", "", "work"), home.getTarget(SyntheticPrograms.createProgram(1, DATE)));
+		assertEquals(new CalendarTarget("home@example.com", "", "home"), home.getTarget(SyntheticPrograms.createProgram(2, DATE)));
+
+		final Program[] programs = SyntheticPrograms.create(20, DATE);
+		final Set<String> used = Collections.synchronizedSet(new HashSet<String>());
+		final BulkExporter.Result result = new BulkExporter(home, account -> {
+			used.add(account);
+			return accounts.get(account);
+		}).export(programs, (program, done, total, exported) -> { });
+		assertTrue(result.getFailures().isEmpty());
+		assertEquals(programs.length, result.getExported());
+		assertEquals(new HashSet<String>(Arrays.asList("home", "work")), used);
+	}
+
+	private CalendarAccounts createAccounts(final GoogleCalXSettings settings, final FakeCalendarApi api) throws IOException {
+		return new CalendarAccounts(settings, directory.toString(), null, api, request -> { });
+	}
+
+	private static GoogleCalXSettings createSettings() {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		return settings;
+	}
+
+}
@@ -0,0 +1,368 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.calendar.Calendar;
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Date;
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Load test of the calendar access, of the bulk export and of
+ * <code>receivePrograms</code> up to the marking of the exported programs,
+ * against the in-process {@link FakeCalendarApi}. The behavior measured here
+ * is tested by the unit tests of each class.
+ * Run with <code>mvn -Pperf test</code>; the number of programs can be set
+ * with <code>-Dgooglecalx.programs=...</code>.
+ */
+public class CalendarLoadBenchmark {
+
+	private static final int PROGRAMS = Integer.getInteger("googlecalx.programs", 10000).intValue();
+	private static final int DUPLICATES = PROGRAMS / 10;
+	private static final int CONCURRENCY = 8;
+
+	private static File directory;
+
+	@BeforeAll
+	public static void setUp() throws IOException {
+		directory = Files.createTempDirectory("googlecalx").toFile();
+	}
+
+	@Test
+	public void pagesArePrefetched() throws Exception {
+		final long latency = 40L;
+		final FakeCalendarApi api = new FakeCalendarApi(1000, latency, 0L, 0, 0);
+		final TimedCalendarAccess access = createAccess(api);
+		// stopping early costs at most the page fetched ahead
+		try (PagedIterator<CalendarTarget> targets = access.iterateCalendarTargets()) {
+			assertEquals("cal0@group.calendar.google.com", targets.next().getId());
+		}
+		assertTrue(api.getListRequests() <= 2, () -> api.getListRequests() + " pages requested");
+		try (Stream<CalendarTarget> targets = access.iterateCalendarTargets().stream()) {
+			assertEquals(1000L, targets.count());
+		}
+
+		// consuming a page takes as long as requesting one; the next page is requested meanwhile
+		final AtomicInteger count = new AtomicInteger();
+		final long start = System.nanoTime();
+		access.getCalendarTargets(page -> {
+			count.addAndGet(page.size());
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		final long elapsed = (System.nanoTime() - start) / 1_000_000L;
+		System.out.printf("prefetch:    4 pages in %d ms, %d ms one after another%n", Long.valueOf(elapsed), Long.valueOf(8 * latency));
+		assertEquals(1000, count.get());
+		assertTrue(elapsed < 7 * latency, () -> "4 pages took " + elapsed + " ms");
+	}
+
+	@Test
+	public void bulkExport() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 2L, 3L, 97, 89);
+		final TimedCalendarAccess access = createAccess(api);
+		final Program[] unique = SyntheticPrograms.create(PROGRAMS, new Date(2026, 1, 1));
+		final Program[] programs = Arrays.copyOf(unique, PROGRAMS + DUPLICATES);
+		System.arraycopy(unique, 0, programs, PROGRAMS, DUPLICATES);
+
+		final AtomicInteger processed = new AtomicInteger();
+		final long start = System.nanoTime();
+		final BulkExporter.Result result = new BulkExporter(access).export(
+				programs,
+				(program, done, total, exported) -> processed.incrementAndGet());
+		final long elapsed = System.nanoTime() - start;
+
+		final Map<Program, Exception> failures = result.getFailures();
+		final long[] latencies = access.latencies();
+		Arrays.sort(latencies);
+		System.out.printf("programs:    %d (+%d duplicates), %d parallel requests%n", Integer.valueOf(PROGRAMS), Integer.valueOf(DUPLICATES), Integer.valueOf(CONCURRENCY));
+		System.out.printf("throughput:  %.1f programs/s (%.1f s)%n", Double.valueOf(PROGRAMS * 1e9 / elapsed), Double.valueOf(elapsed / 1e9));
+		System.out.printf("latency:     p50 %.2f ms, p99 %.2f ms, max %.2f ms%n", Double.valueOf(percentile(latencies, 50)), Double.valueOf(percentile(latencies, 99)), Double.valueOf(percentile(latencies, 100)));
+		System.out.printf("exported:    %d, failed: %d (retried 429: %d, 503: %d)%n", Integer.valueOf(result.getExported()), Integer.valueOf(failures.size()), Integer.valueOf(api.getRateLimited()), Integer.valueOf(api.getServerErrors()));
+		System.out.printf("meter:       %s%n", access.getMeter());
+		System.out.printf("limit:       %d requests in flight%n", Integer.valueOf(access.getScheduler().getConcurrencyLimit()));
+
+		assertEquals(PROGRAMS, result.getTotal());
+		assertEquals(DUPLICATES, result.getDuplicates());
+		assertEquals(PROGRAMS, processed.get());
+		// throttled and failed requests are sent again, no program is lost
+		assertTrue(api.getRateLimited() > 0 && api.getServerErrors() > 0);
+		assertTrue(failures.isEmpty(), () -> failures.size() + " programs failed");
+		assertEquals(PROGRAMS, result.getExported());
+	}
+
+	@Test
+	public void receivedProgramsAreExportedAndMarked() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 2L, 0L, 0, 0);
+		final ExportingPlugin plugin = new ExportingPlugin(createSettings(), directory.getAbsolutePath(), api, 0);
+		try {
+			final RequestScheduler scheduler = new RequestScheduler(CONCURRENCY, 1e6);
+			scheduler.setBackOff(1L);
+			plugin.getCalendarAccess().setScheduler(scheduler);
+			final Program[] unique = SyntheticPrograms.create(PROGRAMS, new Date(2026, 1, 1));
+			final Program[] programs = Arrays.copyOf(unique, PROGRAMS + DUPLICATES);
+			System.arraycopy(unique, 0, programs, PROGRAMS, DUPLICATES);
+
+			// from receiving the programs until the last one is marked on the event dispatch thread
+			final long start = System.nanoTime();
+			assertTrue(plugin.export(programs));
+			assertTrue(plugin.await(PROGRAMS, 600_000L), "export did not finish");
+			final long elapsed = System.nanoTime() - start;
+			System.out.printf("received:    %.1f programs/s exported and marked (%.1f s)%n", Double.valueOf(PROGRAMS * 1e9 / elapsed), Double.valueOf(elapsed / 1e9));
+
+			assertEquals(PROGRAMS, plugin.getMarked().size());
+			assertEquals(0, plugin.getMarkedOffEdt());
+			assertEquals(PROGRAMS, plugin.getMaximum());
+			assertEquals(PROGRAMS, plugin.getProgress());
+			assertEquals(PROGRAMS, api.getInserts());
+		} finally {
+			plugin.onDeactivation();
+		}
+	}
+
+	@Test
+	public void mirrorAnswersConflictsLocally() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final TimedCalendarAccess access = createAccess(api);
+		final Date tomorrow = Date.getCurrentDate().addDays(1);
+		final long base = access.getStartTime(SyntheticPrograms.createProgram(0, tomorrow));
+		// a one minute appointment every ten minutes for about three weeks, more than one page
+		final int appointments = 3000;
+		for (int i = 0; i < appointments; i++) {
+			api.addBusy(base + i * 600_000L, base + i * 600_000L + 60_000L);
+		}
+		final CalendarMirror mirror = new CalendarMirror(() -> access, CalendarMirror.DEFAULT_INTERVAL);
+		assertTrue(mirror.load());
+
+		// programs start every 30 minutes and last 25 minutes
+		final Program[] programs = SyntheticPrograms.create(1200, tomorrow);
+		final int rounds = 100;
+		int conflicting = 0;
+		final long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (Program program : programs) {
+				if (!mirror.getConflicts(program).isEmpty()) {
+					conflicting++;
+				}
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		System.out.printf("mirror:      %d events, %.2f us per lookup%n",
+				Integer.valueOf(mirror.size()), Double.valueOf(elapsed / 1e3 / (rounds * programs.length)));
+		assertEquals(rounds * appointments / 3, conflicting);
+		// the lookups did not go to the server
+		assertEquals(2, api.getEventListRequests());
+	}
+
+	@Test
+	public void concurrencyAdaptsToRateLimits() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 5L, 0L, 0, 0);
+		// the server serves three requests at a time, the exporter would send eight
+		api.setMaxInFlight(3);
+		final TimedCalendarAccess access = createAccess(api);
+		final int programs = 1000;
+		final long start = System.nanoTime();
+		final BulkExporter.Result result = new BulkExporter(access).export(
+				SyntheticPrograms.create(programs, new Date(2026, 1, 1)), (program, done, total, exported) -> { });
+		final long elapsed = System.nanoTime() - start;
+		final int limit = access.getScheduler().getConcurrencyLimit();
+		System.out.printf("adaptive:    limit %d, %d of %d rate limited, %.1f programs/s%n",
+				Integer.valueOf(limit), Integer.valueOf(api.getRateLimited()), Integer.valueOf(programs), Double.valueOf(programs * 1e9 / elapsed));
+		assertTrue(limit <= 4, () -> "limit " + limit + " exceeds what the server sustains");
+		assertTrue(api.getRateLimited() < programs / 10, () -> api.getRateLimited() + " requests were rate limited");
+		assertEquals(programs, result.getExported() + result.getFailures().size());
+	}
+
+	@Test
+	public void routingRulesPerProgram() throws IOException {
+		final StringBuilder text = new StringBuilder("# rules per program\n");
+		for (int i = 0; i < 200; i++) {
+			// never evaluated, the programs have no channel
+			text.append("channel=ch").append(i).append("; title=~^Program ").append(i).append("$ -> color=1\n");
+		}
+		for (int i = 0; i < 200; i++) {
+			text.append("title=Program ").append(i).append(" -> calendar=cal").append(i % 10).append("@group.calendar.google.com; reminder=popup:").append(i).append('\n');
+		}
+		text.append("title=program 9* -> color=7\n");
+		text.append("-> reminder=none\n");
+		final RoutingRules rules = RoutingRules.compile(text.toString());
+		final GoogleCalXSettings settings = createSettings();
+		settings.setRoutingRules(rules);
+
+		final Program[] programs = SyntheticPrograms.create(PROGRAMS, new Date(2026, 1, 1));
+		int routedCount = 0;
+		final long start = System.nanoTime();
+		for (Program program : programs) {
+			if (settings.getRoutingRules().route(program).getCalendarId() != null) {
+				routedCount++;
+			}
+		}
+		final long elapsed = System.nanoTime() - start;
+		System.out.printf("routing:     %d rules, %.0f ns per program%n", Integer.valueOf(rules.size()), Double.valueOf((double) elapsed / programs.length));
+		assertEquals(Math.min(200, PROGRAMS), routedCount);
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void streamedEventsAllocateLess() throws IOException {
+		final GoogleCalXSettings settings = createSettings();
+		settings.setNotificationType(NotificationTypes.popup);
+		settings.setRoutingRules(RoutingRules.compile("title=Program 1 -> reminder=none; color=3"));
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = new TimedCalendarAccess(settings, api);
+		final JsonFactory json = JacksonFactory.getDefaultInstance();
+		final Program[] programs = SyntheticPrograms.create(PROGRAMS, new Date(2026, 1, 1));
+
+		// compare allocation and time per event, including template resolution
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		final OutputStream sink = OutputStream.nullOutputStream();
+		final long[] generic = new long[2];
+		final long[] streamed = new long[2];
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up
+			long bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+			for (Program program : programs) {
+				new JsonHttpContent(json, access.createEvent(program)).writeTo(sink);
+			}
+			generic[0] = System.nanoTime() - start;
+			generic[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+			bytes = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			start = System.nanoTime();
+			for (Program program : programs) {
+				access.createStreamedEvent(program).writeTo(sink);
+			}
+			streamed[0] = System.nanoTime() - start;
+			streamed[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytes;
+		}
+		System.out.printf("serialize:   generic %.1f us, %d bytes; streamed %.1f us, %d bytes per event%n",
+			Double.valueOf(generic[0] / 1e3 / PROGRAMS), Long.valueOf(generic[1] / PROGRAMS),
+			Double.valueOf(streamed[0] / 1e3 / PROGRAMS), Long.valueOf(streamed[1] / PROGRAMS));
+		assertTrue(streamed[1] < generic[1], "streamed events should allocate less");
+
+		// the body is gzipped like the ones of the client's own requests
+		final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		access.createStreamedEvent(programs[6]).writeTo(plain);
+		access.getMeter().reset();
+		access.addEvent("someone@example.com", access.createStreamedEvent(programs[6]), Lane.INTERACTIVE);
+		System.out.printf("streamed:    %d bytes sent for %d bytes of event%n", Long.valueOf(access.getMeter().getBytesSent()), Integer.valueOf(plain.size()));
+	}
+
+	@Test
+	public void interactiveJumpsAheadOfBulk() throws Exception {
+		final long latency = 20L;
+		final FakeCalendarApi api = new FakeCalendarApi(1, latency, 0L, 0, 0);
+		final TimedCalendarAccess access = createAccess(api);
+		// a budget of 100 requests per second lets 300 programs take three seconds
+		access.setScheduler(new RequestScheduler(4, 100d));
+		final BulkExporter exporter = new BulkExporter(access);
+		final Thread bulk = new Thread(() -> {
+			try {
+				exporter.export(SyntheticPrograms.create(300, new Date(2026, 1, 1)), (program, done, total, exported) -> { });
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		bulk.start();
+		Thread.sleep(500L);
+		// the first request of this thread pays for class loading and compilation, competing with the bulk threads
+		access.addEvent(access.createEvent(SyntheticPrograms.createProgram(999, new Date(2026, 1, 1))));
+		final Event event = access.createEvent(SyntheticPrograms.createProgram(1000, new Date(2026, 1, 1)));
+		final long start = System.nanoTime();
+		access.addEvent(event);
+		final long elapsed = (System.nanoTime() - start) / 1_000_000L;
+		final int waitingBulk = access.getScheduler().getWaiting(Lane.BULK);
+		exporter.cancel();
+		bulk.join();
+		System.out.printf("interactive: %d ms with %d bulk requests waiting (round trip %d ms)%n", Long.valueOf(elapsed), Integer.valueOf(waitingBulk), Long.valueOf(latency));
+		assertTrue(waitingBulk > 0, "bulk requests should be waiting");
+		assertTrue(elapsed < 3 * latency, () -> "interactive export took " + elapsed + " ms");
+	}
+
+	private static double percentile(final long[] sorted, final int percentile) {
+		if (sorted.length == 0) {
+			return 0d;
+		}
+		final int index = Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100d * sorted.length) - 1);
+		return sorted[Math.max(0, index)] / 1e6;
+	}
+
+	private static TimedCalendarAccess createAccess(final HttpTransport transport) throws IOException {
+		return new TimedCalendarAccess(createSettings(), transport);
+	}
+
+	private static GoogleCalXSettings createSettings() {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		return settings;
+	}
+
+	/**
+	 * Calendar access recording the latency of each insert.
+	 */
+	private static class TimedCalendarAccess extends CalendarAccess {
+
+		private final long[] latencies;
+		private final AtomicInteger count;
+
+		TimedCalendarAccess(final GoogleCalXSettings settings, final HttpTransport transport) throws IOException {
+			super(settings, directory.getAbsolutePath(), null, transport, request -> { });
+			final RequestScheduler scheduler = new RequestScheduler(CONCURRENCY, 1e6);
+			scheduler.setBackOff(1L);
+			setScheduler(scheduler);
+			latencies = new long[PROGRAMS + DUPLICATES];
+			count = new AtomicInteger();
+		}
+
+		@Override
+		public Event addEvent(final String calendarId, final Event event, final Lane lane) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				return super.addEvent(calendarId, event, lane);
+			} finally {
+				latencies[count.getAndIncrement()] = System.nanoTime() - start;
+			}
+		}
+
+		@Override
+		public Event addEvent(final String calendarId, final StreamedEvent event, final Lane lane) throws IOException {
+			final long start = System.nanoTime();
+			try {
+				return super.addEvent(calendarId, event, lane);
+			} finally {
+				latencies[count.getAndIncrement()] = System.nanoTime() - start;
+			}
+		}
+
+		long[] latencies() {
+			return Arrays.copyOf(latencies, count.get());
+		}
+	}
+
+}
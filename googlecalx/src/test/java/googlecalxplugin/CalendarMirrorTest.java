@@ -0,0 +1,75 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests the conflicts answered by {@link CalendarMirror}, against the
+ * in-process {@link FakeCalendarApi}.
+ */
+public class CalendarMirrorTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void conflictsAreAnsweredLocally() throws IOException {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final Date tomorrow = Date.getCurrentDate().addDays(1);
+		final long base = access.getStartTime(SyntheticPrograms.createProgram(0, tomorrow));
+		// a one minute appointment every ten minutes for about three weeks, more than one page
+		final int appointments = 3000;
+		for (int i = 0; i < appointments; i++) {
+			api.addBusy(base + i * 600_000L, base + i * 600_000L + 60_000L);
+		}
+		final CalendarMirror mirror = new CalendarMirror(() -> access, CalendarMirror.DEFAULT_INTERVAL);
+		assertTrue(mirror.load());
+		assertEquals(appointments, mirror.size());
+		assertEquals(2, api.getEventListRequests());
+
+		// programs start every 30 minutes and last 25 minutes
+		final Program[] programs = SyntheticPrograms.create(1200, tomorrow);
+		int conflicting = 0;
+		for (Program program : programs) {
+			if (!mirror.getConflicts(program).isEmpty()) {
+				conflicting++;
+			}
+		}
+		assertEquals(appointments / 3, conflicting);
+		assertEquals(Arrays.asList("Busy 0", "Busy 1", "Busy 2"), mirror.getConflicts(programs[0]));
+		assertEquals(2, api.getEventListRequests());
+
+		// an exported program shows without reloading
+		final Event event = access.createEvent(programs[1100]);
+		access.addEvent(event);
+		mirror.add(access.getTargetCalendarId(), event);
+		assertEquals(Collections.singletonList("Program 1100"), mirror.getConflicts(programs[1100]));
+		assertEquals(2, api.getEventListRequests());
+	}
+
+	private CalendarAccess createAccess(final FakeCalendarApi api) throws IOException {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		final CalendarAccess access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		access.setScheduler(new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6));
+		return access;
+	}
+
+}
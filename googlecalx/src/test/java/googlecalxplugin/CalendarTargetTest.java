@@ -0,0 +1,55 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests storing a {@link CalendarTarget} together with its account.
+ */
+public class CalendarTargetTest {
+
+	@Test
+	public void stringVersionKeepsTheAccount() {
+		final CalendarTarget target = CalendarTarget.parse(new CalendarTarget("crime@example.com", "Crime | Mystery", "work").toStringRep());
+		assertEquals("crime@example.com", target.getId());
+		assertEquals("Crime | Mystery", target.getLabel());
+		assertEquals("work", target.getAccount());
+		assertNull(CalendarTarget.parse(new CalendarTarget("id", "label").toStringRep()).getAccount());
+		assertNull(CalendarTarget.parse(""));
+		assertThrows(IllegalStateException.class, () -> CalendarTarget.parse("id"));
+		assertThrows(IllegalStateException.class, () -> CalendarTarget.parse("work||label"));
+	}
+
+	@Test
+	public void targetsNameACalendarOfAnAccount() {
+		assertEquals(new CalendarTarget("id", "label", "work"), new CalendarTarget("id", "other label", "work"));
+		assertEquals(new CalendarTarget("id", "label", "work").hashCode(), new CalendarTarget("id", "other label", "work").hashCode());
+		assertNotEquals(new CalendarTarget("id", "label", "work"), new CalendarTarget("id", "label", "home"));
+	}
+
+	@Test
+	public void switchingTheAccountKeepsTheTarget() {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarTarget(new CalendarTarget("crime@example.com", "Crime", "work"));
+		settings.setAccount("home");
+		assertEquals("work", settings.getCalendarTarget().getAccount());
+	}
+
+	@Test
+	public void targetsStoredWithoutAccountBelongToTheAccount() {
+		final Properties properties = new Properties();
+		properties.setProperty("calendarTarget", "crime@example.com|Crime | Mystery");
+		properties.setProperty("account", "work");
+		final CalendarTarget target = new GoogleCalXSettings(properties).getCalendarTarget();
+		assertEquals("crime@example.com", target.getId());
+		assertEquals("Crime | Mystery", target.getLabel());
+		assertEquals("work", target.getAccount());
+	}
+
+}
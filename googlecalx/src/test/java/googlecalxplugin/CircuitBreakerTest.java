@@ -0,0 +1,91 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the state transitions of {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest {
+
+	private static final long LONG_PAUSE = TimeUnit.HOURS.toMillis(1L);
+
+	@Test
+	public void consecutiveFailuresOpenTheCircuit() throws CircuitBreaker.OpenException {
+		final CircuitBreaker breaker = new CircuitBreaker(3, LONG_PAUSE);
+		fail(breaker, 2);
+		// a success in between starts counting again
+		assertFalse(breaker.acquire());
+		breaker.onSuccess(false);
+		fail(breaker, 2);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		fail(breaker, 1);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+	}
+
+	@Test
+	public void oneProbeIsLetThroughAfterThePause() throws CircuitBreaker.OpenException {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0L);
+		fail(breaker, 1);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertTrue(breaker.acquire());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		// only one probe at a time
+		assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+		breaker.onSuccess(true);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.acquire();
+		breaker.acquire();
+	}
+
+	@Test
+	public void failedProbeOpensAgain() throws CircuitBreaker.OpenException {
+		final CircuitBreaker breaker = new CircuitBreaker(5, 0L);
+		fail(breaker, 5);
+		assertTrue(breaker.acquire());
+		breaker.onFailure(true);
+		// a single failure is enough while probing
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void abandonedProbeLetsTheNextOneThrough() throws CircuitBreaker.OpenException {
+		final CircuitBreaker breaker = new CircuitBreaker(1, 0L);
+		fail(breaker, 1);
+		assertTrue(breaker.acquire());
+		breaker.onAbandon(true);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertTrue(breaker.acquire());
+		assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+	}
+
+	@Test
+	public void requestsSentBeforeOpeningDoNotFreeTheProbe() throws CircuitBreaker.OpenException {
+		final CircuitBreaker breaker = new CircuitBreaker(2, 0L);
+		final boolean abandoned = breaker.acquire();
+		final boolean failing = breaker.acquire();
+		fail(breaker, 2);
+		assertTrue(breaker.acquire());
+		// the requests in flight since before end while the probe runs
+		breaker.onAbandon(abandoned);
+		breaker.onFailure(failing);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+		breaker.onSuccess(true);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	private static void fail(final CircuitBreaker breaker, final int count) throws CircuitBreaker.OpenException {
+		for (int i = 0; i < count; i++) {
+			breaker.onFailure(breaker.acquire());
+		}
+	}
+
+}
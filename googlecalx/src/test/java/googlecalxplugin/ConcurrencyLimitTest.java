@@ -0,0 +1,101 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the additive increase and multiplicative decrease of {@link ConcurrencyLimit}.
+ */
+public class ConcurrencyLimitTest {
+
+	private static final long LATENCY = 1_000_000L;
+
+	private long now = 1_000_000_000L;
+
+	@Test
+	public void startsAtTheInitialLimit() {
+		assertEquals(2, new ConcurrencyLimit(1, 2, 8).get());
+		assertEquals(8, new ConcurrencyLimit(1, 20, 8).get());
+		assertEquals(3, new ConcurrencyLimit(3, 1, 8).get());
+		assertEquals(8, new ConcurrencyLimit(1, 2, 8).getMax());
+	}
+
+	@Test
+	public void growsByOnePerLimitOfSaturatedResponses() {
+		final ConcurrencyLimit limit = new ConcurrencyLimit(1, 2, 8);
+		respond(limit, 10, false);
+		assertEquals(2, limit.get(), "grows only while requests wait");
+		respond(limit, 2, true);
+		assertEquals(2, limit.get());
+		respond(limit, 1, true);
+		assertEquals(3, limit.get());
+		responsesUntil(limit, 8);
+		respond(limit, 100, true);
+		assertEquals(8, limit.get(), "never above the maximum");
+	}
+
+	@Test
+	public void rateLimitHalvesOncePerRoundTrip() {
+		final ConcurrencyLimit limit = new ConcurrencyLimit(1, 8, 8);
+		respond(limit, 1, true);
+		limit.onRateLimited(tick());
+		assertEquals(4, limit.get());
+		// the requests in flight saw the old load
+		limit.onRateLimited(now + LATENCY / 2);
+		assertEquals(4, limit.get());
+		limit.onRateLimited(tick());
+		assertEquals(2, limit.get());
+		limit.onRateLimited(tick());
+		limit.onRateLimited(tick());
+		assertEquals(1, limit.get(), "never below the minimum");
+	}
+
+	@Test
+	public void probesTheLastRateLimitSlowly() {
+		final ConcurrencyLimit limit = new ConcurrencyLimit(1, 8, 16);
+		respond(limit, 1, true);
+		limit.onRateLimited(tick());
+		assertEquals(4, limit.get());
+		// climbs back quickly to just below the limit which was rate limited
+		final int fast = responsesUntil(limit, 7);
+		final int slow = responsesUntil(limit, 8);
+		assertTrue(slow > 3 * fast, () -> fast + " responses to climb, " + slow + " to probe");
+		// one above it the server sustains more again, and the limit climbs quickly
+		responsesUntil(limit, 9);
+		final int again = responsesUntil(limit, 10);
+		assertTrue(3 * again < slow, () -> again + " responses after probing");
+	}
+
+	@Test
+	public void risingLatencyLowersTheLimit() {
+		final ConcurrencyLimit limit = new ConcurrencyLimit(1, 8, 8);
+		respond(limit, 1, true);
+		for (int i = 0; i < 10; i++) {
+			limit.onResponse(10 * LATENCY, true, tick());
+		}
+		assertTrue(limit.get() < 8, () -> "limit " + limit.get());
+	}
+
+	private void respond(final ConcurrencyLimit limit, final int count, final boolean saturated) {
+		for (int i = 0; i < count; i++) {
+			limit.onResponse(LATENCY, saturated, tick());
+		}
+	}
+
+	private int responsesUntil(final ConcurrencyLimit limit, final int target) {
+		int result = 0;
+		while (limit.get() < target) {
+			respond(limit, 1, true);
+			assertTrue(++result < 10000, "limit does not grow");
+		}
+		return result;
+	}
+
+	private long tick() {
+		now += LATENCY;
+		return now;
+	}
+
+}
@@ -0,0 +1,99 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests how {@link ExportBuffer} coalesces single exports into batches,
+ * against the in-process {@link FakeCalendarApi}.
+ */
+public class ExportBufferTest {
+
+	private static final Date DATE = new Date(2026, 1, 1);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void singleExportsAreCoalesced() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 20L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final List<ExportBuffer.Result> results = Collections.synchronizedList(new ArrayList<ExportBuffer.Result>());
+		final Program[] programs = SyntheticPrograms.create(72, DATE);
+		try (ExportBuffer buffer = new ExportBuffer(access, results::add, 200L)) {
+			// a burst of twelve clicks
+			final long start = System.nanoTime();
+			for (int i = 0; i < 12; i++) {
+				buffer.submit(programs[i]);
+			}
+			final long submitted = (System.nanoTime() - start) / 1_000_000L;
+			assertEquals(12, buffer.getPending());
+			assertTrue(submitted < 100L, () -> "submitting took " + submitted + " ms");
+			while (results.isEmpty()) {
+				Thread.sleep(10L);
+			}
+			assertEquals(1, api.getBatchRequests());
+			assertEquals(12, results.get(0).getExported().size());
+			assertTrue(results.get(0).getFailures().isEmpty());
+			// a full batch is sent without waiting for the window
+			for (int i = 12; i < programs.length; i++) {
+				buffer.submit(programs[i]);
+			}
+			assertEquals(programs.length - 12 - ExportBuffer.MAX_BATCH, buffer.getPending());
+		}
+		// closing sends the rest
+		while (results.size() < 3) {
+			Thread.sleep(10L);
+		}
+		assertEquals(3, api.getBatchRequests());
+		assertEquals(programs.length, api.getInserts());
+		assertEquals(3, results.size());
+		assertEquals(ExportBuffer.MAX_BATCH, results.get(1).getExported().size());
+		assertEquals(programs.length - 12 - ExportBuffer.MAX_BATCH, results.get(2).getExported().size());
+	}
+
+	@Test
+	public void steadySingleExportsWaitAtMostSomeWindows() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final List<ExportBuffer.Result> results = Collections.synchronizedList(new ArrayList<ExportBuffer.Result>());
+		final Program[] programs = SyntheticPrograms.create(40, DATE);
+		final long window = 100L;
+		try (ExportBuffer buffer = new ExportBuffer(access, results::add, window)) {
+			// one click every half window never lets the window pass
+			final long start = System.nanoTime();
+			for (int i = 0; i < programs.length && results.isEmpty(); i++) {
+				buffer.submit(programs[i]);
+				Thread.sleep(window / 2);
+			}
+			final long waited = (System.nanoTime() - start) / 1_000_000L;
+			assertEquals(1, results.size());
+			assertTrue(waited < (ExportBuffer.MAX_WAIT_WINDOWS + 2) * window, () -> "the first export waited " + waited + " ms");
+			assertTrue(results.get(0).getExported().size() < ExportBuffer.MAX_BATCH);
+		}
+	}
+
+	private CalendarAccess createAccess(final FakeCalendarApi api) throws IOException {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		final CalendarAccess access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		access.setScheduler(new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6));
+		return access;
+	}
+
+}
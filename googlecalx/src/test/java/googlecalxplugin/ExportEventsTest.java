@@ -0,0 +1,84 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests the context {@link ExportEvents} are recorded with.
+ */
+public class ExportEventsTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void stepsRestoreThePreviousContext() throws Exception {
+		assertEquals(Arrays.asList("inner@example.com", "outer@example.com", null), record(() -> {
+			ExportEvents.run("outer", "outer@example.com", 1L, () -> {
+				ExportEvents.run("inner", "inner@example.com", 2L, ExportEventsTest::resolve);
+				resolve();
+			});
+			resolve();
+		}));
+	}
+
+	@Test
+	public void tasksTakeTheContextToOtherThreads() throws Exception {
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			assertEquals(Arrays.asList("calendar@example.com", "calendar@example.com", null), record(() -> {
+				ExportEvents.run("program", "calendar@example.com", 1L, () -> {
+					executor.execute(ExportEvents.inContext(ExportEventsTest::resolve));
+					AsyncCall.start(executor, () -> {
+						resolve();
+						return null;
+					}).get(10L, TimeUnit.SECONDS);
+				});
+				// the thread of the executor has no context of its own
+				executor.submit(ExportEventsTest::resolve).get(10L, TimeUnit.SECONDS);
+			}));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Runs the given steps while recording and returns the calendar IDs of the events.
+	 */
+	private List<String> record(final ExportEvents.Action<Exception> steps) throws Exception {
+		final Path file = directory.resolve("events.jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(ExportEvents.TemplateResolution.class).withoutThreshold();
+			recording.start();
+			steps.run();
+			recording.stop();
+			recording.dump(file);
+		}
+		final List<String> result = new ArrayList<String>();
+		for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+			result.add(event.getString("calendarId"));
+		}
+		return result;
+	}
+
+	private static void resolve() {
+		final ExportEvents.TemplateResolution event = new ExportEvents.TemplateResolution();
+		event.begin();
+		event.commitInContext();
+	}
+
+}
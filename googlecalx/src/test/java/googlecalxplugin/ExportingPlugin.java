@@ -0,0 +1,193 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+
+import com.google.api.client.http.HttpTransport;
+
+import devplugin.Program;
+import devplugin.ProgramReceiveTarget;
+
+/**
+ * The plugin exporting to a local stand-in of the Calendar API, for tests
+ * going through <code>receivePrograms</code>. It records the programs
+ * marked and the progress shown, in a monitor which never opens a window.
+ */
+public class ExportingPlugin extends GoogleCalXPlugin {
+
+	private final CalendarAccounts accounts;
+	private final Set<Program> marked;
+	private final AtomicInteger markedOffEdt;
+	private final CountDownLatch closed;
+	private final int cancelAt;
+	private volatile Monitor monitor;
+
+	/**
+	 * Creates the plugin.
+	 * @param aSettings the settings to use, must not be <code>null</code>.
+	 * @param directory directory for the data of the accounts, must not be <code>null</code>
+	 * @param transport the HTTP transport to use, must not be <code>null</code>
+	 * @param aCancelAt the progress at which the user cancels the export, zero to never cancel
+	 * @throws IOException in case of error
+	 */
+	public ExportingPlugin(final GoogleCalXSettings aSettings, final String directory, final HttpTransport transport, final int aCancelAt) throws IOException {
+		settings = aSettings;
+		accounts = new CalendarAccounts(aSettings, directory, null, transport, request -> { });
+		marked = Collections.newSetFromMap(new ConcurrentHashMap<Program, Boolean>());
+		markedOffEdt = new AtomicInteger();
+		closed = new CountDownLatch(1);
+		cancelAt = aCancelAt;
+	}
+
+	/**
+	 * Exports the given programs as TV-Browser does when they are sent to the plugin.
+	 * @param programs the programs to export, must not be <code>null</code>.
+	 * @return the return value of <code>receivePrograms</code>
+	 */
+	public boolean export(final Program[] programs) {
+		final ProgramReceiveTarget export = getProgramReceiveTargets()[0];
+		return receivePrograms(programs, export);
+	}
+
+	/**
+	 * Waits until the export finished and the given number of programs was
+	 * marked; the marks published last may be processed after the export finished.
+	 * @param marks the number of programs to wait for
+	 * @param timeout the time to wait at most, in milliseconds
+	 * @return <code>true</code> if the programs were marked, <code>false</code> if the time ran out.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(final int marks, final long timeout) throws InterruptedException {
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (!closed.await(timeout, TimeUnit.MILLISECONDS)) {
+			return false;
+		}
+		while (marked.size() < marks) {
+			if (System.nanoTime() > end) {
+				return false;
+			}
+			Thread.sleep(10L);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until the export finished.
+	 * @param timeout the time to wait at most, in milliseconds
+	 * @return <code>true</code> if the export finished, <code>false</code> if the time ran out.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean await(final long timeout) throws InterruptedException {
+		return closed.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the programs marked as exported.
+	 * @return the marked programs, never <code>null</code>.
+	 */
+	public Set<Program> getMarked() {
+		return marked;
+	}
+
+	/**
+	 * Returns the number of programs marked outside of the event dispatch thread.
+	 * @return the number of programs marked outside of the event dispatch thread.
+	 */
+	public int getMarkedOffEdt() {
+		return markedOffEdt.get();
+	}
+
+	/**
+	 * Returns the last progress shown.
+	 * @return the last progress shown.
+	 */
+	public int getProgress() {
+		return monitor.progress;
+	}
+
+	/**
+	 * Returns the last maximum of the progress shown.
+	 * @return the last maximum of the progress shown.
+	 */
+	public int getMaximum() {
+		return monitor.getMaximum();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onDeactivation() {
+		super.onDeactivation();
+		try {
+			accounts.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected CalendarAccounts getCalendarAccounts() {
+		return accounts;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected void mark(final Program program) {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			markedOffEdt.incrementAndGet();
+		}
+		super.mark(program);
+		marked.add(program);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected ProgressMonitor createProgressMonitor(final int count) {
+		monitor = new Monitor(count);
+		return monitor;
+	}
+
+	/**
+	 * Progress monitor recording the progress instead of showing it.
+	 */
+	private class Monitor extends ProgressMonitor {
+
+		private volatile int progress;
+
+		protected Monitor(final int count) {
+			super(null, null, null, 0, count);
+		}
+
+		@Override
+		public void setProgress(final int nv) {
+			progress = nv;
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return cancelAt > 0 && progress >= cancelAt;
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+
+}
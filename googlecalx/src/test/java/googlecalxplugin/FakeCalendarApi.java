@@ -0,0 +1,505 @@
+package googlecalxplugin;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+
+/**
+ * In-process stand-in for the Calendar REST API. Answers event inserts
+ * and updates, also batched, batched event patches, batched event deletes, the paged calendar list, the colors,
+ * free/busy queries and the paged event list with scripted latency. Busy
+ * times are listed as events named "Busy n"; queries for a private extended
+ * property list the inserted events overlapping the queried time span instead,
+ * with ID, end, program ID and content hash. Events inserted with an ID
+ * are remembered, so inserting the ID again is answered with a conflict
+ * (409) and deleting it succeeds, while other deletes are answered with
+ * not found (404). Every
+ * n-th request can be answered with a rate limit (429) or a server
+ * error (503), so the injected failures are repeatable. Requests beyond
+ * a number in flight can be answered with a rate limit as well. While
+ * the fake API is down, connections are refused.
+ */
+public class FakeCalendarApi extends MockHttpTransport {
+
+	private static final String BOUNDARY = "batch_fake";
+
+	private final int calendars;
+	private final long latencyMillis;
+	private final long jitterMillis;
+	private final int rateLimitEvery;
+	private final int serverErrorEvery;
+	private final AtomicInteger requests;
+	private final AtomicInteger inserts;
+	private final AtomicInteger listRequests;
+	private final AtomicInteger rateLimited;
+	private final AtomicInteger serverErrors;
+	private final AtomicInteger freeBusyRequests;
+	private final AtomicInteger eventListRequests;
+	private final List<long[]> busy;
+	private final Set<String> eventIds;
+	private final Map<String, String> programIds;
+	private final Map<String, String> hashes;
+	private final Map<String, long[]> times;
+	private final AtomicInteger updates;
+	private final AtomicInteger batchRequests;
+	private final AtomicInteger deletes;
+	private final AtomicInteger inFlight;
+	private volatile int maxInFlight;
+	private volatile boolean down;
+	private final AtomicInteger refused;
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+
+	/**
+	 * Creates the fake API.
+	 * @param someCalendars the number of calendars in the calendar list
+	 * @param latency the base latency of each request in milliseconds
+	 * @param jitter the maximum random latency added to each request in milliseconds
+	 * @param every429 answer every n-th request with 429, zero to disable
+	 * @param every503 answer every n-th request with 503, zero to disable
+	 */
+	public FakeCalendarApi(final int someCalendars, final long latency, final long jitter, final int every429, final int every503) {
+		calendars = someCalendars;
+		latencyMillis = latency;
+		jitterMillis = jitter;
+		rateLimitEvery = every429;
+		serverErrorEvery = every503;
+		requests = new AtomicInteger();
+		inserts = new AtomicInteger();
+		listRequests = new AtomicInteger();
+		rateLimited = new AtomicInteger();
+		serverErrors = new AtomicInteger();
+		freeBusyRequests = new AtomicInteger();
+		eventListRequests = new AtomicInteger();
+		busy = new CopyOnWriteArrayList<long[]>();
+		eventIds = ConcurrentHashMap.newKeySet();
+		programIds = new ConcurrentHashMap<String, String>();
+		hashes = new ConcurrentHashMap<String, String>();
+		times = new ConcurrentHashMap<String, long[]>();
+		updates = new AtomicInteger();
+		batchRequests = new AtomicInteger();
+		deletes = new AtomicInteger();
+		inFlight = new AtomicInteger();
+		refused = new AtomicInteger();
+	}
+
+	/**
+	 * Answers requests beyond the given number in flight with a rate limit.
+	 * @param max the number of requests in flight served, zero for no limit
+	 */
+	public void setMaxInFlight(final int max) {
+		maxInFlight = max;
+	}
+
+	/**
+	 * Refuses connections, like a service which is not reachable.
+	 * @param isDown <code>true</code> to refuse connections, <code>false</code> to serve them again
+	 */
+	public void setDown(final boolean isDown) {
+		down = isDown;
+	}
+
+	/**
+	 * Adds a busy time reported for every calendar by free/busy queries.
+	 * @param start the start of the busy time, in milliseconds since the epoch
+	 * @param end the end of the busy time, in milliseconds since the epoch
+	 */
+	public void addBusy(final long start, final long end) {
+		busy.add(new long[] { start, end });
+	}
+
+	public int getInserts() {
+		return inserts.get();
+	}
+
+	public int getUpdates() {
+		return updates.get();
+	}
+
+	public int getBatchRequests() {
+		return batchRequests.get();
+	}
+
+	public int getDeletes() {
+		return deletes.get();
+	}
+
+	public int getListRequests() {
+		return listRequests.get();
+	}
+
+	public int getFreeBusyRequests() {
+		return freeBusyRequests.get();
+	}
+
+	public int getEventListRequests() {
+		return eventListRequests.get();
+	}
+
+	public int getRateLimited() {
+		return rateLimited.get();
+	}
+
+	public int getServerErrors() {
+		return serverErrors.get();
+	}
+
+	public int getRefused() {
+		return refused.get();
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	@Override
+	public LowLevelHttpRequest buildRequest(final String method, final String url) {
+		return new MockLowLevelHttpRequest(url) {
+			@Override
+			public LowLevelHttpResponse execute() throws IOException {
+				return handle(method, new GenericUrl(url), this);
+			}
+
+			@Override
+			public void setTimeout(final int connect, final int read) {
+				connectTimeout = connect;
+				readTimeout = read;
+			}
+		};
+	}
+
+	private LowLevelHttpResponse handle(final String method, final GenericUrl url, final MockLowLevelHttpRequest request) throws IOException {
+		final int concurrent = inFlight.incrementAndGet();
+		try {
+			if (down) {
+				sleep();
+				refused.incrementAndGet();
+				throw new ConnectException("Connection refused");
+			}
+			if (maxInFlight > 0 && concurrent > maxInFlight) {
+				sleep();
+				requests.incrementAndGet();
+				rateLimited.incrementAndGet();
+				return error(429, "rateLimitExceeded", "Rate Limit Exceeded");
+			}
+			return respond(method, url, request);
+		} finally {
+			inFlight.decrementAndGet();
+		}
+	}
+
+	private LowLevelHttpResponse respond(final String method, final GenericUrl url, final MockLowLevelHttpRequest request) throws IOException {
+		sleep();
+		final int count = requests.incrementAndGet();
+		final String path = url.getRawPath();
+		final boolean insert = "POST".equals(method) && path.endsWith("/events");
+		String conflict = null;
+		if (insert) {
+			inserts.incrementAndGet();
+			final String content = request.getContentAsString();
+			if (content.contains("\"id\":\"")) {
+				final String id = value(content, "id");
+				if (!eventIds.add(id)) {
+					conflict = id;
+				}
+				tag(id, content);
+			}
+		} else if ("PUT".equals(method) && path.contains("/events/")) {
+			updates.incrementAndGet();
+			return json("{\"id\":\"" + path.substring(path.lastIndexOf('/') + 1) + "\",\"etag\":\"\\\"" + count + "\\\"\"}");
+		} else if (path.endsWith("/batch/calendar/v3")) {
+			batchRequests.incrementAndGet();
+			return batch(request.getContentAsString());
+		} else if (path.endsWith("/users/me/calendarList")) {
+			listRequests.incrementAndGet();
+		} else if (path.endsWith("/freeBusy")) {
+			freeBusyRequests.incrementAndGet();
+		} else if ("GET".equals(method) && path.endsWith("/events")) {
+			eventListRequests.incrementAndGet();
+		}
+		if (rateLimitEvery > 0 && count % rateLimitEvery == 0) {
+			rateLimited.incrementAndGet();
+			return error(429, "rateLimitExceeded", "Rate Limit Exceeded");
+		}
+		if (serverErrorEvery > 0 && count % serverErrorEvery == 0) {
+			serverErrors.incrementAndGet();
+			return error(503, "backendError", "Backend Error");
+		}
+		if (conflict != null) {
+			return error(409, "duplicate", "The requested identifier already exists.");
+		} else if (insert) {
+			return json("{\"id\":\"ev" + count + "\",\"etag\":\"\\\"" + count + "\\\"\"}");
+		} else if (path.endsWith("/users/me/calendarList")) {
+			return calendarList(url);
+		} else if (path.endsWith("/freeBusy")) {
+			return freeBusy(request.getContentAsString());
+		} else if ("GET".equals(method) && path.endsWith("/events")) {
+			return eventList(url);
+		} else if (path.endsWith("/colors")) {
+			return json("{\"event\":{\"1\":{\"background\":\"#a4bdfc\",\"foreground\":\"#1d1d1d\"}}}");
+		}
+		return error(404, "notFound", "Not Found");
+	}
+
+	private LowLevelHttpResponse calendarList(final GenericUrl url) {
+		final Object token = url.getFirst("pageToken");
+		final Object max = url.getFirst("maxResults");
+		final int start = token != null ? Integer.parseInt(token.toString()) : 0;
+		final int end = Math.min(calendars, start + (max != null ? Integer.parseInt(max.toString()) : 100));
+		final StringBuilder sb = new StringBuilder(64 * (end - start) + 64);
+		sb.append("{\"items\":[");
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":\"cal").append(i).append("@group.calendar.google.com\",\"summary\":\"Calendar ").append(i).append("\"}");
+		}
+		sb.append(']');
+		if (end < calendars) {
+			sb.append(",\"nextPageToken\":\"").append(end).append('"');
+		}
+		sb.append('}');
+		return json(sb.toString());
+	}
+
+	private LowLevelHttpResponse batch(final String content) {
+		final StringBuilder sb = new StringBuilder(256);
+		int part = 0;
+		String method = null;
+		String path = null;
+		for (String line : content.split("\r\n")) {
+			if (line.startsWith("DELETE ") || line.startsWith("POST ") || line.startsWith("PUT ") || line.startsWith("PATCH ")) {
+				method = line.substring(0, line.indexOf(' '));
+				final String url = line.substring(method.length() + 1, line.indexOf(' ', method.length() + 1));
+				path = new GenericUrl(url).getRawPath();
+				if ("DELETE".equals(method)) {
+					final boolean found = eventIds.remove(path.substring(path.lastIndexOf('/') + 1));
+					programIds.remove(path.substring(path.lastIndexOf('/') + 1));
+					hashes.remove(path.substring(path.lastIndexOf('/') + 1));
+					times.remove(path.substring(path.lastIndexOf('/') + 1));
+					if (found) {
+						deletes.incrementAndGet();
+						part(sb, ++part, "204 No Content", null);
+					} else {
+						part(sb, ++part, "404 Not Found", "{\"error\":{\"code\":404,\"message\":\"Not Found\"}}");
+					}
+					method = null;
+				}
+			} else if (method != null && line.startsWith("{")) {
+				// the body of an insert or update
+				final int count = requests.get();
+				if ("POST".equals(method)) {
+					inserts.incrementAndGet();
+					final String id = value(line, "id");
+					tag(id, line);
+					if (eventIds.add(id)) {
+						part(sb, ++part, "200 OK", "{\"id\":\"" + id + "\",\"etag\":\"\\\"" + count + "\\\"\"}");
+					} else {
+						part(sb, ++part, "409 Conflict", "{\"error\":{\"code\":409,\"message\":\"The requested identifier already exists.\"}}");
+					}
+				} else {
+					updates.incrementAndGet();
+					tag(path.substring(path.lastIndexOf('/') + 1), line);
+					part(sb, ++part, "200 OK", "{\"id\":\"" + path.substring(path.lastIndexOf('/') + 1) + "\",\"etag\":\"\\\"" + count + "\\\"\"}");
+				}
+				method = null;
+			}
+		}
+		sb.append("--").append(BOUNDARY).append("--\r\n");
+		return content(new MockLowLevelHttpResponse()
+			.setContentType("multipart/mixed; boundary=" + BOUNDARY), sb.toString());
+	}
+
+	private static void part(final StringBuilder sb, final int part, final String status, final String json) {
+		sb.append("--").append(BOUNDARY).append("\r\n")
+			.append("Content-Type: application/http\r\n")
+			.append("Content-ID: <response-").append(part).append(">\r\n\r\n")
+			.append("HTTP/1.1 ").append(status).append("\r\n");
+		if (json == null) {
+			sb.append("\r\n\r\n");
+		} else {
+			sb.append("Content-Type: application/json; charset=UTF-8\r\n")
+				.append("Content-Length: ").append(json.length()).append("\r\n\r\n")
+				.append(json).append("\r\n");
+		}
+	}
+
+	private LowLevelHttpResponse freeBusy(final String query) {
+		final long min = DateTime.parseRfc3339(value(query, "timeMin")).getValue();
+		final long max = DateTime.parseRfc3339(value(query, "timeMax")).getValue();
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"calendars\":{");
+		// every calendar queried has the same busy times
+		for (int index = query.indexOf("\"id\":\""); index >= 0; index = query.indexOf("\"id\":\"", index + 1)) {
+			if (sb.charAt(sb.length() - 1) != '{') {
+				sb.append(',');
+			}
+			sb.append('"').append(value(query.substring(index), "id")).append("\":{\"busy\":[");
+			boolean first = true;
+			for (long[] period : busy) {
+				if (period[0] < max && period[1] > min) {
+					if (!first) {
+						sb.append(',');
+					}
+					first = false;
+					sb.append("{\"start\":\"").append(new DateTime(Math.max(min, period[0])).toStringRfc3339())
+						.append("\",\"end\":\"").append(new DateTime(Math.min(max, period[1])).toStringRfc3339()).append("\"}");
+				}
+			}
+			sb.append("]}");
+		}
+		sb.append("}}");
+		return json(sb.toString());
+	}
+
+	private void tag(final String eventId, final String json) {
+		if (json.contains("\"" + CalendarAccess.PROPERTY_PROGRAM + "\":\"")) {
+			programIds.put(eventId, value(json, CalendarAccess.PROPERTY_PROGRAM));
+		}
+		if (json.contains("\"" + CalendarAccess.PROPERTY_HASH + "\":\"")) {
+			hashes.put(eventId, value(json, CalendarAccess.PROPERTY_HASH));
+		}
+		if (json.contains("\"start\":{\"dateTime\":\"")) {
+			// a patch leaves the times as they are
+			times.put(eventId, new long[] {
+				DateTime.parseRfc3339(value(json, "start\":{\"dateTime")).getValue(),
+				DateTime.parseRfc3339(value(json, "end\":{\"dateTime")).getValue() });
+		}
+	}
+
+	private LowLevelHttpResponse taggedEventList(final GenericUrl url) {
+		final Object token = url.getFirst("pageToken");
+		final int start = token != null ? Integer.parseInt(token.toString()) : 0;
+		final int size = Integer.parseInt(url.getFirst("maxResults").toString());
+		final long min = DateTime.parseRfc3339(url.getFirst("timeMin").toString()).getValue();
+		final long max = DateTime.parseRfc3339(url.getFirst("timeMax").toString()).getValue();
+		final List<String> tagged = new ArrayList<String>();
+		for (String eventId : programIds.keySet()) {
+			final long[] period = times.get(eventId);
+			if (period == null || (period[1] > min && period[0] < max)) {
+				tagged.add(eventId);
+			}
+		}
+		Collections.sort(tagged);
+		final int end = Math.min(tagged.size(), start + size);
+		final StringBuilder sb = new StringBuilder(64 * (end - start) + 64);
+		sb.append("{\"items\":[");
+		for (int i = start; i < end; i++) {
+			if (i > start) {
+				sb.append(',');
+			}
+			final String hash = hashes.get(tagged.get(i));
+			final long[] period = times.get(tagged.get(i));
+			sb.append("{\"id\":\"").append(tagged.get(i)).append('"');
+			if (period != null) {
+				sb.append(",\"end\":{\"dateTime\":\"").append(new DateTime(period[1]).toStringRfc3339()).append("\"}");
+			}
+			sb.append(",\"extendedProperties\":{\"private\":{\"").append(CalendarAccess.PROPERTY_PROGRAM).append("\":\"").append(programIds.get(tagged.get(i))).append('"');
+			if (hash != null) {
+				sb.append(",\"").append(CalendarAccess.PROPERTY_HASH).append("\":\"").append(hash).append('"');
+			}
+			sb.append("}}}");
+		}
+		sb.append(']');
+		if (end < tagged.size()) {
+			sb.append(",\"nextPageToken\":\"").append(end).append('"');
+		}
+		sb.append('}');
+		return json(sb.toString());
+	}
+
+	private LowLevelHttpResponse eventList(final GenericUrl url) {
+		if (url.getFirst("privateExtendedProperty") != null) {
+			return taggedEventList(url);
+		}
+		final long min = DateTime.parseRfc3339(url.getFirst("timeMin").toString()).getValue();
+		final long max = DateTime.parseRfc3339(url.getFirst("timeMax").toString()).getValue();
+		final Object token = url.getFirst("pageToken");
+		final int start = token != null ? Integer.parseInt(token.toString()) : 0;
+		final int size = Integer.parseInt(url.getFirst("maxResults").toString());
+		final StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"items\":[");
+		int index = 0;
+		int listed = 0;
+		for (long[] period : busy) {
+			if (period[0] < max && period[1] > min && index++ >= start) {
+				if (listed == size) {
+					sb.append("],\"nextPageToken\":\"").append(start + size).append("\"}");
+					return json(sb.toString());
+				}
+				if (listed++ > 0) {
+					sb.append(',');
+				}
+				sb.append("{\"summary\":\"Busy ").append(index - 1)
+					.append("\",\"start\":{\"dateTime\":\"").append(new DateTime(period[0]).toStringRfc3339())
+					.append("\"},\"end\":{\"dateTime\":\"").append(new DateTime(period[1]).toStringRfc3339()).append("\"}}");
+			}
+		}
+		sb.append("]}");
+		return json(sb.toString());
+	}
+
+	private static String value(final String json, final String key) {
+		final String prefix = "\"" + key + "\":\"";
+		final int start = json.indexOf(prefix) + prefix.length();
+		return json.substring(start, json.indexOf('"', start));
+	}
+
+	private void sleep() throws IOException {
+		final long millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0L);
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	private static LowLevelHttpResponse json(final String content) {
+		return content(new MockLowLevelHttpResponse()
+			.setContentType(Json.MEDIA_TYPE), content);
+	}
+
+	private static LowLevelHttpResponse error(final int status, final String reason, final String message) {
+		return content(new MockLowLevelHttpResponse()
+			.setStatusCode(status)
+			.setReasonPhrase(message)
+			.setContentType(Json.MEDIA_TYPE), "{\"error\":{\"code\":" + status + ",\"message\":\"" + message
+				+ "\",\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"" + reason + "\",\"message\":\"" + message + "\"}]}}");
+	}
+
+	/**
+	 * Sets the content of the response, announcing its length like a server does.
+	 */
+	private static LowLevelHttpResponse content(final MockLowLevelHttpResponse response, final String content) {
+		final byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		return response
+			.addHeader("Content-Length", Integer.toString(bytes.length))
+			.setContent(bytes);
+	}
+
+}
@@ -0,0 +1,77 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests the bulk export started by {@link GoogleCalXPlugin#receivePrograms},
+ * against the in-process {@link FakeCalendarApi}.
+ */
+public class GoogleCalXPluginTest {
+
+	private static final Date DATE = new Date(2026, 1, 1);
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void receivedProgramsAreExportedAndMarked() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final ExportingPlugin plugin = createPlugin(api, 0);
+		try {
+			final Program[] programs = SyntheticPrograms.create(300, DATE);
+			// a program sent twice is exported once
+			final Program[] received = Arrays.copyOf(programs, programs.length + 1);
+			received[programs.length] = programs[0];
+			assertTrue(plugin.export(received));
+			assertTrue(plugin.await(programs.length, 10_000L));
+			assertEquals(new HashSet<Program>(Arrays.asList(programs)), plugin.getMarked());
+			assertEquals(0, plugin.getMarkedOffEdt());
+			assertEquals(programs.length, api.getInserts());
+			assertEquals(programs.length, plugin.getMaximum());
+			assertEquals(programs.length, plugin.getProgress());
+		} finally {
+			plugin.onDeactivation();
+		}
+	}
+
+	@Test
+	public void cancellingTheMonitorStopsTheExport() throws Exception {
+		final FakeCalendarApi api = new FakeCalendarApi(1, 5L, 0L, 0, 0);
+		final ExportingPlugin plugin = createPlugin(api, 20);
+		try {
+			final Program[] programs = SyntheticPrograms.create(1000, DATE);
+			assertTrue(plugin.export(programs));
+			assertTrue(plugin.await(10_000L));
+			// exported programs are marked, also the ones exported after cancelling
+			assertTrue(plugin.await(api.getInserts(), 10_000L));
+			assertEquals(api.getInserts(), plugin.getMarked().size());
+			assertTrue(api.getInserts() >= 20 && api.getInserts() < programs.length / 2, () -> api.getInserts() + " programs exported");
+		} finally {
+			plugin.onDeactivation();
+		}
+	}
+
+	private ExportingPlugin createPlugin(final FakeCalendarApi api, final int cancelAt) throws IOException {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		final ExportingPlugin plugin = new ExportingPlugin(settings, directory.toString(), api, cancelAt);
+		plugin.getCalendarAccess().setScheduler(new RequestScheduler(4, 1e6));
+		return plugin;
+	}
+
+}
@@ -0,0 +1,85 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the export of an XMLTV guide by {@link HeadlessExporter}, against
+ * the in-process {@link FakeCalendarApi}.
+ */
+public class HeadlessExporterTest {
+
+	private static final DateTimeFormatter XMLTV_TIME = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void guideIsFilteredAndExportedInBatches() throws IOException {
+		final int perChannel = 2000;
+		final Path guide = directory.resolve("guide.xml");
+		try (Writer out = Files.newBufferedWriter(guide, StandardCharsets.UTF_8)) {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!DOCTYPE tv SYSTEM \"xmltv.dtd\">\n<tv>\n");
+			for (String channel : new String[] { "a", "b" }) {
+				out.write("<channel id=\"" + channel + ".example\"><display-name lang=\"en\">Channel " + channel.toUpperCase() + "</display-name></channel>\n");
+			}
+			final LocalDateTime first = LocalDateTime.of(2026, 3, 1, 6, 0);
+			for (int i = 0; i < perChannel; i++) {
+				for (String channel : new String[] { "a", "b" }) {
+					out.write("<programme start=\"" + XMLTV_TIME.format(first.plusMinutes(30L * i)) + " +0100\" stop=\""
+						+ XMLTV_TIME.format(first.plusMinutes(30L * i + 25L)) + " +0100\" channel=\"" + channel + ".example\">"
+						+ "<title lang=\"en\">" + (i % 2 == 0 ? "Show " : "News ") + i + "</title>"
+						+ "<sub-title>Part &amp; parcel " + i + "</sub-title><desc>Description of " + i + "</desc>"
+						+ "<credits><actor>Someone</actor></credits><category>Series</category></programme>\n");
+				}
+			}
+			// incomplete programme
+			out.write("<programme start=\"20260301060000 +0100\" channel=\"a.example\"></programme>\n</tv>\n");
+		}
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = createAccess(api);
+		final HeadlessExporter exporter = new HeadlessExporter(access, access.getTargetCalendarId());
+		exporter.addChannelPattern(Pattern.compile("^Channel A$"));
+		exporter.addTitlePattern(Pattern.compile("^Show"));
+		HeadlessExporter.Report report;
+		try (XmltvReader reader = new XmltvReader(Files.newInputStream(guide))) {
+			report = exporter.export(reader);
+		}
+		assertEquals(2 * perChannel, report.getRead());
+		assertEquals(1, report.getSkipped());
+		assertEquals(perChannel / 2, report.getMatched());
+		assertEquals(perChannel / 2, report.getExported());
+		assertEquals(0, report.getFailed());
+		assertEquals(perChannel / 2, api.getInserts());
+		assertEquals(perChannel / 100, api.getBatchRequests());
+		// exporting the guide again updates the events
+		try (XmltvReader reader = new XmltvReader(Files.newInputStream(guide))) {
+			report = exporter.export(reader);
+		}
+		assertEquals(perChannel / 2, report.getExported());
+		assertEquals(perChannel / 2, api.getUpdates());
+	}
+
+	private CalendarAccess createAccess(final FakeCalendarApi api) throws IOException {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId("someone@example.com");
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		final CalendarAccess access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		access.setScheduler(new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6));
+		return access;
+	}
+
+}
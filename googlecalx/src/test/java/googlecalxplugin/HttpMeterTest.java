@@ -0,0 +1,91 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+
+/**
+ * Tests the counters of {@link HttpMeter}.
+ */
+public class HttpMeterTest {
+
+	private static final GenericUrl URL = new GenericUrl("https://www.googleapis.com/calendar/v3/calendars/x/events");
+
+	@Test
+	public void compressedBodiesAreCountedOnTheWire() throws IOException {
+		final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		final HttpMeter meter = new HttpMeter();
+		final HttpRequestFactory factory = createFactory(meter, wire);
+		final byte[] body = new String(new char[10000]).replace('\0', 'x').getBytes(StandardCharsets.US_ASCII);
+		final HttpRequest request = factory.buildPostRequest(URL, new ByteArrayContent("application/json", body));
+		request.setEncoding(new GZipEncoding());
+		request.execute().disconnect();
+		assertEquals(1L, meter.getRequestCount());
+		assertEquals(wire.size(), meter.getBytesSent());
+		assertTrue(meter.getBytesSent() < body.length, () -> meter.getBytesSent() + " bytes sent");
+		assertEquals(2L, meter.getBytesReceived());
+	}
+
+	@Test
+	public void plainBodiesAreCountedOnceAndKeepTheirInterceptors() throws IOException {
+		final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		final HttpMeter meter = new HttpMeter();
+		final AtomicInteger intercepted = new AtomicInteger();
+		final HttpRequestFactory factory = new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) {
+				return createRequest(wire);
+			}
+		}.createRequestFactory(meter.metered(request -> request.setInterceptor(r -> intercepted.incrementAndGet())));
+		for (int i = 0; i < 3; i++) {
+			factory.buildPutRequest(URL, ByteArrayContent.fromString("application/json", "{}")).execute().disconnect();
+		}
+		assertEquals(3, intercepted.get());
+		assertEquals(3L, meter.getRequestCount());
+		assertEquals(6L, meter.getBytesSent());
+		meter.reset();
+		assertEquals(0L, meter.getRequestCount());
+		assertEquals(0L, meter.getBytesSent());
+		assertEquals(0L, meter.getBytesReceived());
+	}
+
+	private static HttpRequestFactory createFactory(final HttpMeter meter, final ByteArrayOutputStream wire) {
+		return new MockHttpTransport() {
+			@Override
+			public LowLevelHttpRequest buildRequest(final String method, final String url) {
+				return createRequest(wire);
+			}
+		}.createRequestFactory(meter.metered(request -> { }));
+	}
+
+	private static LowLevelHttpRequest createRequest(final ByteArrayOutputStream wire) {
+		return new MockLowLevelHttpRequest() {
+			@Override
+			public LowLevelHttpResponse execute() throws IOException {
+				getStreamingContent().writeTo(wire);
+				return new MockLowLevelHttpResponse()
+					.addHeader("Content-Length", "2")
+					.setContent("{}");
+			}
+		};
+	}
+
+}
@@ -0,0 +1,75 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the overlap queries of {@link IntervalIndex}.
+ */
+public class IntervalIndexTest {
+
+	@Test
+	public void findListsOverlapsOrderedByStart() {
+		final IntervalIndex<String> index = new IntervalIndex.Builder<String>()
+			.add(30L, 40L, "c")
+			.add(10L, 20L, "a")
+			.add(15L, 35L, "b")
+			.add(50L, 60L, "d")
+			.build();
+		assertEquals(4, index.size());
+		assertEquals(Arrays.asList("a", "b", "c"), index.find(12L, 32L));
+		assertEquals(Arrays.asList("b", "c"), index.find(20L, 31L));
+		assertEquals(Collections.singletonList("d"), index.find(55L, 100L));
+		assertEquals(Collections.emptyList(), index.find(40L, 50L));
+	}
+
+	@Test
+	public void intervalsAreHalfOpen() {
+		final IntervalIndex<String> index = new IntervalIndex.Builder<String>().add(10L, 20L, "a").build();
+		assertFalse(index.overlaps(20L, 30L));
+		assertFalse(index.overlaps(0L, 10L));
+		assertTrue(index.overlaps(19L, 30L));
+		assertEquals(Collections.emptyList(), index.find(20L, 30L));
+		assertEquals(Collections.singletonList("a"), index.find(0L, 11L));
+	}
+
+	@Test
+	public void longIntervalsAreFoundBehindShortOnes() {
+		// the long interval starts first, so it is only found through the maximum end
+		final IntervalIndex<String> index = new IntervalIndex.Builder<String>()
+			.add(0L, 1000L, "long")
+			.add(100L, 110L, "short")
+			.add(200L, 210L, "later")
+			.build();
+		assertTrue(index.overlaps(500L, 501L));
+		assertEquals(Collections.singletonList("long"), index.find(500L, 501L));
+		assertEquals(Arrays.asList("long", "later"), index.find(205L, 300L));
+	}
+
+	@Test
+	public void emptyIntervalsAreIgnored() {
+		final IntervalIndex<String> index = new IntervalIndex.Builder<String>()
+			.add(10L, 10L, "empty")
+			.add(20L, 10L, "negative")
+			.build();
+		assertEquals(0, index.size());
+		assertFalse(index.overlaps(Long.MIN_VALUE, Long.MAX_VALUE));
+		assertEquals(0, IntervalIndex.<String>empty().size());
+	}
+
+	@Test
+	public void addAllCopiesAnIndex() {
+		final IntervalIndex<String> first = new IntervalIndex.Builder<String>().add(10L, 20L, "a").build();
+		final IntervalIndex<String> both = new IntervalIndex.Builder<String>().addAll(first).add(5L, 15L, "b").build();
+		assertEquals(2, both.size());
+		assertEquals(Arrays.asList("b", "a"), both.find(0L, 100L));
+		assertEquals(1, first.size());
+	}
+
+}
@@ -0,0 +1,142 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the prefetching, closing and error handling of {@link PagedIterator}.
+ */
+public class PagedIteratorTest {
+
+	private ExecutorService executor;
+
+	@BeforeEach
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void itemsOfAllPagesAreIterated() throws IOException {
+		final AtomicInteger requests = new AtomicInteger();
+		final PagedIterator.Source<Integer> source = pages(requests, Arrays.asList(1, 2), Collections.<Integer>emptyList(), Arrays.asList(3));
+		final List<Integer> items = new ArrayList<Integer>();
+		new PagedIterator<Integer>(source, executor).forEachRemaining(items::add);
+		assertEquals(Arrays.asList(1, 2, 3), items);
+		assertEquals(3, requests.get());
+
+		final List<List<Integer>> pages = new ArrayList<List<Integer>>();
+		new PagedIterator<Integer>(pages(requests, Arrays.asList(1, 2), Arrays.asList(3)), executor).forEachPage(pages::add);
+		assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)), pages);
+		try (PagedIterator<Integer> iterator = new PagedIterator<Integer>(pages(requests, Arrays.asList(1, 2), Arrays.asList(3)), executor)) {
+			assertEquals(Arrays.asList(1, 2, 3), iterator.stream().collect(Collectors.toList()));
+			assertThrows(NoSuchElementException.class, iterator::next);
+		}
+	}
+
+	@Test
+	public void forEachPageHandsOutTheRestOfTheCurrentPage() throws IOException {
+		final PagedIterator<Integer> iterator = new PagedIterator<Integer>(pages(new AtomicInteger(), Arrays.asList(1, 2), Arrays.asList(3)), executor);
+		assertEquals(Integer.valueOf(1), iterator.next());
+		final List<List<Integer>> pages = new ArrayList<List<Integer>>();
+		iterator.forEachPage(pages::add);
+		assertEquals(Arrays.asList(Arrays.asList(2), Arrays.asList(3)), pages);
+	}
+
+	@Test
+	public void closeCancelsThePrefetchedPage() throws Exception {
+		final CountDownLatch requested = new CountDownLatch(1);
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		final AtomicInteger requests = new AtomicInteger();
+		final PagedIterator<Integer> iterator = new PagedIterator<Integer>(pageToken -> {
+			requests.incrementAndGet();
+			if (pageToken == null) {
+				return new PagedIterator.Page<Integer>(Arrays.asList(1), "next");
+			}
+			requested.countDown();
+			try {
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1L));
+			} catch (InterruptedException e) {
+				interrupted.countDown();
+				throw new InterruptedIOException();
+			}
+			return new PagedIterator.Page<Integer>(Arrays.asList(2), null);
+		}, executor);
+		assertEquals(Integer.valueOf(1), iterator.next());
+		// the second page is requested while the caller works on the first
+		assertTrue(requested.await(10L, TimeUnit.SECONDS));
+		iterator.close();
+		assertTrue(interrupted.await(10L, TimeUnit.SECONDS), "the request in flight was not interrupted");
+		assertFalse(iterator.hasNext());
+		assertEquals(2, requests.get());
+	}
+
+	@Test
+	public void failedPageSurfacesAfterTheItemsBefore() {
+		final IOException failure = new IOException("page 2");
+		final PagedIterator<Integer> iterator = new PagedIterator<Integer>(pageToken -> {
+			if (pageToken == null) {
+				return new PagedIterator.Page<Integer>(Arrays.asList(1), "next");
+			}
+			throw failure;
+		}, executor);
+		assertEquals(Integer.valueOf(1), iterator.next());
+		final UncheckedIOException e = assertThrows(UncheckedIOException.class, iterator::hasNext);
+		assertSame(failure, e.getCause());
+		// no page is requested after the failure
+		assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void forEachPageThrowsTheFailure() {
+		final IOException failure = new IOException("page 2");
+		final List<List<Integer>> pages = new ArrayList<List<Integer>>();
+		final PagedIterator<Integer> iterator = new PagedIterator<Integer>(pageToken -> {
+			if (pageToken == null) {
+				return new PagedIterator.Page<Integer>(Arrays.asList(1), "next");
+			}
+			throw failure;
+		}, executor);
+		assertSame(failure, assertThrows(IOException.class, () -> iterator.forEachPage(pages::add)));
+		assertEquals(Collections.singletonList(Arrays.asList(1)), pages);
+	}
+
+	/**
+	 * Returns a source answering the given pages in order.
+	 */
+	@SafeVarargs
+	private static PagedIterator.Source<Integer> pages(final AtomicInteger requests, final List<Integer>... pages) {
+		return pageToken -> {
+			requests.incrementAndGet();
+			final int index = pageToken != null ? Integer.parseInt(pageToken) : 0;
+			return new PagedIterator.Page<Integer>(pages[index], index + 1 < pages.length ? Integer.toString(index + 1) : null);
+		};
+	}
+
+}
@@ -0,0 +1,145 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Date;
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Tests how {@link PurgeJob} advances its checkpoint, against the in-process
+ * {@link FakeCalendarApi}.
+ */
+public class PurgeJobTest {
+
+	private static final String CALENDAR = "someone@example.com";
+
+	@TempDir
+	Path directory;
+
+	private FakeCalendarApi api;
+	private CalendarAccess access;
+	private AtomicInteger retention;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId(CALENDAR);
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		access.setScheduler(new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6));
+		retention = new AtomicInteger(30);
+	}
+
+	@Test
+	public void nothingIsDoneWithoutRetention() throws IOException {
+		retention.set(0);
+		assertEquals(-1, step());
+		assertEquals(0, api.getEventListRequests());
+	}
+
+	@Test
+	public void slicesAreDoneBackInTimeUntilAYearIsEmpty() throws IOException {
+		// two days of programs, ended between 33 and 35 days ago
+		export(SyntheticPrograms.create(96, Date.getCurrentDate().addDays(-35)));
+
+		// a batch at most per step; the slice stays until nothing is left in it
+		assertEquals(50, step());
+		final Properties first = checkpoint();
+		final long cutoff = Long.parseLong(first.getProperty(CALENDAR + ".until"));
+		assertEquals(Long.toString(cutoff), first.getProperty(CALENDAR + ".cursor"));
+		assertEquals(46, step());
+		assertEquals(Long.toString(cutoff - PurgeJob.SLICE), checkpoint().getProperty(CALENDAR + ".cursor"));
+		assertEquals("0", checkpoint().getProperty(CALENDAR + ".empty"));
+		assertEquals(96, api.getDeletes());
+
+		// a year of empty slices completes the way back
+		int steps = 0;
+		while (step() >= 0) {
+			assertTrue(++steps <= 52, "the purge does not end");
+		}
+		assertEquals(52, steps);
+		final Properties done = checkpoint();
+		assertEquals("true", done.getProperty(CALENDAR + ".complete"));
+		assertEquals(Long.toString(cutoff - 53 * PurgeJob.SLICE), done.getProperty(CALENDAR + ".cursor"));
+		assertEquals(Long.toString(cutoff), done.getProperty(CALENDAR + ".until"));
+
+		// the retention limit moved on by a day: one slice forward, then nothing to do
+		retention.set(29);
+		final int lists = api.getEventListRequests();
+		assertEquals(0, step());
+		assertTrue(Long.parseLong(checkpoint().getProperty(CALENDAR + ".until")) > cutoff);
+		assertEquals(-1, step());
+		assertEquals(lists + 1, api.getEventListRequests());
+	}
+
+	@Test
+	public void countTellsWhatAPurgeDeletes() throws Exception {
+		// two days of programs ended more than 30 days ago, one day of recent ones
+		export(SyntheticPrograms.create(96, Date.getCurrentDate().addDays(-35)));
+		final Program[] recent = new Program[48];
+		for (int i = 0; i < recent.length; i++) {
+			// other programs than the ones above, starting five days ago
+			recent[i] = SyntheticPrograms.createProgram(96 + i, Date.getCurrentDate().addDays(-7));
+		}
+		export(recent);
+		assertEquals(96, job().count(30));
+		assertEquals(144, job().count(0));
+		assertEquals(Integer.valueOf(96), job().countAsync(30).get(5L, TimeUnit.SECONDS));
+		assertEquals(0, api.getDeletes());
+
+		int deleted = 0;
+		int step;
+		while ((step = step()) >= 0) {
+			deleted += step;
+		}
+		assertEquals(96, deleted);
+		assertEquals(0, job().count(30));
+		assertEquals(48, job().count(0));
+	}
+
+	private void export(final Program[] programs) throws IOException {
+		final List<Event> events = new ArrayList<Event>();
+		for (Program program : programs) {
+			events.add(access.createEvent(program));
+		}
+		assertTrue(access.addEvents(CALENDAR, events, Lane.BULK).isEmpty());
+	}
+
+	/**
+	 * Runs a step of a new job, as after a restart.
+	 */
+	private int step() throws IOException {
+		return job().step();
+	}
+
+	private PurgeJob job() {
+		return new PurgeJob(() -> access, retention::get, PurgeJob.DEFAULT_INTERVAL);
+	}
+
+	private Properties checkpoint() throws IOException {
+		final Properties result = new Properties();
+		result.load(new ByteArrayInputStream(StateFiles.read(new File(access.getDataDirectory(), PurgeJob.CHECKPOINT).toPath())));
+		return result;
+	}
+
+}
@@ -0,0 +1,103 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Tests the admission of requests by {@link RequestScheduler}.
+ */
+public class RequestSchedulerTest {
+
+	private static final Duration TIMEOUT = Duration.ofSeconds(10L);
+
+	@Test
+	public void interactiveRequestsPassABulkRequestHoldingTheOnlySlot() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(1, 1000d);
+		assertEquals(1, scheduler.getConcurrencyLimit());
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<String> first = executor.submit(() -> scheduler.execute(Lane.BULK, () -> {
+				await(release);
+				return "bulk";
+			}));
+			awaitRunning(scheduler, 1);
+			final Future<String> second = executor.submit(() -> scheduler.execute(Lane.BULK, () -> "second bulk"));
+			assertTimeoutPreemptively(TIMEOUT, () -> {
+				while (scheduler.getWaiting(Lane.BULK) == 0) {
+					Thread.sleep(1L);
+				}
+			});
+			// the bulk request holds the only slot, the interactive request does not wait for it
+			assertEquals("interactive", assertTimeoutPreemptively(TIMEOUT, () -> scheduler.execute(Lane.INTERACTIVE, () -> "interactive")));
+			// the second bulk request still waits for the slot
+			assertEquals(1, scheduler.getWaiting(Lane.BULK));
+			release.countDown();
+			assertEquals("bulk", first.get(TIMEOUT.getSeconds(), TimeUnit.SECONDS));
+			assertEquals("second bulk", second.get(TIMEOUT.getSeconds(), TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdownNow();
+		}
+		assertEquals(0, scheduler.getRunning());
+	}
+
+	@Test
+	public void bulkRequestsLeaveASlotForInteractiveRequests() throws Exception {
+		final RequestScheduler scheduler = new RequestScheduler(2, 1000d);
+		assertEquals(2, scheduler.getConcurrencyLimit());
+		final CountDownLatch release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 2; i++) {
+				executor.submit(() -> scheduler.execute(Lane.BULK, () -> {
+					await(release);
+					return null;
+				}));
+			}
+			awaitRunning(scheduler, 1);
+			assertTimeoutPreemptively(TIMEOUT, () -> {
+				while (scheduler.getWaiting(Lane.BULK) == 0) {
+					Thread.sleep(1L);
+				}
+			});
+			assertEquals(1, scheduler.getRunning());
+			assertEquals("interactive", assertTimeoutPreemptively(TIMEOUT, () -> scheduler.execute(Lane.INTERACTIVE, () -> "interactive")));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+			executor.awaitTermination(TIMEOUT.getSeconds(), TimeUnit.SECONDS);
+		}
+		assertEquals(0, scheduler.getRunning());
+	}
+
+	private static void await(final CountDownLatch latch) throws InterruptedIOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private static void awaitRunning(final RequestScheduler scheduler, final int count) {
+		assertTimeoutPreemptively(TIMEOUT, () -> {
+			while (scheduler.getRunning() < count) {
+				Thread.sleep(1L);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,82 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.api.services.calendar.model.Event;
+
+import devplugin.Date;
+import devplugin.Program;
+import googlecalxplugin.RequestScheduler.Lane;
+
+/**
+ * Tests how {@link RerenderJob} patches exported events, against the
+ * in-process {@link FakeCalendarApi}.
+ */
+public class RerenderJobTest {
+
+	private static final String CALENDAR = "someone@example.com";
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void rerenderResumesAndSkipsUnchanged() throws Exception {
+		final GoogleCalXSettings settings = new GoogleCalXSettings(new Properties());
+		settings.setCalendarId(CALENDAR);
+		settings.setNotificationTitle("{title}");
+		settings.setNotificationBody("{shortInfo}");
+		final FakeCalendarApi api = new FakeCalendarApi(1, 0L, 0L, 0, 0);
+		final CalendarAccess access = new CalendarAccess(settings, directory.toString(), null, api, request -> { });
+		access.setScheduler(new RequestScheduler(RequestScheduler.DEFAULT_CONCURRENCY, 1e6));
+		final int count = 230;
+		// only upcoming events are rendered again
+		final Program[] programs = SyntheticPrograms.create(count, Date.getCurrentDate().addDays(1));
+		final Map<String, Program> byId = new HashMap<String, Program>();
+		final List<Event> events = new ArrayList<Event>();
+		for (Program program : programs) {
+			byId.put(program.getUniqueID(), program);
+			events.add(access.createEvent(program));
+		}
+		assertTrue(access.addEvents(CALENDAR, events, Lane.BULK).isEmpty());
+
+		// nothing changed: no patches, and the job is done until the settings change
+		assertEquals(0, new RerenderJob(() -> access, byId::get, 0L).run());
+		assertEquals(-1, new RerenderJob(() -> access, byId::get, 0L).run());
+		assertEquals(0, api.getUpdates());
+
+		// a restart after two batches, the program guide fails on the next lookup
+		settings.setNotificationTitle("{title} (TV)");
+		final AtomicInteger lookups = new AtomicInteger();
+		assertThrows(IllegalStateException.class, () -> new RerenderJob(() -> access, programId -> {
+			if (lookups.incrementAndGet() > 120) {
+				throw new IllegalStateException("shut down");
+			}
+			return byId.get(programId);
+		}, 0L).run());
+		assertEquals(100, api.getUpdates());
+		assertEquals(count - 100, new RerenderJob(() -> access, byId::get, 0L).run());
+		assertEquals(count, api.getUpdates());
+
+		final Map<String, String> hashes = new HashMap<String, String>();
+		access.getExportedHashes(CALENDAR, 0L, System.currentTimeMillis() + CalendarMirror.FUTURE, Lane.BACKGROUND, hashes::putAll);
+		assertEquals(count, hashes.size());
+		for (Program program : programs) {
+			assertEquals(access.getContentHash(program), hashes.get(program.getUniqueID()));
+		}
+		assertEquals(-1, new RerenderJob(() -> access, byId::get, 0L).run());
+	}
+
+}
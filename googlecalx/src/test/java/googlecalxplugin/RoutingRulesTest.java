@@ -0,0 +1,114 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Tests compiling and applying {@link RoutingRules}.
+ */
+public class RoutingRulesTest {
+
+	private static final Date DATE = new Date(2026, 1, 1);
+
+	@Test
+	public void firstMatchingRuleApplies() {
+		final RoutingRules rules = RoutingRules.compile(
+			"title=Program 12 -> calendar=twelve@example.com; reminder=popup:15\n"
+			+ "title=Program 1* -> color=5\n"
+			+ "-> reminder=none\n");
+		assertEquals(3, rules.size());
+		final RoutingRules.Route twelve = rules.route(program(12));
+		assertEquals("twelve@example.com", twelve.getCalendarId());
+		assertEquals(NotificationTypes.popup, twelve.getNotificationType());
+		assertEquals("15", twelve.getNotificationTime());
+		assertNull(twelve.getColorId());
+		assertEquals("5", rules.route(program(13)).getColorId());
+		assertEquals("5", rules.route(program(100)).getColorId());
+		// a rule without conditions matches every program
+		assertEquals(NotificationTypes.none, rules.route(program(2)).getNotificationType());
+	}
+
+	@Test
+	public void titlesIgnoreCaseAndPatternsDoNot() {
+		final RoutingRules rules = RoutingRules.compile(
+			"title=PROGRAM 1|program 2 -> color=1\n"
+			+ "title=~^Program [0-9]{2}$ -> color=2\n"
+			+ "title=~^program -> color=3\n");
+		assertEquals("1", rules.route(program(1)).getColorId());
+		assertEquals("1", rules.route(program(2)).getColorId());
+		assertEquals("2", rules.route(program(42)).getColorId());
+		assertNull(rules.route(program(420)));
+	}
+
+	@Test
+	public void channelRulesNeedAChannel() {
+		final RoutingRules rules = RoutingRules.compile("channel=ARD|ZDF -> color=1");
+		// the synthetic programs have no channel
+		assertNull(rules.route(program(1)));
+	}
+
+	@Test
+	public void calendarsAreListedOnceInRuleOrder() {
+		final RoutingRules rules = RoutingRules.compile(
+			"# comment\n"
+			+ "\n"
+			+ "title=a -> calendar=b@example.com\n"
+			+ "title=b -> color=1\n"
+			+ "title=c -> calendar=a@example.com\n"
+			+ "title=d -> calendar=b@example.com\n"
+			+ "title=e -> calendar=work|b@example.com\n"
+			+ "title=f -> calendar=home|a@example.com\n");
+		assertEquals(
+			Arrays.asList(
+				new CalendarTarget("b@example.com", "", "home"),
+				new CalendarTarget("a@example.com", "", "home"),
+				new CalendarTarget("b@example.com", "", "work")),
+			new ArrayList<CalendarTarget>(rules.getCalendarTargets("home")));
+		assertTrue(RoutingRules.NONE.getCalendarTargets("home").isEmpty());
+	}
+
+	@Test
+	public void calendarsMayNameTheirAccount() {
+		final RoutingRules rules = RoutingRules.compile(
+			"title=Program 1 -> calendar=work | crime@example.com\n"
+			+ "title=Program 2 -> calendar=crime@example.com\n");
+		assertEquals("work", rules.route(program(1)).getAccount());
+		assertEquals("crime@example.com", rules.route(program(1)).getCalendarId());
+		// the account of the export target
+		assertNull(rules.route(program(2)).getAccount());
+		assertEquals("crime@example.com", rules.route(program(2)).getCalendarId());
+	}
+
+	@Test
+	public void malformedRulesNameTheLine() {
+		assertSame(RoutingRules.NONE, RoutingRules.compile(" \n"));
+		assertMalformed("line 1: missing ->", "title=a");
+		assertMalformed("line 2: no action", "\ntitle=a ->");
+		assertMalformed("line 1: unknown action", "title=a -> colour=1");
+		assertMalformed("line 1: unknown reminder", "title=a -> reminder=pigeon:5");
+		assertMalformed("line 1: no calendar", "title=a -> calendar=work|");
+		assertMalformed("line 1: invalid reminder minutes", "title=a -> reminder=popup:soon");
+		assertMalformed("line 3: invalid title expression", "# comment\n\ntitle=~( -> color=1");
+	}
+
+	private static void assertMalformed(final String message, final String text) {
+		final IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RoutingRules.compile(text));
+		assertTrue(e.getMessage().startsWith(message), e.getMessage());
+	}
+
+	private static Program program(final int index) {
+		return SyntheticPrograms.createProgram(index, DATE);
+	}
+
+}
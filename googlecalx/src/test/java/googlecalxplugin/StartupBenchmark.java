@@ -0,0 +1,137 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Measures the cost of loading the plugin shell and the calendar access
+ * core, each round in a fresh class loader. The shell must not load any
+ * Google API classes. Run with <code>mvn -Pperf test</code>.
+ */
+public class StartupBenchmark {
+
+	private static final int ROUNDS = 7;
+	private static final String PKG = "googlecalxplugin.";
+
+	@Test
+	public void measureStartup() throws Exception {
+		final long[] shell = new long[ROUNDS];
+		final long[] core = new long[ROUNDS];
+		int shellClasses = 0;
+		int coreClasses = 0;
+		final File directory = Files.createTempDirectory("googlecalx").toFile();
+		for (int i = 0; i < ROUNDS; i++) {
+			try (RecordingClassLoader loader = new RecordingClassLoader()) {
+				long start = System.nanoTime();
+				final Object settings = loadShell(loader);
+				shell[i] = System.nanoTime() - start;
+				final List<String> google = loader.loaded("com.google.");
+				assertTrue(google.isEmpty(), () -> "plugin shell loaded Google classes: " + google);
+				shellClasses = loader.count();
+				start = System.nanoTime();
+				loadCore(loader, settings, directory);
+				core[i] = System.nanoTime() - start;
+				coreClasses = loader.count() - shellClasses;
+			}
+		}
+		System.out.printf("plugin shell: %6.1f ms median, %5d classes%n", median(shell), Integer.valueOf(shellClasses));
+		System.out.printf("core (lazy):  %6.1f ms median, %5d classes%n", median(core), Integer.valueOf(coreClasses));
+		System.out.printf("startup saving: %6.1f ms (%.0f%%)%n", median(core), 100d * median(core) / (median(core) + median(shell)));
+	}
+
+	/**
+	 * Loads what TV-Browser touches at startup: the plugin class, the
+	 * context menu action and the settings.
+	 */
+	private static Object loadShell(final ClassLoader loader) throws Exception {
+		Class.forName(PKG + "GoogleCalXPlugin", true, loader);
+		Class.forName(PKG + "GoogleCalXPlugin$ExportAction", true, loader);
+		final Class<?> settingsClass = Class.forName(PKG + "GoogleCalXSettings", true, loader);
+		final Object settings = settingsClass.getConstructor(Properties.class).newInstance(new Properties());
+		settingsClass.getMethod("getNotificationColor").invoke(settings);
+		settingsClass.getMethod("getCalendarTarget").invoke(settings);
+		settingsClass.getMethod("getNotificationType").invoke(settings);
+		return settings;
+	}
+
+	/**
+	 * Loads what is needed on first export.
+	 */
+	private static void loadCore(final ClassLoader loader, final Object settings, final File directory) throws Exception {
+		final Class<?> accessClass = Class.forName(PKG + "CalendarAccess", true, loader);
+		accessClass.getConstructor(
+				settings.getClass(),
+				String.class,
+				Class.forName("com.google.api.client.json.JsonFactory", false, loader))
+			.newInstance(settings, directory.getAbsolutePath(), null);
+		Class.forName(PKG + "CalendarAccess$FieldTypes", true, loader);
+	}
+
+	private static double median(final long[] values) {
+		final long[] copy = values.clone();
+		Arrays.sort(copy);
+		return copy[copy.length / 2] / 1_000_000d;
+	}
+
+	/**
+	 * Class loader recording the names of all classes requested through it.
+	 * Only platform classes are delegated to the parent.
+	 */
+	private static class RecordingClassLoader extends URLClassLoader {
+
+		private final Set<String> names = new LinkedHashSet<String>();
+
+		RecordingClassLoader() throws MalformedURLException {
+			super(classPath(), ClassLoader.getPlatformClassLoader());
+		}
+
+		@Override
+		protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+			synchronized (names) {
+				names.add(name);
+			}
+			return super.loadClass(name, resolve);
+		}
+
+		int count() {
+			synchronized (names) {
+				return names.size();
+			}
+		}
+
+		List<String> loaded(final String prefix) {
+			final List<String> result = new ArrayList<String>();
+			synchronized (names) {
+				for (String name : names) {
+					if (name.startsWith(prefix)) {
+						result.add(name);
+					}
+				}
+			}
+			return result;
+		}
+
+		private static URL[] classPath() throws MalformedURLException {
+			final String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+			final URL[] result = new URL[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				result[i] = new File(entries[i]).toURI().toURL();
+			}
+			return result;
+		}
+	}
+
+}
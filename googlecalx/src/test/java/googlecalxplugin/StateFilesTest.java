@@ -0,0 +1,112 @@
+package googlecalxplugin;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the read-modify-write cycles of {@link StateFiles}.
+ */
+public class StateFilesTest {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void updateSeesTheCurrentContent() throws IOException {
+		final Path file = directory.resolve("state");
+		assertNull(StateFiles.read(file));
+		assertNull(StateFiles.stamp(file));
+		final Object created = StateFiles.update(file, current -> {
+			assertNull(current);
+			return bytes("a");
+		});
+		final Object changed = StateFiles.update(file, current -> bytes(new String(current, StandardCharsets.UTF_8) + "b"));
+		assertArrayEquals(bytes("ab"), StateFiles.read(file));
+		assertNotEquals(created, changed);
+		assertEquals(changed, StateFiles.stamp(file));
+	}
+
+	@Test
+	public void updateWithoutContentLeavesTheFile() throws IOException {
+		final Path file = directory.resolve("state");
+		final Object stamp = StateFiles.update(file, current -> bytes("a"));
+		assertEquals(stamp, StateFiles.update(file, current -> null));
+		assertArrayEquals(bytes("a"), StateFiles.read(file));
+	}
+
+	@Test
+	public void failedUpdateLeavesTheFile() throws IOException {
+		final Path file = directory.resolve("state");
+		StateFiles.update(file, current -> bytes("a"));
+		assertThrows(IOException.class, () -> StateFiles.update(file, current -> {
+			throw new IOException("failed");
+		}));
+		assertArrayEquals(bytes("a"), StateFiles.read(file));
+		// nothing but the file and its lock is left behind
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(2L, files.count());
+		}
+	}
+
+	@Test
+	public void lockFileIsOwnerOnly() throws IOException {
+		assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		final Path file = directory.resolve("state");
+		StateFiles.update(file, current -> bytes("a"));
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(directory.resolve("state.lock")));
+		assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(file));
+	}
+
+	@Test
+	public void concurrentUpdatesAreMerged() throws Exception {
+		final Path file = directory.resolve("counter");
+		final int threads = 4;
+		final int updates = 50;
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < threads; i++) {
+				futures.add(executor.submit(() -> {
+					for (int j = 0; j < updates; j++) {
+						StateFiles.update(file, current -> bytes(Integer.toString(current != null ? Integer.parseInt(new String(current, StandardCharsets.UTF_8)) + 1 : 1)));
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// no update was lost
+		assertEquals(Integer.toString(threads * updates), new String(StateFiles.read(file), StandardCharsets.UTF_8));
+		assertTrue(Files.exists(directory.resolve("counter.lock")));
+	}
+
+	private static byte[] bytes(final String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
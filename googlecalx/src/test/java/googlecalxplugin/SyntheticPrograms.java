@@ -0,0 +1,104 @@
+package googlecalxplugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import devplugin.Date;
+import devplugin.Program;
+
+/**
+ * Creates synthetic programs for tests. The programs are dynamic proxies
+ * answering the bean properties used by the templates and event creation;
+ * all other methods return default values.
+ */
+public final class SyntheticPrograms {
+
+	private SyntheticPrograms() {
+		// utility class
+	}
+
+	/**
+	 * Creates the given number of distinct programs, one every 30 minutes
+	 * starting at the given date.
+	 * @param count the number of programs to create
+	 * @param date the date of the first program, must not be <code>null</code>.
+	 * @return the programs, never <code>null</code>.
+	 */
+	public static Program[] create(final int count, final Date date) {
+		final Program[] result = new Program[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = createProgram(i, date);
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a single program.
+	 * @param index the number of the program, determines ID and start time
+	 * @param date the date of the first program, must not be <code>null</code>.
+	 * @return the program, never <code>null</code>.
+	 */
+	public static Program createProgram(final int index, final Date date) {
+		final int start = 30 * index;
+		final Date day = date.addDays(start / (24 * 60));
+		final InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getUniqueID":
+					return "synthetic_" + index;
+				case "getID":
+					return Integer.toString(index);
+				case "getTitle":
+					return "Program " + index;
+				case "getShortInfo":
+					return "Short info of program " + index;
+				case "getDescription":
+					return "Description of program " + index;
+				case "getDate":
+					return day;
+				case "getHours":
+					return Integer.valueOf((start / 60) % 24);
+				case "getMinutes":
+					return Integer.valueOf(start % 60);
+				case "getStartTime":
+					return Integer.valueOf(start % (24 * 60));
+				case "getLength":
+					return Integer.valueOf(25);
+				case "hashCode":
+					return Integer.valueOf(System.identityHashCode(proxy));
+				case "equals":
+					return Boolean.valueOf(proxy == args[0]);
+				case "toString":
+					return "Program " + index;
+				default:
+					return defaultValue(method.getReturnType());
+				}
+			}
+		};
+		return (Program) Proxy.newProxyInstance(SyntheticPrograms.class.getClassLoader(), new Class<?>[] { Program.class }, handler);
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return Integer.valueOf(0);
+		} else if (type == long.class) {
+			return Long.valueOf(0L);
+		} else if (type == short.class) {
+			return Short.valueOf((short) 0);
+		} else if (type == byte.class) {
+			return Byte.valueOf((byte) 0);
+		} else if (type == char.class) {
+			return Character.valueOf((char) 0);
+		} else if (type == float.class) {
+			return Float.valueOf(0f);
+		} else if (type == double.class) {
+			return Double.valueOf(0d);
+		}
+		return null;
+	}
+
+}